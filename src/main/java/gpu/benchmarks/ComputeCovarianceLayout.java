@@ -0,0 +1,87 @@
+package gpu.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Compare the covariance dot products over excess returns stored observation
+ * major (the former <code>ValueAtRiskJava</code> layout, consecutive returns of
+ * an instrument are <code>numberOfInstruments</code> doubles apart) and
+ * instrument major (consecutive returns of an instrument are contiguous).
+ *
+ * To keep the memory bounded for the large universes, only the first
+ * <code>ROWS</code> rows of the covariance matrix are computed.
+ */
+public class ComputeCovarianceLayout {
+
+	private static final int[] NB_INSTRUMENTS = new int[] { 1024, 4096, 16384 };
+	private static final int ROWS = 64;
+	private static int nb_returns = 511;
+	private static int NB_RUNS = 3;
+
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			NB_RUNS = Integer.valueOf(args[0]);
+		}
+
+		System.out.println(String.format("Covariance of %d rows over %d returns, %d runs", ROWS, nb_returns, NB_RUNS));
+		System.out.println(String.format("%12s %25s %25s", "instruments", "observation major (ms)",
+				"instrument major (ms)"));
+		for (int nb_instruments : NB_INSTRUMENTS) {
+			double[] observationMajor = new double[nb_instruments * nb_returns];
+			double[] instrumentMajor = new double[nb_instruments * nb_returns];
+			Random random = new Random(42);
+			for (int i = 0; i < nb_instruments; i++) {
+				for (int k = 0; k < nb_returns; k++) {
+					double value = random.nextGaussian() * 0.01;
+					observationMajor[k * nb_instruments + i] = value;
+					instrumentMajor[i * nb_returns + k] = value;
+				}
+			}
+			double[] covariance = new double[ROWS * nb_instruments];
+
+			// Warm up both kernels before timing them
+			observationMajor(observationMajor, nb_instruments, covariance);
+			instrumentMajor(instrumentMajor, nb_instruments, covariance);
+
+			long observationMajorTime = 0;
+			long instrumentMajorTime = 0;
+			for (int run = 0; run < NB_RUNS; run++) {
+				long time = System.nanoTime();
+				observationMajor(observationMajor, nb_instruments, covariance);
+				observationMajorTime += System.nanoTime() - time;
+
+				time = System.nanoTime();
+				instrumentMajor(instrumentMajor, nb_instruments, covariance);
+				instrumentMajorTime += System.nanoTime() - time;
+			}
+			System.out.println(String.format("%12d %25.1f %25.1f", nb_instruments,
+					observationMajorTime / 1e6 / NB_RUNS, instrumentMajorTime / 1e6 / NB_RUNS));
+		}
+	}
+
+	private static void observationMajor(double[] excessReturns, int numberOfInstruments, double[] covariance) {
+		for (int r = 0; r < ROWS; r++) {
+			for (int c = 0; c < numberOfInstruments; c++) {
+				double value = 0;
+				for (int k = 0; k < nb_returns; k++) {
+					value += excessReturns[k * numberOfInstruments + r] * excessReturns[k * numberOfInstruments + c];
+				}
+				covariance[r * numberOfInstruments + c] = value / nb_returns;
+			}
+		}
+	}
+
+	private static void instrumentMajor(double[] excessReturns, int numberOfInstruments, double[] covariance) {
+		for (int r = 0; r < ROWS; r++) {
+			int rowOffset = r * nb_returns;
+			for (int c = 0; c < numberOfInstruments; c++) {
+				int columnOffset = c * nb_returns;
+				double value = 0;
+				for (int k = 0; k < nb_returns; k++) {
+					value += excessReturns[rowOffset + k] * excessReturns[columnOffset + k];
+				}
+				covariance[r * numberOfInstruments + c] = value / nb_returns;
+			}
+		}
+	}
+}
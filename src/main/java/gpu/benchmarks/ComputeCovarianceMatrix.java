@@ -0,0 +1,53 @@
+package gpu.benchmarks;
+
+import java.util.Random;
+
+import gpu.var.SymmetricCovarianceBuilder;
+import gpu.var.ValueAtRiskExecutors;
+
+/**
+ * Throughput of the Java covariance kernel. The reported GFLOP/s count the
+ * multiply and the add of every dot product step actually computed, i.e. the
+ * N(N+1)/2 entries of the upper triangle.
+ */
+public class ComputeCovarianceMatrix {
+
+	private static final int[] NB_INSTRUMENTS = new int[] { 1024, 2048, 4096 };
+	private static int nb_returns = 511;
+	private static int NB_RUNS = 3;
+	private static int GRAIN_SIZE = 250;
+
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			NB_RUNS = Integer.valueOf(args[0]);
+		}
+
+		System.out.println(String.format("Covariance matrix over %d returns, parallelism %d, %d runs", nb_returns,
+				ValueAtRiskExecutors.getDefaultParallelism(), NB_RUNS));
+		System.out.println(String.format("%12s %15s %15s", "instruments", "time (ms)", "GFLOP/s"));
+		for (int nb_instruments : NB_INSTRUMENTS) {
+			double[] excessReturns = new double[nb_instruments * nb_returns];
+			Random random = new Random(42);
+			for (int i = 0; i < excessReturns.length; i++) {
+				excessReturns[i] = random.nextGaussian() * 0.01;
+			}
+			double[] covariance = new double[nb_instruments * nb_instruments];
+			SymmetricCovarianceBuilder builder = new SymmetricCovarianceBuilder(nb_instruments);
+
+			// Warm up before timing
+			builder.build(ValueAtRiskExecutors.getSharedExecutor(), GRAIN_SIZE, excessReturns, nb_returns, covariance);
+
+			long totalTime = 0;
+			for (int run = 0; run < NB_RUNS; run++) {
+				long time = System.nanoTime();
+				builder.build(ValueAtRiskExecutors.getSharedExecutor(), GRAIN_SIZE, excessReturns, nb_returns,
+						covariance);
+				totalTime += System.nanoTime() - time;
+			}
+			double seconds = totalTime / 1e9 / NB_RUNS;
+			double flops = 2.0 * nb_instruments * (nb_instruments + 1) / 2 * nb_returns;
+			System.out.println(
+					String.format("%12d %15.1f %15.2f", nb_instruments, seconds * 1e3, flops / seconds / 1e9));
+		}
+	}
+}
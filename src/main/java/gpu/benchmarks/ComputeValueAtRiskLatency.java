@@ -0,0 +1,68 @@
+package gpu.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+
+import gpu.var.ValueAtRisk;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+
+/**
+ * Per-call latency of the Java VaR engine on small portfolios, comparing a
+ * thread pool created for every call with the shared long-lived executor.
+ */
+public class ComputeValueAtRiskLatency {
+
+	private static final int[] NB_INSTRUMENTS = new int[] { 16, 32, 64, 128, 256, 512 };
+	private static int nb_observations = 512;
+	private static int NB_RUNS = 100;
+
+	public static void main(String[] args) {
+
+		if (args.length < 1) {
+			System.out.println("Proper Usage is:  java -cp gpu.jar gpu.benchmarks.ComputeValueAtRiskLatency <# of runs>");
+			System.exit(0);
+		} else {
+			NB_RUNS = Integer.valueOf(args[0]);
+		}
+
+		int parallelism = ValueAtRiskExecutors.getDefaultParallelism();
+		double[] instruments = new double[NB_INSTRUMENTS[NB_INSTRUMENTS.length - 1] * nb_observations];
+		double[] weights = new double[NB_INSTRUMENTS[NB_INSTRUMENTS.length - 1]];
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%12s %25s %25s%n", "instruments", "pool per call (us/call)",
+				"shared pool (us/call)"));
+		for (int nb_instruments : NB_INSTRUMENTS) {
+			ValueAtRiskData.initTest(instruments, weights, nb_instruments, nb_observations);
+
+			long totalTime = 0;
+			for (int i = 0; i < NB_RUNS; i++) {
+				long time = System.nanoTime();
+				ExecutorService executorService = ValueAtRiskExecutors.newExecutor(parallelism);
+				ValueAtRisk var = new ValueAtRiskJava(instruments, weights, 1_000_000f, nb_instruments,
+						nb_observations, false, executorService);
+				var.execute();
+				executorService.shutdown();
+				totalTime += System.nanoTime() - time;
+			}
+			long perCallPool = totalTime / NB_RUNS / 1_000;
+
+			totalTime = 0;
+			for (int i = 0; i < NB_RUNS; i++) {
+				long time = System.nanoTime();
+				ValueAtRisk var = new ValueAtRiskJava(instruments, weights, 1_000_000f, nb_instruments,
+						nb_observations, false, ValueAtRiskExecutors.getSharedExecutor());
+				var.execute();
+				totalTime += System.nanoTime() - time;
+			}
+			long sharedPool = totalTime / NB_RUNS / 1_000;
+
+			report.append(String.format("%12d %25d %25d%n", nb_instruments, perCallPool, sharedPool));
+		}
+		System.out.println(String.format("\nValue At Risk latency for %d observations, parallelism %d, %d runs",
+				nb_observations, parallelism, NB_RUNS));
+		System.out.print(report);
+	}
+
+}
@@ -0,0 +1,53 @@
+package gpu.kernels;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor running every task on the calling thread. {@link ParallelRange}
+ * recognises it and runs the chunks in a plain loop, without submitting any
+ * task, so that the engines do not allocate on their steady-state path.
+ *
+ * The Value at Risk engines create it with
+ * <code>ValueAtRiskExecutors.newCallerThreadExecutor()</code>.
+ */
+public final class CallerThreadExecutor extends AbstractExecutorService {
+
+	private volatile boolean shutdown = false;
+
+	@Override
+	public void execute(Runnable command) {
+		if (shutdown) {
+			throw new RejectedExecutionException("The executor has been shut down");
+		}
+		command.run();
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		return List.of();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		return shutdown;
+	}
+}
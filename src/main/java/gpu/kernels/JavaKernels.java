@@ -0,0 +1,63 @@
+package gpu.kernels;
+
+/**
+ * Inner loops of the Java engines.
+ *
+ * The scalar implementation runs on every Java version. When the jar is run on
+ * Java 17 or later with the <code>jdk.incubator.vector</code> module
+ * (<code>--add-modules jdk.incubator.vector</code>), the multi-release jar
+ * provides an implementation based on the Vector API which is picked by
+ * {@link #preferred()}. The vector path can be disabled with
+ * <code>-Dgpu.var.vector=false</code>. The vector implementation uses fused
+ * multiply-adds and reorders the sums, its results therefore differ from the
+ * scalar ones in the last bits.
+ */
+public interface JavaKernels {
+
+	String VECTOR_PROPERTY = "gpu.var.vector";
+
+	/**
+	 * @return the vector implementation when available, the scalar one otherwise
+	 */
+	static JavaKernels preferred() {
+		return JavaKernelsLoader.PREFERRED;
+	}
+
+	static JavaKernels scalar() {
+		return ScalarKernels.INSTANCE;
+	}
+
+	boolean isVectorized();
+
+	/**
+	 * Subtract <code>value</code> from <code>values[offset, offset + length)</code>
+	 */
+	void subtract(double[] values, int offset, int length, double value);
+
+	/**
+	 * @return the dot product of <code>a[aOffset, aOffset + length)</code> and
+	 *         <code>b[bOffset, bOffset + length)</code>
+	 */
+	double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+	/**
+	 * Add <code>a</code> times <code>x[xOffset, xOffset + length)</code> to
+	 * <code>y[yOffset, yOffset + length)</code>
+	 */
+	void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+	/**
+	 * Replace <code>y[yOffset, yOffset + length)</code> by <code>a</code> times
+	 * <code>x[xOffset, xOffset + length)</code> plus <code>b</code> times itself
+	 */
+	void axpby(double a, double[] x, int xOffset, double b, double[] y, int yOffset, int length);
+
+	/**
+	 * Accumulate into the 4x4 block of <code>tile</code> (row major, rows of
+	 * <code>tileSize</code>) at <code>[row, column]</code> the dot products of the
+	 * micro panels of the packed rows and columns. A micro panel holds the
+	 * <code>returns</code> returns of 4 instruments, interleaved return by return.
+	 */
+	void covarianceMicroKernel(double[] rowPanel, int row, double[] columnPanel, int column, int returns,
+			double[] tile, int tileSize);
+}
@@ -0,0 +1,28 @@
+package gpu.kernels;
+
+/**
+ * Select the implementation of {@link JavaKernels} once per JVM.
+ */
+final class JavaKernelsLoader {
+
+	private static final String VECTOR_KERNELS = "gpu.kernels.VectorKernels";
+
+	static final JavaKernels PREFERRED = load();
+
+	private JavaKernelsLoader() {
+	}
+
+	private static JavaKernels load() {
+		if (!Boolean.parseBoolean(System.getProperty(JavaKernels.VECTOR_PROPERTY, "true"))) {
+			return ScalarKernels.INSTANCE;
+		}
+		try {
+			// Only present in the Java 17 part of the multi-release jar, and only
+			// linkable when the incubator module is resolved
+			JavaKernels kernels = (JavaKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+			return kernels.isVectorized() ? kernels : ScalarKernels.INSTANCE;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return ScalarKernels.INSTANCE;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package gpu.kernels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Range based scheduler splitting <code>[0, size)</code> into contiguous chunks
+ * of <code>grainSize</code> elements and submitting a single task per chunk.
+ */
+public final class ParallelRange {
+
+	/**
+	 * Computation applied to the chunk <code>[start, end)</code>. The chunk index
+	 * is in <code>[0, numberOfChunks(size, grainSize))</code> and can be used to
+	 * store per chunk partial results without synchronisation.
+	 */
+	@FunctionalInterface
+	public interface RangeTask {
+		void compute(int chunk, int start, int end);
+	}
+
+	/**
+	 * Callables of the chunks of a task for one chunking of a range. They read
+	 * the task from the holder, which only references it while it runs, so that
+	 * the cache does not keep the tasks alive.
+	 */
+	private static final class Chunks {
+		private final int size;
+		private final int grainSize;
+		private final List<Callable<Integer>> callables;
+		// Set while a run uses the callables
+		private RangeTask task;
+
+		Chunks(int size, int grainSize, int chunks) {
+			this.size = size;
+			this.grainSize = grainSize;
+			this.callables = new ArrayList<>(chunks);
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				final int index = chunk;
+				final int start = chunk * grainSize;
+				final int end = Math.min(start + grainSize, size);
+				callables.add(() -> {
+					task.compute(index, start, end);
+					return 0;
+				});
+			}
+		}
+	}
+
+	// Last chunking of every task, guarded by itself
+	private static final Map<RangeTask, Chunks> CHUNKS = new WeakHashMap<>();
+
+	private ParallelRange() {
+	}
+
+	public static int numberOfChunks(int size, int grainSize) {
+		if (grainSize < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid grainSize=%d, the grain size must be positive", grainSize));
+		}
+		return (size + grainSize - 1) / grainSize;
+	}
+
+	/**
+	 * @return the number of tasks the executor runs at once: 1 on the calling
+	 *         thread, the maximum pool size of a thread pool, the parallelism of
+	 *         a fork join pool, and the number of processors for the others
+	 */
+	public static int parallelism(ExecutorService executorService) {
+		if (executorService instanceof CallerThreadExecutor) {
+			return 1;
+		}
+		if (executorService instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executorService).getMaximumPoolSize();
+		}
+		if (executorService instanceof ForkJoinPool) {
+			return ((ForkJoinPool) executorService).getParallelism();
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return the grain size splitting <code>[0, size)</code> into one chunk per
+	 *         task the executor runs at once, for computations whose chunks all
+	 *         have the same cost and each keep a buffer
+	 */
+	public static int grainSizePerTask(ExecutorService executorService, int size) {
+		return Math.max(1, numberOfChunks(size, parallelism(executorService)));
+	}
+
+	/**
+	 * Execute the task on every chunk and wait for their completion. A single
+	 * chunk, or every chunk with a {@link CallerThreadExecutor}, is run on the
+	 * calling thread without allocating. On a thread pool the callables of the
+	 * chunks are built on the first run of a task with a given size and grain
+	 * size and reused by the next ones, only the futures of the executor are
+	 * allocated.
+	 */
+	public static void execute(ExecutorService executorService, int size, int grainSize, RangeTask task) {
+		int chunks = numberOfChunks(size, grainSize);
+		if (chunks == 1 || executorService instanceof CallerThreadExecutor) {
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				int start = chunk * grainSize;
+				task.compute(chunk, start, Math.min(start + grainSize, size));
+			}
+			return;
+		}
+
+		Chunks callables = claim(task, size, grainSize, chunks);
+		try {
+			for (Future<Integer> future : executorService.invokeAll(callables.callables)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			synchronized (CHUNKS) {
+				callables.task = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the cached callables of the chunking of the task, or new ones
+	 *         when the task is already running on other threads
+	 */
+	private static Chunks claim(RangeTask task, int size, int grainSize, int chunks) {
+		synchronized (CHUNKS) {
+			Chunks callables = CHUNKS.get(task);
+			if (callables != null && callables.task != null) {
+				callables = new Chunks(size, grainSize, chunks);
+			} else if (callables == null || callables.size != size || callables.grainSize != grainSize) {
+				callables = new Chunks(size, grainSize, chunks);
+				CHUNKS.put(task, callables);
+			}
+			callables.task = task;
+			return callables;
+		}
+	}
+}
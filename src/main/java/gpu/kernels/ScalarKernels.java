@@ -0,0 +1,112 @@
+package gpu.kernels;
+
+final class ScalarKernels implements JavaKernels {
+
+	static final ScalarKernels INSTANCE = new ScalarKernels();
+
+	private ScalarKernels() {
+	}
+
+	@Override
+	public boolean isVectorized() {
+		return false;
+	}
+
+	@Override
+	public void subtract(double[] values, int offset, int length, double value) {
+		for (int i = offset; i < offset + length; i++) {
+			values[i] -= value;
+		}
+	}
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+		double dot = 0;
+		for (int i = 0; i < length; i++) {
+			dot += a[aOffset + i] * b[bOffset + i];
+		}
+		return dot;
+	}
+
+	@Override
+	public void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			y[yOffset + i] += a * x[xOffset + i];
+		}
+	}
+
+	@Override
+	public void axpby(double a, double[] x, int xOffset, double b, double[] y, int yOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			y[yOffset + i] = a * x[xOffset + i] + b * y[yOffset + i];
+		}
+	}
+
+	/**
+	 * The sixteen sums stay in registers for the whole returns block, each step
+	 * loads eight returns for sixteen multiply-adds. Every sum is still
+	 * accumulated in the order of the returns, as the plain dot product.
+	 */
+	@Override
+	public void covarianceMicroKernel(double[] rowPanel, int row, double[] columnPanel, int column, int returns,
+			double[] tile, int tileSize) {
+		int a = row * returns;
+		int b = column * returns;
+
+		int t0 = row * tileSize + column;
+		int t1 = t0 + tileSize;
+		int t2 = t1 + tileSize;
+		int t3 = t2 + tileSize;
+		double c00 = tile[t0], c01 = tile[t0 + 1], c02 = tile[t0 + 2], c03 = tile[t0 + 3];
+		double c10 = tile[t1], c11 = tile[t1 + 1], c12 = tile[t1 + 2], c13 = tile[t1 + 3];
+		double c20 = tile[t2], c21 = tile[t2 + 1], c22 = tile[t2 + 2], c23 = tile[t2 + 3];
+		double c30 = tile[t3], c31 = tile[t3 + 1], c32 = tile[t3 + 2], c33 = tile[t3 + 3];
+
+		for (int k = 0; k < returns; k++) {
+			double a0 = rowPanel[a];
+			double a1 = rowPanel[a + 1];
+			double a2 = rowPanel[a + 2];
+			double a3 = rowPanel[a + 3];
+			double b0 = columnPanel[b];
+			double b1 = columnPanel[b + 1];
+			double b2 = columnPanel[b + 2];
+			double b3 = columnPanel[b + 3];
+			a += 4;
+			b += 4;
+
+			c00 += a0 * b0;
+			c01 += a0 * b1;
+			c02 += a0 * b2;
+			c03 += a0 * b3;
+			c10 += a1 * b0;
+			c11 += a1 * b1;
+			c12 += a1 * b2;
+			c13 += a1 * b3;
+			c20 += a2 * b0;
+			c21 += a2 * b1;
+			c22 += a2 * b2;
+			c23 += a2 * b3;
+			c30 += a3 * b0;
+			c31 += a3 * b1;
+			c32 += a3 * b2;
+			c33 += a3 * b3;
+		}
+
+		tile[t0] = c00;
+		tile[t0 + 1] = c01;
+		tile[t0 + 2] = c02;
+		tile[t0 + 3] = c03;
+		tile[t1] = c10;
+		tile[t1 + 1] = c11;
+		tile[t1 + 2] = c12;
+		tile[t1 + 3] = c13;
+		tile[t2] = c20;
+		tile[t2 + 1] = c21;
+		tile[t2 + 2] = c22;
+		tile[t2 + 3] = c23;
+		tile[t3] = c30;
+		tile[t3 + 1] = c31;
+		tile[t3 + 2] = c32;
+		tile[t3 + 3] = c33;
+	}
+}
@@ -0,0 +1,470 @@
+package gpu.linalg;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
+
+/**
+ * Blocked right-looking Cholesky factorisation A = LL' of a dense, row major,
+ * symmetric positive semi-definite matrix, in place.
+ *
+ * The matrix is processed by panels of {@link #BLOCK_SIZE} columns. The
+ * diagonal block of a panel is factored on the calling thread, the rows below
+ * it are solved in parallel, and the trailing matrix receives the symmetric
+ * rank-{@link #BLOCK_SIZE} update A<sub>22</sub> -= L<sub>21</sub>L<sub>21</sub>'
+ * by tiles of its lower triangle, split evenly over the tasks. The tiles are
+ * computed by the micro kernel of {@link JavaKernels} as in the
+ * SymmetricCovarianceBuilder of gpu.var, where the trailing update is the
+ * same symmetric rank-k product.
+ *
+ * L overwrites the lower triangle, the strict upper triangle is left untouched
+ * and therefore still holds the matrix. The covariance matrices of duplicated
+ * instruments are only semi-definite: a pivot below the tolerance of LAPACK's
+ * dpstrf, N ulps of the largest variance, is the pivot of an instrument that
+ * depends on the previous ones. Its column of L is set to zero instead of
+ * failing, which keeps the factorisation blocked and parallel where a pivoted
+ * one would have to search and swap the whole trailing matrix at every column.
+ *
+ * On nearly collinear matrices a pivot keeps only a few digits of its variance,
+ * and its inverse amplifies the rounding of the next pivots: the true zeros of
+ * the dependent instruments become positive, inflating the rank, or negative
+ * beyond the tolerance. When a pivot falls below sqrt(ulp) of its variance
+ * without being deflated, or below minus the tolerance, the lower triangle is
+ * restored from the strict upper one and factored again with symmetric
+ * pivoting on the largest remaining pivot, as dpstrf: P'AP = LL', see
+ * {@link #getPivots()}. This fallback is left-looking, column by column, only
+ * the rows of a column being computed in parallel.
+ *
+ * The parallel scaling has not been measured: near linear scaling on 8k x 8k
+ * matrices across many cores is untested.
+ */
+public final class BlockedCholesky {
+
+	// Must be a multiple of TILE_SIZE so that the trailing tiles stay aligned
+	public static final int BLOCK_SIZE = 128;
+	static final int TILE_SIZE = 64;
+	// Must divide TILE_SIZE, see JavaKernels.covarianceMicroKernel
+	static final int MICRO_TILE_SIZE = 4;
+	static final int ROWS_PER_TASK = 64;
+	static final int TILES_PER_TASK = 8;
+	// Smallest pivot trusted by the unpivoted pass, relative to its variance
+	private static final double RELATIVE_PIVOT = Math.sqrt(Math.ulp(1.0));
+
+	private final int size;
+	private final JavaKernels kernels;
+	private final ExecutorService executorService;
+	// [2 * t] row tile, [2 * t + 1] column tile of the t-th lower triangle tile,
+	// by decreasing column tiles so that the tiles of a trailing matrix are a prefix
+	private final int[] tiles;
+	// [tile] rows of L21 of the current panel in the tile, in micro panels of
+	// MICRO_TILE_SIZE rows interleaved column by column
+	private final double[][] panels;
+	// [chunk] tile buffers of the tasks
+	private double[][] scratch = new double[0][];
+	private final ParallelRange.RangeTask solveTask = this::solveRows;
+	private final ParallelRange.RangeTask updateTask = this::updateTiles;
+	private final ParallelRange.RangeTask pivotedColumnTask = this::solvePivotedRows;
+	// Diagonal of the matrix, overwritten by the unpivoted pass
+	private final double[] diagonal;
+	// Remaining pivots of the pivoted pass
+	private final double[] remainingPivots;
+	// Row i of L is the row pivots[i] of the matrix
+	private final int[] pivots;
+	private boolean pivoted;
+	private double[] solveBuffer;
+
+	// State of the current factorisation
+	private double[] matrix;
+	private int panelStart;
+	private int panelSize;
+	private int pivotColumn;
+	private double tolerance;
+	private int rank;
+
+	/**
+	 * Factorisation on the common fork join pool, the engines pass their own
+	 * executor
+	 */
+	public BlockedCholesky(int size) {
+		this(size, JavaKernels.preferred(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param size            the number of rows and columns of the matrices
+	 * @param executorService executor running the panel solves and the trailing
+	 *                        updates, it is not shut down
+	 */
+	public BlockedCholesky(int size, JavaKernels kernels, ExecutorService executorService) {
+		if (size < 1) {
+			throw new IllegalArgumentException(String.format("Invalid size=%d, the size must be positive", size));
+		}
+		this.size = size;
+		this.kernels = kernels;
+		this.executorService = executorService;
+		int tilesPerSide = (size + TILE_SIZE - 1) / TILE_SIZE;
+		this.tiles = new int[tilesPerSide * (tilesPerSide + 1)];
+		int t = 0;
+		for (int columnTile = tilesPerSide - 1; columnTile >= 0; columnTile--) {
+			for (int rowTile = columnTile; rowTile < tilesPerSide; rowTile++) {
+				tiles[t++] = rowTile;
+				tiles[t++] = columnTile;
+			}
+		}
+		this.panels = new double[tilesPerSide][TILE_SIZE * BLOCK_SIZE];
+		this.diagonal = new double[size];
+		this.remainingPivots = new double[size];
+		this.pivots = new int[size];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the rank found by the last factorisation, the number of non zero
+	 *         columns of L
+	 */
+	public int getRank() {
+		return rank;
+	}
+
+	/**
+	 * @return true when the last factorisation fell back to symmetric pivoting
+	 */
+	public boolean isPivoted() {
+		return pivoted;
+	}
+
+	/**
+	 * @return the permutation of the last factorisation, row i of L is the row
+	 *         pivots[i] of the matrix: A[pivots[i]][pivots[j]] = (LL')[i][j].
+	 *         The identity unless {@link #isPivoted()}.
+	 */
+	public int[] getPivots() {
+		return pivots.clone();
+	}
+
+	/**
+	 * Factor the matrix in place. The scratch buffers are kept from one
+	 * factorisation to the next, an instance therefore runs a single
+	 * factorisation at a time.
+	 *
+	 * @param matrix the size x size symmetric matrix, row major. The lower
+	 *               triangle is factored, the strict upper triangle is only read
+	 *               to restart the pivoted fallback.
+	 * @return the rank of the matrix
+	 * @throws IllegalArgumentException when the matrix is not positive
+	 *                                  semi-definite, a pivot of the pivoted
+	 *                                  fallback being negative beyond the
+	 *                                  tolerance. The lower triangle is then
+	 *                                  overwritten.
+	 */
+	public int factor(double[] matrix) {
+		if (matrix.length < (long) size * size) {
+			throw new IllegalArgumentException(
+					String.format("Expected %d x %d values but got %d", size, size, matrix.length));
+		}
+		double largest = 0;
+		for (int i = 0; i < size; i++) {
+			diagonal[i] = matrix[i * size + i];
+			largest = Math.max(largest, diagonal[i]);
+			pivots[i] = i;
+		}
+		this.tolerance = size * Math.ulp(1.0) * largest;
+		this.matrix = matrix;
+		this.pivoted = false;
+		try {
+			if (!factorBlocked()) {
+				restore(matrix);
+				factorPivoted();
+			}
+		} finally {
+			// Do not retain the array of the caller
+			this.matrix = null;
+		}
+		return rank;
+	}
+
+	/**
+	 * @return false when the pivots of the diagonal blocks are not trusted, the
+	 *         lower triangle is then partly overwritten
+	 */
+	private boolean factorBlocked() {
+		rank = size;
+		for (panelStart = 0; panelStart < size; panelStart += BLOCK_SIZE) {
+			panelSize = Math.min(BLOCK_SIZE, size - panelStart);
+			int trailingStart = panelStart + panelSize;
+			if (!factorDiagonalBlock()) {
+				return false;
+			}
+			if (trailingStart == size) {
+				break;
+			}
+			ParallelRange.execute(executorService, size - trailingStart, ROWS_PER_TASK, solveTask);
+
+			int trailingTiles = (size + TILE_SIZE - 1) / TILE_SIZE - trailingStart / TILE_SIZE;
+			int numberOfTiles = trailingTiles * (trailingTiles + 1) / 2;
+			int chunks = ParallelRange.numberOfChunks(numberOfTiles, TILES_PER_TASK);
+			if (scratch.length < chunks) {
+				scratch = Arrays.copyOf(scratch, chunks);
+			}
+			ParallelRange.execute(executorService, numberOfTiles, TILES_PER_TASK, updateTask);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the matrix of the last factorisation back into the lower triangle of
+	 * its factor, from the strict upper triangle, which the factorisation does
+	 * not write, and the diagonal saved by it. The factor can then be used as
+	 * scratch space and given back to the owner of the matrix.
+	 *
+	 * @param matrix the matrix factored by the last call of
+	 *               {@link #factor(double[])}
+	 */
+	public void restore(double[] matrix) {
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < i; j++) {
+				matrix[i * size + j] = matrix[j * size + i];
+			}
+			matrix[i * size + i] = diagonal[i];
+		}
+	}
+
+	/**
+	 * Left-looking Cholesky with symmetric pivoting on the largest remaining
+	 * pivot, within the lower triangle (LAPACK's dpstf2). It stops at the rank,
+	 * once the remaining pivots are all below the tolerance, and zeroes the
+	 * trailing columns.
+	 */
+	private void factorPivoted() {
+		pivoted = true;
+		System.arraycopy(diagonal, 0, remainingPivots, 0, size);
+		for (int j = 0; j < size; j++) {
+			int q = j;
+			for (int i = j + 1; i < size; i++) {
+				if (remainingPivots[i] > remainingPivots[q]) {
+					q = i;
+				}
+			}
+			if (remainingPivots[q] <= tolerance) {
+				for (int i = j; i < size; i++) {
+					if (remainingPivots[i] < -tolerance) {
+						throw new IllegalArgumentException(String.format(
+								"The matrix is not positive semi-definite, pivot %d is %e", pivots[i],
+								remainingPivots[i]));
+					}
+					Arrays.fill(matrix, i * size + j, i * size + i + 1, 0);
+				}
+				rank = j;
+				return;
+			}
+			swap(j, q);
+			matrix[j * size + j] = Math.sqrt(remainingPivots[j]);
+			pivotColumn = j;
+			ParallelRange.execute(executorService, size - j - 1, ROWS_PER_TASK, pivotedColumnTask);
+		}
+		rank = size;
+	}
+
+	/**
+	 * Swap the rows and columns j < q of the lower triangle, the rows of L
+	 * already computed and the remaining pivots
+	 */
+	private void swap(int j, int q) {
+		if (j == q) {
+			return;
+		}
+		for (int k = 0; k < j; k++) {
+			swapEntries(j * size + k, q * size + k);
+		}
+		for (int i = j + 1; i < q; i++) {
+			swapEntries(i * size + j, q * size + i);
+		}
+		for (int i = q + 1; i < size; i++) {
+			swapEntries(i * size + j, i * size + q);
+		}
+		double pivot = remainingPivots[j];
+		remainingPivots[j] = remainingPivots[q];
+		remainingPivots[q] = pivot;
+		int row = pivots[j];
+		pivots[j] = pivots[q];
+		pivots[q] = row;
+	}
+
+	private void swapEntries(int first, int second) {
+		double value = matrix[first];
+		matrix[first] = matrix[second];
+		matrix[second] = value;
+	}
+
+	/**
+	 * Compute the rows [start, end) below the diagonal of the pivot column and
+	 * update their remaining pivots
+	 */
+	private void solvePivotedRows(int chunk, int start, int end) {
+		int c = pivotColumn;
+		double pivot = matrix[c * size + c];
+		for (int r = c + 1 + start; r < c + 1 + end; r++) {
+			int row = r * size;
+			double value = (matrix[row + c] - kernels.dot(matrix, row, matrix, c * size, c)) / pivot;
+			matrix[row + c] = value;
+			remainingPivots[r] -= value * value;
+		}
+	}
+
+	/**
+	 * Solve A x = b in place with the factor of a full rank matrix, and the
+	 * pivots of the last factorisation
+	 *
+	 * @param factor the matrix factored by {@link #factor(double[])}
+	 * @param b      the right hand side, replaced by the solution
+	 */
+	public void solve(double[] factor, double[] b) {
+		if (rank < size) {
+			throw new IllegalStateException(
+					String.format("The matrix is singular, its rank is %d out of %d", rank, size));
+		}
+		double[] y = b;
+		if (pivoted) {
+			if (solveBuffer == null) {
+				solveBuffer = new double[size];
+			}
+			y = solveBuffer;
+			for (int i = 0; i < size; i++) {
+				y[i] = b[pivots[i]];
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			y[i] = (y[i] - kernels.dot(factor, i * size, y, 0, i)) / factor[i * size + i];
+		}
+		for (int i = size - 1; i >= 0; i--) {
+			double value = y[i];
+			for (int k = i + 1; k < size; k++) {
+				value -= factor[k * size + i] * y[k];
+			}
+			y[i] = value / factor[i * size + i];
+		}
+		if (pivoted) {
+			for (int i = 0; i < size; i++) {
+				b[pivots[i]] = y[i];
+			}
+		}
+	}
+
+	/**
+	 * Left-looking factorisation of the diagonal block of the panel, the
+	 * previous panels have already been subtracted from it
+	 *
+	 * @return false when a pivot is negative beyond the tolerance, or positive
+	 *         but with less than half the digits of its variance
+	 */
+	private boolean factorDiagonalBlock() {
+		for (int c = panelStart; c < panelStart + panelSize; c++) {
+			int row = c * size;
+			double pivot = matrix[row + c] - kernels.dot(matrix, row + panelStart, matrix, row + panelStart,
+					c - panelStart);
+			double diagonal;
+			if (pivot > tolerance && pivot < RELATIVE_PIVOT * this.diagonal[c]) {
+				// Its inverse would amplify the rounding of the next pivots
+				return false;
+			} else if (pivot > tolerance) {
+				diagonal = Math.sqrt(pivot);
+			} else if (pivot >= -tolerance) {
+				diagonal = 0;
+				rank--;
+			} else {
+				return false;
+			}
+			matrix[row + c] = diagonal;
+			for (int r = c + 1; r < panelStart + panelSize; r++) {
+				solve(r, c, diagonal);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Solve the rows [start, end) of L21 against the diagonal block and pack
+	 * them for the trailing update
+	 */
+	private void solveRows(int chunk, int start, int end) {
+		int trailingStart = panelStart + panelSize;
+		for (int r = trailingStart + start; r < trailingStart + end; r++) {
+			for (int c = panelStart; c < panelStart + panelSize; c++) {
+				solve(r, c, matrix[c * size + c]);
+			}
+			pack(r, matrix, r * size + panelStart);
+		}
+		// Pad the last micro panel with zeros
+		if (trailingStart + end == size) {
+			for (int r = size; r % MICRO_TILE_SIZE != 0; r++) {
+				pack(r, null, 0);
+			}
+		}
+	}
+
+	/**
+	 * Copy the panel columns of the row r, or zeros when values is null, into the
+	 * micro panels of its tile, see SymmetricCovarianceBuilder.pack
+	 */
+	private void pack(int r, double[] values, int offset) {
+		double[] tilePanel = panels[r / TILE_SIZE];
+		int local = r % TILE_SIZE;
+		int destination = (local - local % MICRO_TILE_SIZE) * panelSize + local % MICRO_TILE_SIZE;
+		for (int k = 0; k < panelSize; k++) {
+			tilePanel[destination + k * MICRO_TILE_SIZE] = values == null ? 0 : values[offset + k];
+		}
+	}
+
+	/**
+	 * L[r][c] = (A[r][c] - L[r][panelStart, c) . L[c][panelStart, c)) / L[c][c],
+	 * zero in the column of a dependent instrument
+	 */
+	private void solve(int r, int c, double diagonal) {
+		int row = r * size;
+		if (diagonal == 0) {
+			matrix[row + c] = 0;
+			return;
+		}
+		matrix[row + c] = (matrix[row + c]
+				- kernels.dot(matrix, row + panelStart, matrix, c * size + panelStart, c - panelStart)) / diagonal;
+	}
+
+	/**
+	 * Subtract L21 L21' from the trailing tiles [fromTile, toTile)
+	 */
+	private void updateTiles(int chunk, int fromTile, int toTile) {
+		if (scratch[chunk] == null) {
+			scratch[chunk] = new double[TILE_SIZE * TILE_SIZE];
+		}
+		double[] tile = scratch[chunk];
+		for (int t = fromTile; t < toTile; t++) {
+			int rowStart = tiles[2 * t] * TILE_SIZE;
+			int columnStart = tiles[2 * t + 1] * TILE_SIZE;
+			int rows = Math.min(TILE_SIZE, size - rowStart);
+			int columns = Math.min(TILE_SIZE, size - columnStart);
+			boolean diagonal = rowStart == columnStart;
+
+			double[] rowPanel = panels[tiles[2 * t]];
+			double[] columnPanel = panels[tiles[2 * t + 1]];
+			Arrays.fill(tile, 0);
+			for (int r = 0; r < rows; r += MICRO_TILE_SIZE) {
+				// On a diagonal tile the micro tiles above the diagonal are not needed
+				for (int c = 0; c < (diagonal ? r + MICRO_TILE_SIZE : columns); c += MICRO_TILE_SIZE) {
+					kernels.covarianceMicroKernel(rowPanel, r, columnPanel, c, panelSize, tile, TILE_SIZE);
+				}
+			}
+			for (int r = 0; r < rows; r++) {
+				int destination = (rowStart + r) * size + columnStart;
+				int source = r * TILE_SIZE;
+				for (int c = 0; c < (diagonal ? r + 1 : columns); c++) {
+					matrix[destination + c] -= tile[source + c];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package gpu.mm;
+
+import java.util.Arrays;
+
+import gpu.kernels.JavaKernels;
+
+/**
+ * Blocked product R = A L' of a row major matrix A and the transpose of a
+ * lower triangular matrix L, e.g. the correlated scenarios ZL' of independent
+ * normals Z and a Cholesky factor L.
+ *
+ * R[s][i] = Σ<sub>k ≤ i</sub> A[s][k] L[i][k] reads the rows of A and of L
+ * along k. Both are packed by blocks of {@link #DEPTH_BLOCK_SIZE} columns into
+ * micro panels of {@link #MICRO_TILE_SIZE} rows, and multiplied by the register
+ * tiled micro kernel of {@link JavaKernels}, as the covariance tiles of
+ * the SymmetricCovarianceBuilder of gpu.var. A block of columns starting at k0
+ * only meets the rows of L from k0 on, the product therefore does half the
+ * work of a dense one, and the strict upper triangle of L is never read.
+ *
+ * An instance keeps its packed panels and runs on the calling thread, the
+ * callers split A by rows with one instance per task.
+ */
+public final class TriangularMatrixMultiplicationJava {
+
+	static final int TILE_SIZE = 64;
+	// Must divide TILE_SIZE, see JavaKernels.covarianceMicroKernel
+	static final int MICRO_TILE_SIZE = 4;
+	static final int DEPTH_BLOCK_SIZE = 256;
+
+	private final JavaKernels kernels;
+	private final double[] rowPanel = new double[TILE_SIZE * DEPTH_BLOCK_SIZE];
+	private final double[] columnPanel = new double[TILE_SIZE * DEPTH_BLOCK_SIZE];
+	private final double[] tile = new double[TILE_SIZE * TILE_SIZE];
+
+	public TriangularMatrixMultiplicationJava() {
+		this(JavaKernels.preferred());
+	}
+
+	public TriangularMatrixMultiplicationJava(JavaKernels kernels) {
+		this.kernels = kernels;
+	}
+
+	/**
+	 * Compute R = A L'
+	 *
+	 * @param matrixA the rows x depth matrix A, row major
+	 * @param lower   the size x size matrix L, row major, only its lower triangle
+	 *                is read
+	 * @param depth   the number of leading columns of L which are not all zero,
+	 *                at most size
+	 * @param result  the rows x size matrix R, row major
+	 */
+	public void multiply(double[] matrixA, int rows, int depth, double[] lower, int size, double[] result) {
+		if (depth > size) {
+			throw new IllegalArgumentException(
+					String.format("Invalid depth=%d, L has only %d columns", depth, size));
+		}
+		if (matrixA.length < rows * depth || lower.length < size * size || result.length < rows * size) {
+			throw new IllegalArgumentException(String.format(
+					"Expected A of %d x %d, L of %d x %d and R of %d x %d values but got %d, %d and %d", rows, depth,
+					size, size, rows, size, matrixA.length, lower.length, result.length));
+		}
+		Arrays.fill(result, 0, rows * size, 0);
+		for (int depthStart = 0; depthStart < depth; depthStart += DEPTH_BLOCK_SIZE) {
+			int columns = Math.min(DEPTH_BLOCK_SIZE, depth - depthStart);
+			for (int rowStart = 0; rowStart < rows; rowStart += TILE_SIZE) {
+				int tileRows = Math.min(TILE_SIZE, rows - rowStart);
+				pack(matrixA, depth, rowStart, tileRows, depthStart, columns, false, rowPanel);
+				// The rows of L above depthStart are zero in this block
+				int firstLowerRow = depthStart - depthStart % TILE_SIZE;
+				for (int lowerStart = firstLowerRow; lowerStart < size; lowerStart += TILE_SIZE) {
+					int lowerRows = Math.min(TILE_SIZE, size - lowerStart);
+					pack(lower, size, lowerStart, lowerRows, depthStart, columns, true, columnPanel);
+					Arrays.fill(tile, 0);
+					for (int r = 0; r < tileRows; r += MICRO_TILE_SIZE) {
+						for (int c = 0; c < lowerRows; c += MICRO_TILE_SIZE) {
+							if (lowerStart + c + MICRO_TILE_SIZE > depthStart) {
+								kernels.covarianceMicroKernel(rowPanel, r, columnPanel, c, columns, tile, TILE_SIZE);
+							}
+						}
+					}
+					for (int r = 0; r < tileRows; r++) {
+						int destination = (rowStart + r) * size + lowerStart;
+						for (int c = 0; c < lowerRows; c++) {
+							result[destination + c] += tile[r * TILE_SIZE + c];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the columns [columnStart, columnStart + columns) of the rows
+	 * [rowStart, rowStart + rows) into micro panels of
+	 * <code>MICRO_TILE_SIZE</code> rows interleaved column by column, see
+	 * SymmetricCovarianceBuilder.pack. The missing rows of the last micro panel,
+	 * and the entries above the diagonal of a lower triangular matrix, are zeros.
+	 */
+	private static void pack(double[] matrix, int width, int rowStart, int rows, int columnStart, int columns,
+			boolean lowerTriangular, double[] panel) {
+		for (int p = 0; p < rows; p += MICRO_TILE_SIZE) {
+			int offset = p * columns;
+			for (int q = 0; q < MICRO_TILE_SIZE; q++) {
+				int row = rowStart + p + q;
+				int stored = 0;
+				if (p + q < rows) {
+					stored = lowerTriangular ? Math.max(0, Math.min(columns, row - columnStart + 1)) : columns;
+				}
+				int source = row * width + columnStart;
+				for (int k = 0; k < stored; k++) {
+					panel[offset + k * MICRO_TILE_SIZE + q] = matrix[source + k];
+				}
+				for (int k = stored; k < columns; k++) {
+					panel[offset + k * MICRO_TILE_SIZE + q] = 0;
+				}
+			}
+		}
+	}
+}
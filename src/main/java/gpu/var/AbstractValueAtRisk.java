@@ -1,14 +1,39 @@
 package gpu.var;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
+
+/**
+ * Base of the Value at Risk engines.
+ *
+ * The array getters return live views of the buffers of the engine, so that a
+ * reused engine does not allocate: they are valid until the next execution,
+ * which overwrites them in place, and must not be modified.
+ * {@link #getResult()} takes a copy of the results.
+ */
 public abstract class AbstractValueAtRisk implements ValueAtRisk {
-	
+
+	// PERCENTILES.values() clones the constants on every call
+	protected static final PERCENTILES[] PERCENTILES_VALUES = PERCENTILES.values();
+
 	protected boolean debug;
+	// Print the results of every execution
+	protected boolean verbose = true;
 	protected int numberOfInstruments;
 	protected int numberOfObservations;
 	protected double[] varianceCovarienceMatrix;
+	// Layout of varianceCovarienceMatrix, null when the matrix is not materialised
+	protected final CovarianceStorage covarianceStorage;
 
-	// [0] Average price, [1] Average return
-
+	// Average return of every instrument
+	protected final double[] instrumentsAverageReturns;
+	// Σw, the covariance of every instrument with the portfolio
+	protected final double[] covarianceTimesWeights;
+	// w<sub>i</sub>(Σw)<sub>i</sub>, sums to the portfolio variance
 	protected double[] weightedCovariance;
 	protected double weightedAverageReturns = 0;
 	protected double portfolioStandardDeviation = 0;
@@ -17,35 +42,155 @@ public abstract class AbstractValueAtRisk implements ValueAtRisk {
 	protected double[] VaRValue = new double[PERCENTILES.values().length];
 
 	protected double portfolioValue;
+	// Inner loops of the Java code paths
+	protected JavaKernels kernels = JavaKernels.preferred();
 	// input
 	protected double[] instrumentsValueHistory;
 	// input
 	protected double[] instrumentsWeight;
-	
+
+	// Working buffers of reduceVarianceCovarianceMatrix, reused across runs
+	private final ParallelRange.RangeTask reductionTask = this::reduceRows;
+	private double[] weightedAverageReturnsBuffer = new double[0];
+	private double[] varianceBuffer = new double[0];
+	// False when covarianceTimesWeights is already known, see reduceRows
+	private boolean reductionProduct;
+	// Working buffers of multiplyVarianceCovarianceMatrix
+	private final ParallelRange.RangeTask productTask = this::multiplyRows;
+	private final ParallelRange.RangeTask packedGatherTask = this::gatherPackedColumns;
+	private double[] productVector;
+	private double[] productResult;
+	private double[] productScatterBuffer = new double[0];
+	private int productGrainSize;
+	// [percentile][instrument] VaR contributions, see computeVarContributions
+	private double[][] marginalVaR;
+	private double[][] componentVaR;
+	private double[][] percentageContribution;
+
 	public AbstractValueAtRisk(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
 			int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, CovarianceStorage.DENSE);
+	}
+
+	/**
+	 * @param covarianceStorage layout of the variance covariance matrix, null
+	 *                          for the engines that never materialise it
+	 */
+	protected AbstractValueAtRisk(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, CovarianceStorage covarianceStorage) {
 		this.numberOfInstruments = numberOfInstruments;
 		this.instrumentsWeight = instrumentsWeight;
 		this.numberOfObservations = numberOfObservations;
 		this.instrumentsValueHistory = instrumentsValueHistory;
 
-		this.varianceCovarienceMatrix = new double[numberOfInstruments * numberOfInstruments];
+		this.covarianceStorage = covarianceStorage;
+		if (covarianceStorage != null) {
+			this.varianceCovarienceMatrix = covarianceStorage.allocate(numberOfInstruments);
+		}
+		this.instrumentsAverageReturns = new double[numberOfInstruments];
+		this.covarianceTimesWeights = new double[numberOfInstruments];
 		this.weightedCovariance = new double[numberOfInstruments];
 		this.portfolioValue = portfolioValue;
 		this.debug = debug;
 	}
 
-	
+
+	/**
+	 * Replace the weights, in place or by another array of at least
+	 * <code>numberOfInstruments</code> weights. The next {@link #execute()} uses
+	 * them.
+	 */
+	public void setInstrumentsWeight(double[] instrumentsWeight) {
+		if (instrumentsWeight.length < numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d instrument weights but got %d",
+					numberOfInstruments, instrumentsWeight.length));
+		}
+		this.instrumentsWeight = instrumentsWeight;
+	}
+
+	/**
+	 * Replace the history, in place or by another array of at least
+	 * <code>numberOfInstruments</code> x <code>numberOfObservations</code>
+	 * values. The next {@link #execute()} uses it.
+	 */
+	public void setInstrumentsValueHistory(double[] instrumentsValueHistory) {
+		if (instrumentsValueHistory.length < (long) numberOfInstruments * numberOfObservations) {
+			throw new IllegalArgumentException(String.format("Expected %d x %d instrument values but got %d",
+					numberOfInstruments, numberOfObservations, instrumentsValueHistory.length));
+		}
+		this.instrumentsValueHistory = instrumentsValueHistory;
+	}
+
+	public void setPortfolioValue(double portfolioValue) {
+		this.portfolioValue = portfolioValue;
+	}
+
+	/**
+	 * Print the results of every execution, true by default. Printing allocates,
+	 * it is therefore disabled on the allocation free path.
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Run {@link #execute()} on the executor of
+	 * {@link ValueAtRiskExecutors#getSharedAsyncExecutor()}
+	 */
+	public CompletableFuture<ValueAtRiskResult> executeAsync() {
+		return executeAsync(ValueAtRiskExecutors.getSharedAsyncExecutor());
+	}
+
+	/**
+	 * Run {@link #execute()} on the executor and complete with a snapshot of its
+	 * results, or exceptionally with its exception. The asynchronous runs of an
+	 * engine are serialised. The inputs are read when the run starts, they
+	 * must not be replaced until the future completes.
+	 *
+	 * @param executor executor of the run, it must not be the executor of the
+	 *                 computations of the engine unless it runs them on the
+	 *                 calling thread, see
+	 *                 {@link ValueAtRiskExecutors#getSharedAsyncExecutor()}
+	 */
+	public CompletableFuture<ValueAtRiskResult> executeAsync(Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			synchronized (this) {
+				execute();
+				return getResult();
+			}
+		}, executor);
+	}
+
+	/**
+	 * @return a snapshot of the results of the last execution. The getters of
+	 *         the engine return its own arrays, overwritten by the next
+	 *         execution; see {@link ValueAtRiskCalculator} to share one engine
+	 *         between threads.
+	 */
+	public ValueAtRiskResult getResult() {
+		return new ValueAtRiskResult(weightedAverageReturns, portfolioStandardDeviation, portfolioValue, VaRPercent,
+				VaRValue, weightedCovariance);
+	}
+
 	@Override
 	public double getPortfolioStandardDeviation() {
 		return portfolioStandardDeviation;
 	}
 
+	/**
+	 * @return the VaR of every percentile in percent of the portfolio value, a
+	 *         live view valid until the next execution
+	 */
 	@Override
 	public double[] getVaRPercent() {
 		return VaRPercent;
 	}
 
+	/**
+	 * @return the VaR of every percentile, a live view valid until the next
+	 *         execution
+	 */
 	@Override
 	public double[] getVaRValue() {
 		return VaRValue;
@@ -58,7 +203,15 @@ public abstract class AbstractValueAtRisk implements ValueAtRisk {
 
 	@Override
 	public double getVarianceCovarianceMatrix(int x, int y) {
-		return varianceCovarienceMatrix[x + y * this.numberOfInstruments];
+		if (varianceCovarienceMatrix == null) {
+			throw new UnsupportedOperationException(
+					String.format("%s does not materialise the variance covariance matrix", getClass().getSimpleName()));
+		}
+		return varianceCovarienceMatrix[covarianceStorage.index(numberOfInstruments, y, x)];
+	}
+
+	public CovarianceStorage getCovarianceStorage() {
+		return covarianceStorage;
 	}
 
 	@Override
@@ -66,26 +219,309 @@ public abstract class AbstractValueAtRisk implements ValueAtRisk {
 		return weightedAverageReturns;
 	}
 
+	/**
+	 * @return w<sub>i</sub>(Σw)<sub>i</sub> of every instrument, a live view
+	 *         valid until the next execution
+	 */
 	@Override
 	public double[] getWeightedCovariance() {
 		return weightedCovariance;
 	}
 
+	/**
+	 * @return Σw, the covariance of every instrument with the portfolio, a live
+	 *         view valid until the next execution
+	 */
+	public double[] getCovarianceTimesWeights() {
+		return covarianceTimesWeights;
+	}
+
+	/**
+	 * @return the marginal VaR of every instrument, the derivative of the VaR
+	 *         (in percent of the portfolio value) with respect to its weight,
+	 *         -(μ<sub>i</sub> + z(Σw)<sub>i</sub> / σ). Like the components
+	 *         and the shares, a live view valid until the next execution.
+	 * @throws UnsupportedOperationException for the simulation engines and the
+	 *                                       engines reducing on a device, see
+	 *                                       {@link #isParametric()} and
+	 *                                       {@link #isHostReduced()}
+	 */
+	public double[] getMarginalVaR(PERCENTILES percentile) {
+		return getContributions(marginalVaR)[percentile.ordinal()];
+	}
+
+	/**
+	 * @return the component VaR of every instrument, its weight times its
+	 *         marginal VaR. The components sum to the VaR.
+	 */
+	public double[] getComponentVaR(PERCENTILES percentile) {
+		return getContributions(componentVaR)[percentile.ordinal()];
+	}
+
+	/**
+	 * @return the share of the VaR of every instrument, its component VaR over
+	 *         the VaR. The shares sum to one, or are all zero when the VaR is
+	 *         zero.
+	 */
+	public double[] getPercentageContribution(PERCENTILES percentile) {
+		return getContributions(percentageContribution)[percentile.ordinal()];
+	}
+
+	private double[][] getContributions(double[][] contributions) {
+		if (!isParametric()) {
+			throw new UnsupportedOperationException(String.format(
+					"%s is a simulation engine, its VaR is not decomposed by instrument", getClass().getSimpleName()));
+		}
+		if (!isHostReduced()) {
+			throw new UnsupportedOperationException(String.format(
+					"%s reduces the matrix on the device, its VaR is not decomposed by instrument",
+					getClass().getSimpleName()));
+		}
+		if (contributions == null) {
+			throw new IllegalStateException(
+					String.format("%s has not computed the VaR contributions", getClass().getSimpleName()));
+		}
+		return contributions;
+	}
+
+	/**
+	 * Pre-trade VaR of the portfolio after changing the weights of a few
+	 * positions, from the Σw of the last execution instead of a new reduction
+	 * of the matrix. With Δ the change of the weights, σ'² = σ² + 2Δ'Σw +
+	 * Δ'ΣΔ and μ' = w'μ + Δ'μ: k changed positions cost k reads of Σw and μ and
+	 * the k² covariances of Δ'ΣΔ. The engine is left unchanged.
+	 *
+	 * The result is the normal VaR of μ' and σ', the what-if is therefore only
+	 * consistent with the parametric engines.
+	 *
+	 * @param instruments  the indices of the changed positions
+	 * @param weightDeltas the change of the weight of every position
+	 * @throws UnsupportedOperationException for the simulation engines and the
+	 *                                       engines reducing on a device, see
+	 *                                       {@link #isParametric()} and
+	 *                                       {@link #isHostReduced()}
+	 */
+	public ValueAtRiskResult whatIf(int[] instruments, double[] weightDeltas) {
+		if (!isParametric()) {
+			throw new UnsupportedOperationException(String.format(
+					"%s is a simulation engine, its VaR cannot be updated from Σw", getClass().getSimpleName()));
+		}
+		if (!isHostReduced()) {
+			throw new UnsupportedOperationException(String.format(
+					"%s reduces the matrix on the device, its VaR cannot be updated from Σw",
+					getClass().getSimpleName()));
+		}
+		if (instruments.length != weightDeltas.length) {
+			throw new IllegalArgumentException(String.format("Expected %d weight deltas but got %d",
+					instruments.length, weightDeltas.length));
+		}
+		for (int instrument : instruments) {
+			if (instrument < 0 || instrument >= numberOfInstruments) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid instrument=%d, the instruments are in [0, %d)", instrument, numberOfInstruments));
+			}
+		}
+		if (marginalVaR == null) {
+			throw new IllegalStateException(String.format("%s has not computed Σw", getClass().getSimpleName()));
+		}
+		double weightedAverageReturnsDelta = 0;
+		double covarianceWithPortfolio = 0;
+		for (int k = 0; k < instruments.length; k++) {
+			weightedAverageReturnsDelta += weightDeltas[k] * instrumentsAverageReturns[instruments[k]];
+			covarianceWithPortfolio += weightDeltas[k] * covarianceTimesWeights[instruments[k]];
+		}
+		double variance = portfolioStandardDeviation * portfolioStandardDeviation + 2 * covarianceWithPortfolio
+				+ deltaVariance(instruments, weightDeltas);
+		// Closing the whole portfolio cancels σ² up to the rounding
+		return ValueAtRiskResult.parametric(weightedAverageReturns + weightedAverageReturnsDelta,
+				Math.sqrt(Math.max(variance, 0)), portfolioValue, null);
+	}
+
+	/**
+	 * @return Δ'ΣΔ, the variance of the sparse weight delta
+	 */
+	protected double deltaVariance(int[] instruments, double[] weightDeltas) {
+		double variance = 0;
+		for (int k = 0; k < instruments.length; k++) {
+			double covariance = 0;
+			for (int l = 0; l < instruments.length; l++) {
+				covariance += getVarianceCovarianceMatrix(instruments[k], instruments[l]) * weightDeltas[l];
+			}
+			variance += weightDeltas[k] * covariance;
+		}
+		return variance;
+	}
+
+	/**
+	 * Compute the weighted average return, Σw, the weighted covariance
+	 * w<sub>i</sub>(Σw)<sub>i</sub> of every instrument and the portfolio standard
+	 * deviation sqrt(w'Σw) from the variance covariance matrix and the average
+	 * returns of the instruments
+	 */
+	protected void reduceVarianceCovarianceMatrix(ExecutorService executorService, int grainSize) {
+		if (covarianceStorage == CovarianceStorage.PACKED) {
+			multiplyVarianceCovarianceMatrix(executorService, grainSize, instrumentsWeight, covarianceTimesWeights);
+		}
+		reduce(executorService, grainSize, covarianceStorage == CovarianceStorage.DENSE);
+	}
+
+	/**
+	 * Same reduction as {@link #reduceVarianceCovarianceMatrix} when Σw is
+	 * already in {@link #covarianceTimesWeights}, e.g. from a cache
+	 */
+	protected void reduceCovarianceTimesWeights(ExecutorService executorService, int grainSize) {
+		reduce(executorService, grainSize, false);
+	}
+
+	private void reduce(ExecutorService executorService, int grainSize, boolean product) {
+		int chunks = ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		if (varianceBuffer.length != chunks) {
+			weightedAverageReturnsBuffer = new double[chunks];
+			varianceBuffer = new double[chunks];
+		}
+		reductionProduct = product;
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, reductionTask);
+
+		double variance = 0;
+		weightedAverageReturns = 0;
+		for (int i = 0; i < chunks; i++) {
+			weightedAverageReturns += weightedAverageReturnsBuffer[i];
+			variance += varianceBuffer[i];
+		}
+		portfolioStandardDeviation = Math.sqrt(variance);
+	}
+
+	private void reduceRows(int chunk, int start, int end) {
+		double weightedReturns = 0;
+		double variance = 0;
+		for (int i = start; i < end; i++) {
+			// The rows of the packed matrix are not contiguous, its product is
+			// computed beforehand
+			if (reductionProduct) {
+				covarianceTimesWeights[i] = kernels.dot(varianceCovarienceMatrix, i * numberOfInstruments,
+						instrumentsWeight, 0, numberOfInstruments);
+			}
+			weightedCovariance[i] = instrumentsWeight[i] * covarianceTimesWeights[i];
+			variance += weightedCovariance[i];
+			weightedReturns += instrumentsWeight[i] * instrumentsAverageReturns[i];
+		}
+		weightedAverageReturnsBuffer[chunk] = weightedReturns;
+		varianceBuffer[chunk] = variance;
+	}
+
+	/**
+	 * Compute <code>result = Σ vector</code> with the buffers of the engine, see
+	 * {@link CovarianceProduct}
+	 */
+	protected void multiplyVarianceCovarianceMatrix(ExecutorService executorService, int grainSize, double[] vector,
+			double[] result) {
+		boolean packed = covarianceStorage == CovarianceStorage.PACKED;
+		int productGrain = grainSize;
+		if (packed) {
+			productGrain = CovarianceProduct.packedGrainSize(executorService, numberOfInstruments);
+			int scatterBufferSize = CovarianceProduct.scatterBufferSize(numberOfInstruments, productGrain);
+			if (productScatterBuffer.length != scatterBufferSize) {
+				productScatterBuffer = new double[scatterBufferSize];
+			}
+		}
+		productVector = vector;
+		productResult = result;
+		productGrainSize = productGrain;
+		ParallelRange.execute(executorService, CovarianceProduct.rangeSize(covarianceStorage, numberOfInstruments),
+				productGrain, productTask);
+		if (packed) {
+			ParallelRange.execute(executorService, numberOfInstruments, grainSize, packedGatherTask);
+		}
+		productVector = null;
+		productResult = null;
+	}
+
+	private void multiplyRows(int chunk, int start, int end) {
+		CovarianceProduct.multiplyRows(kernels, covarianceStorage, varianceCovarienceMatrix, numberOfInstruments,
+				productVector, productResult, productScatterBuffer, chunk, start, end);
+	}
+
+	private void gatherPackedColumns(int chunk, int start, int end) {
+		CovarianceProduct.gatherPackedColumns(numberOfInstruments, productGrainSize, productScatterBuffer,
+				productResult, start, end);
+	}
+
 	protected void computeVar() {
-		for (int i = 0; i < PERCENTILES.values().length; i++) {
-			VaRPercent[i] = -(weightedAverageReturns + PERCENTILES.values()[i].zstat * portfolioStandardDeviation);
+		for (int i = 0; i < PERCENTILES_VALUES.length; i++) {
+			VaRPercent[i] = -(weightedAverageReturns + PERCENTILES_VALUES[i].zstat * portfolioStandardDeviation);
 			VaRValue[i] = portfolioValue * VaRPercent[i];
 		}
 	}
-	
+
+	/**
+	 * @return true when the VaR is the normal quantile -(w'μ + zσ), which the
+	 *         contributions and the what-if decompose, false for the simulation
+	 *         engines whose VaR is a quantile of simulated returns
+	 */
+	protected boolean isParametric() {
+		return true;
+	}
+
+	/**
+	 * @return true when the reduction leaves Σw and the average returns of the
+	 *         instruments on the host, false when they stay on a device. The
+	 *         contributions and the what-if read them.
+	 */
+	protected boolean isHostReduced() {
+		return true;
+	}
+
+	/**
+	 * Decompose the variance covariance VaR -(w'μ + zσ) by instrument (Euler
+	 * allocation) from the average returns and Σw, in O(N) once the reduction
+	 * has computed them. Nothing is computed for the simulation engines, nor
+	 * for the engines reducing on a device.
+	 */
+	protected void computeVarContributions() {
+		if (!isParametric() || !isHostReduced()) {
+			return;
+		}
+		if (marginalVaR == null) {
+			marginalVaR = new double[PERCENTILES_VALUES.length][numberOfInstruments];
+			componentVaR = new double[PERCENTILES_VALUES.length][numberOfInstruments];
+			percentageContribution = new double[PERCENTILES_VALUES.length][numberOfInstruments];
+		}
+		// A riskless portfolio only has the contributions of the averages
+		double inverseDeviation = portfolioStandardDeviation > 0 ? 1 / portfolioStandardDeviation : 0;
+		for (int p = 0; p < PERCENTILES_VALUES.length; p++) {
+			double zstat = PERCENTILES_VALUES[p].zstat;
+			double var = -(weightedAverageReturns + zstat * portfolioStandardDeviation);
+			// A zero VaR has no shares, e.g. a portfolio without positions
+			double inverseVar = var != 0 ? 1 / var : 0;
+			double[] marginal = marginalVaR[p];
+			double[] component = componentVaR[p];
+			double[] percentage = percentageContribution[p];
+			for (int i = 0; i < numberOfInstruments; i++) {
+				marginal[i] = -(instrumentsAverageReturns[i] + zstat * covarianceTimesWeights[i] * inverseDeviation);
+				component[i] = instrumentsWeight[i] * marginal[i];
+				percentage[i] = component[i] * inverseVar;
+			}
+		}
+	}
+
 	void printSummary() {
+		if (!verbose) {
+			return;
+		}
 		System.out.println(String.format("Weighted Average Return (%%) = %.5f", weightedAverageReturns * 100));
 		System.out.println(String.format("Portfolio Standard Deviation (%%) = %.5f", portfolioStandardDeviation * 100));
 
-		for (int i = 0; i < PERCENTILES.values().length; i++) {
-			System.out.println(String.format("VCV VaR (%.1f%%) = %.2f%%     VCV VaR (%.1f%%) = $%,.2f",
-					PERCENTILES.values()[i].percentage, VaRPercent[i] * 100, PERCENTILES.values()[i].percentage,
-					VaRValue[i]));
+		for (int i = 0; i < PERCENTILES_VALUES.length; i++) {
+			System.out.println(String.format("%s VaR (%.1f%%) = %.2f%%     %s VaR (%.1f%%) = $%,.2f", summaryLabel(),
+					PERCENTILES_VALUES[i].percentage, VaRPercent[i] * 100, summaryLabel(),
+					PERCENTILES_VALUES[i].percentage, VaRValue[i]));
 		}
 	}
+
+	/**
+	 * @return the name of the VaR method in the summary
+	 */
+	String summaryLabel() {
+		return "VCV";
+	}
 }
\ No newline at end of file
@@ -0,0 +1,330 @@
+package gpu.var;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Least recently used cache of variance covariance matrices, bounded by the
+ * number of bytes of the cached arrays.
+ *
+ * A matrix is keyed by a fingerprint of the price history together with the
+ * number of instruments and observations, so that the VaR of new weights on a
+ * known history only needs the O(N²) reduction of the matrix. The product
+ * Σw of the last weights used on a matrix is cached along with it, keyed by a
+ * fingerprint of the weights, which reduces a repeated call to O(N).
+ *
+ * The cached arrays are shared with the engines and must not be modified. The
+ * fingerprints are 64 bit hashes of the values, not cryptographic digests.
+ * The cache is thread safe, and {@link #computeIfAbsent(Key, Loader)} builds
+ * the matrix of a history once when many threads miss it at the same time.
+ */
+public final class CovarianceCache {
+
+	static final int MAX_COVARIANCES_TIMES_WEIGHTS_PER_ENTRY = 16;
+
+	/**
+	 * Identifies a history: the fingerprint of its values, the number of
+	 * instruments, the number of observations and the layout of the matrix.
+	 */
+	public static final class Key {
+		private final long fingerprint;
+		private final int numberOfInstruments;
+		private final int numberOfObservations;
+		private final CovarianceStorage covarianceStorage;
+
+		Key(long fingerprint, int numberOfInstruments, int numberOfObservations,
+				CovarianceStorage covarianceStorage) {
+			this.fingerprint = fingerprint;
+			this.numberOfInstruments = numberOfInstruments;
+			this.numberOfObservations = numberOfObservations;
+			this.covarianceStorage = covarianceStorage;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Long.hashCode(fingerprint) * 31 + numberOfInstruments * 17 + numberOfObservations) * 2
+					+ covarianceStorage.ordinal();
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) object;
+			return fingerprint == key.fingerprint && numberOfInstruments == key.numberOfInstruments
+					&& numberOfObservations == key.numberOfObservations && covarianceStorage == key.covarianceStorage;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Key[%016x, %d x %d, %s]", fingerprint, numberOfInstruments, numberOfObservations,
+					covarianceStorage);
+		}
+	}
+
+	/**
+	 * A cached matrix with the average returns of the instruments it was built
+	 * from.
+	 */
+	public static final class Entry {
+		private final double[] varianceCovarianceMatrix;
+		private final double[] instrumentsAverageReturns;
+		// Weights fingerprint -> Σw, in access order
+		private final LinkedHashMap<Long, double[]> covariancesTimesWeights = new LinkedHashMap<>(16, 0.75f, true);
+		private long bytes;
+
+		Entry(double[] varianceCovarianceMatrix, double[] instrumentsAverageReturns) {
+			this.varianceCovarianceMatrix = varianceCovarianceMatrix;
+			this.instrumentsAverageReturns = instrumentsAverageReturns;
+			this.bytes = sizeInBytes(varianceCovarianceMatrix) + sizeInBytes(instrumentsAverageReturns);
+		}
+
+		public double[] getVarianceCovarianceMatrix() {
+			return varianceCovarianceMatrix;
+		}
+
+		public double[] getInstrumentsAverageReturns() {
+			return instrumentsAverageReturns;
+		}
+	}
+
+	/**
+	 * Builds the matrix of a history missing from the cache
+	 */
+	@FunctionalInterface
+	public interface Loader {
+		/**
+		 * @param instrumentsAverageReturns receives the average returns of the
+		 *                                  instruments
+		 * @return the variance covariance matrix of the history
+		 */
+		double[] load(double[] instrumentsAverageReturns);
+	}
+
+	private final long maximumBytes;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// Matrices being built by computeIfAbsent
+	private final Map<Key, CompletableFuture<Entry>> loading = new HashMap<>();
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maximumBytes the maximum number of bytes of the cached arrays
+	 */
+	public CovarianceCache(long maximumBytes) {
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid maximumBytes=%d, the cache size must be positive", maximumBytes));
+		}
+		this.maximumBytes = maximumBytes;
+	}
+
+	/**
+	 * @return the key of the first <code>numberOfInstruments</code> x
+	 *         <code>numberOfObservations</code> values of the history, for a
+	 *         dense matrix
+	 */
+	public static Key key(double[] instrumentsValueHistory, int numberOfInstruments, int numberOfObservations) {
+		return key(instrumentsValueHistory, numberOfInstruments, numberOfObservations, CovarianceStorage.DENSE);
+	}
+
+	/**
+	 * @return the key of the history for a matrix in the given storage
+	 */
+	public static Key key(double[] instrumentsValueHistory, int numberOfInstruments, int numberOfObservations,
+			CovarianceStorage covarianceStorage) {
+		return new Key(fingerprint(instrumentsValueHistory, numberOfInstruments * numberOfObservations),
+				numberOfInstruments, numberOfObservations, covarianceStorage);
+	}
+
+	/**
+	 * @return a 64 bit hash of <code>values[0, length)</code>, in O(length)
+	 */
+	public static long fingerprint(double[] values, int length) {
+		long hash = 0x9E3779B97F4A7C15L ^ length;
+		for (int i = 0; i < length; i++) {
+			hash = Long.rotateLeft(hash ^ Double.doubleToLongBits(values[i]) * 0xC2B2AE3D27D4EB4FL, 31)
+					* 0x9E3779B97F4A7C15L;
+		}
+		// Final avalanche (MurmurHash3 fmix64)
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * @return the cached matrix of the history, or null
+	 */
+	public synchronized Entry get(Key key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the cached matrix of the history, built by the loader on a miss.
+	 *         The threads missing the same key while it is built wait for its
+	 *         matrix instead of building their own; a failure of the loader is
+	 *         thrown to all of them and nothing is cached.
+	 */
+	public Entry computeIfAbsent(Key key, Loader loader) {
+		CompletableFuture<Entry> pending;
+		CompletableFuture<Entry> future = null;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits++;
+				return entry;
+			}
+			pending = loading.get(key);
+			if (pending == null) {
+				misses++;
+				future = new CompletableFuture<>();
+				loading.put(key, future);
+			} else {
+				hits++;
+			}
+		}
+		if (pending != null) {
+			// Another thread is building the matrix
+			return join(pending);
+		}
+
+		Entry entry;
+		try {
+			double[] instrumentsAverageReturns = new double[key.numberOfInstruments];
+			entry = new Entry(loader.load(instrumentsAverageReturns), instrumentsAverageReturns);
+		} catch (RuntimeException | Error e) {
+			synchronized (this) {
+				loading.remove(key);
+			}
+			future.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (this) {
+			loading.remove(key);
+			insert(key, entry);
+		}
+		future.complete(entry);
+		return entry;
+	}
+
+	/**
+	 * Cache a matrix and the average returns it was built from. Entries larger
+	 * than the cache are not cached.
+	 */
+	public synchronized void put(Key key, double[] varianceCovarianceMatrix, double[] instrumentsAverageReturns) {
+		insert(key, new Entry(varianceCovarianceMatrix, instrumentsAverageReturns));
+	}
+
+	/**
+	 * @return the product Σw cached for the weights, or null
+	 */
+	public synchronized double[] getCovarianceTimesWeights(Key key, long weightsFingerprint) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : entry.covariancesTimesWeights.get(weightsFingerprint);
+	}
+
+	/**
+	 * Cache the product Σw of the weights along with the matrix of the history,
+	 * if it is still cached.
+	 */
+	public synchronized void putCovarianceTimesWeights(Key key, long weightsFingerprint,
+			double[] covarianceTimesWeights) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return;
+		}
+		double[] previous = entry.covariancesTimesWeights.put(weightsFingerprint, covarianceTimesWeights);
+		long delta = sizeInBytes(covarianceTimesWeights) - (previous == null ? 0 : sizeInBytes(previous));
+		if (entry.covariancesTimesWeights.size() > MAX_COVARIANCES_TIMES_WEIGHTS_PER_ENTRY) {
+			Iterator<double[]> eldest = entry.covariancesTimesWeights.values().iterator();
+			delta -= sizeInBytes(eldest.next());
+			eldest.remove();
+		}
+		entry.bytes += delta;
+		bytes += delta;
+		evict();
+	}
+
+	public synchronized void remove(Key key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			bytes -= entry.bytes;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private void insert(Key key, Entry entry) {
+		remove(key);
+		if (entry.bytes > maximumBytes) {
+			return;
+		}
+		entries.put(key, entry);
+		bytes += entry.bytes;
+		evict();
+	}
+
+	private static Entry join(CompletableFuture<Entry> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maximumBytes && eldest.hasNext()) {
+			bytes -= eldest.next().getValue().bytes;
+			eldest.remove();
+		}
+	}
+
+	private static long sizeInBytes(double[] values) {
+		return (long) values.length * Double.BYTES;
+	}
+}
@@ -0,0 +1,136 @@
+package gpu.var;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
+
+/**
+ * The product <code>result = Σ vector</code> of a variance covariance matrix,
+ * shared by the engines and the calculator.
+ *
+ * With the packed storage, the row [i, i..N) of a task gives the entries on and
+ * above the diagonal of Σvector<sub>i</sub> as a dot product, and its mirror
+ * below the diagonal is scattered into a buffer of the task; the buffers are
+ * summed in a second step. The packed rows shrink along the matrix, a task
+ * therefore takes the rows in pairs i and N - 1 - i of equal total length, and
+ * there is one task per thread of the executor, so that the scatter buffers
+ * take N values per thread whatever the grain size. The buffers are passed by
+ * the caller, so that a reused engine does not allocate.
+ */
+final class CovarianceProduct {
+
+	private CovarianceProduct() {
+	}
+
+	/**
+	 * @return the number of elements of the range of the product tasks: the rows,
+	 *         or the pairs of rows of a packed matrix
+	 */
+	static int rangeSize(CovarianceStorage covarianceStorage, int numberOfInstruments) {
+		return covarianceStorage == CovarianceStorage.PACKED ? (numberOfInstruments + 1) / 2 : numberOfInstruments;
+	}
+
+	/**
+	 * @return the grain size of the tasks of a packed product, one per thread
+	 *         of the executor
+	 */
+	static int packedGrainSize(ExecutorService executorService, int numberOfInstruments) {
+		return ParallelRange.grainSizePerTask(executorService,
+				rangeSize(CovarianceStorage.PACKED, numberOfInstruments));
+	}
+
+	/**
+	 * @return the size of the scatter buffer of a packed product, N values per
+	 *         task
+	 */
+	static int scatterBufferSize(int numberOfInstruments, int packedGrainSize) {
+		return ParallelRange.numberOfChunks(rangeSize(CovarianceStorage.PACKED, numberOfInstruments),
+				packedGrainSize) * numberOfInstruments;
+	}
+
+	/**
+	 * Compute <code>Σ vector</code> in a new array, with the buffers of the call
+	 *
+	 * @param grainSize the number of rows of the tasks of a dense product and of
+	 *                  the gathering of a packed one
+	 */
+	static double[] multiply(ExecutorService executorService, int grainSize, JavaKernels kernels,
+			CovarianceStorage covarianceStorage, double[] varianceCovarianceMatrix, int numberOfInstruments,
+			double[] vector) {
+		double[] result = new double[numberOfInstruments];
+		if (covarianceStorage == CovarianceStorage.DENSE) {
+			ParallelRange.execute(executorService, numberOfInstruments, grainSize,
+					(chunk, start, end) -> multiplyRows(kernels, covarianceStorage, varianceCovarianceMatrix,
+							numberOfInstruments, vector, result, null, chunk, start, end));
+			return result;
+		}
+
+		int packedGrainSize = packedGrainSize(executorService, numberOfInstruments);
+		double[] scatterBuffer = new double[scatterBufferSize(numberOfInstruments, packedGrainSize)];
+		ParallelRange.execute(executorService, rangeSize(covarianceStorage, numberOfInstruments), packedGrainSize,
+				(chunk, start, end) -> multiplyRows(kernels, covarianceStorage, varianceCovarianceMatrix,
+						numberOfInstruments, vector, result, scatterBuffer, chunk, start, end));
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize,
+				(chunk, start, end) -> gatherPackedColumns(numberOfInstruments, packedGrainSize, scatterBuffer, result,
+						start, end));
+		return result;
+	}
+
+	/**
+	 * Compute the rows [start, end) of a dense product. For a packed one,
+	 * compute the rows i and N - 1 - i of the pairs [start, end), and scatter the
+	 * part of the packed rows below the diagonal into the buffer of the chunk.
+	 */
+	static void multiplyRows(JavaKernels kernels, CovarianceStorage covarianceStorage,
+			double[] varianceCovarianceMatrix, int numberOfInstruments, double[] vector, double[] result,
+			double[] scatterBuffer, int chunk, int start, int end) {
+		if (covarianceStorage == CovarianceStorage.DENSE) {
+			for (int i = start; i < end; i++) {
+				result[i] = kernels.dot(varianceCovarianceMatrix, i * numberOfInstruments, vector, 0,
+						numberOfInstruments);
+			}
+			return;
+		}
+
+		// The rows of the chunk are all from start on, and scatter after it
+		int scatter = chunk * numberOfInstruments;
+		Arrays.fill(scatterBuffer, scatter + start, scatter + numberOfInstruments, 0);
+		for (int i = start; i < end; i++) {
+			multiplyPackedRow(kernels, varianceCovarianceMatrix, numberOfInstruments, vector, result, scatterBuffer,
+					scatter, i);
+			int mirror = numberOfInstruments - 1 - i;
+			if (mirror > i) {
+				multiplyPackedRow(kernels, varianceCovarianceMatrix, numberOfInstruments, vector, result,
+						scatterBuffer, scatter, mirror);
+			}
+		}
+	}
+
+	private static void multiplyPackedRow(JavaKernels kernels, double[] varianceCovarianceMatrix,
+			int numberOfInstruments, double[] vector, double[] result, double[] scatterBuffer, int scatter, int i) {
+		int diagonal = CovarianceStorage.rowOffset(numberOfInstruments, i) + i;
+		int length = numberOfInstruments - i;
+		result[i] = kernels.dot(varianceCovarianceMatrix, diagonal, vector, i, length);
+		kernels.axpy(vector[i], varianceCovarianceMatrix, diagonal + 1, scatterBuffer, scatter + i + 1, length - 1);
+	}
+
+	/**
+	 * Add the parts below the diagonal scattered by the chunks to the rows
+	 * [start, end) of a packed product
+	 */
+	static void gatherPackedColumns(int numberOfInstruments, int packedGrainSize, double[] scatterBuffer,
+			double[] result, int start, int end) {
+		int pairs = rangeSize(CovarianceStorage.PACKED, numberOfInstruments);
+		for (int i = start; i < end; i++) {
+			// Only the tasks with a row above i have scattered into column i
+			int firstRows = Math.min(i, pairs);
+			double sum = 0;
+			for (int c = 0; c * packedGrainSize < firstRows; c++) {
+				sum += scatterBuffer[c * numberOfInstruments + i];
+			}
+			result[i] += sum;
+		}
+	}
+}
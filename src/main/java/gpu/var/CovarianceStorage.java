@@ -0,0 +1,96 @@
+package gpu.var;
+
+/**
+ * Layout of the symmetric variance covariance matrix.
+ */
+public enum CovarianceStorage {
+
+	/**
+	 * The N x N matrix, row major
+	 */
+	DENSE {
+		@Override
+		public long size(int numberOfInstruments) {
+			return (long) numberOfInstruments * numberOfInstruments;
+		}
+
+		@Override
+		public int index(int numberOfInstruments, int row, int column) {
+			return row * numberOfInstruments + column;
+		}
+
+		@Override
+		public long offset(int numberOfInstruments, int row, int column) {
+			return (long) row * numberOfInstruments + column;
+		}
+	},
+
+	/**
+	 * The N(N+1)/2 entries of the upper triangle, row major: the entries
+	 * [row, row..N) of a row are contiguous. Half the memory of the dense
+	 * matrix, at the cost of gathering the entries below the diagonal.
+	 */
+	PACKED {
+		@Override
+		public long size(int numberOfInstruments) {
+			return (long) numberOfInstruments * (numberOfInstruments + 1) / 2;
+		}
+
+		@Override
+		public int index(int numberOfInstruments, int row, int column) {
+			if (row > column) {
+				return index(numberOfInstruments, column, row);
+			}
+			return rowOffset(numberOfInstruments, row) + column;
+		}
+
+		@Override
+		public long offset(int numberOfInstruments, int row, int column) {
+			if (row > column) {
+				return offset(numberOfInstruments, column, row);
+			}
+			return longRowOffset(numberOfInstruments, row) + column;
+		}
+	};
+
+	/**
+	 * @return the number of elements holding the matrix
+	 */
+	public abstract long size(int numberOfInstruments);
+
+	/**
+	 * @return the index of the entry [row, column] in the storage
+	 */
+	public abstract int index(int numberOfInstruments, int row, int column);
+
+	/**
+	 * @return the index of the entry [row, column] in storages larger than an
+	 *         array, see {@link OffHeapDoubleArray}
+	 */
+	public abstract long offset(int numberOfInstruments, int row, int column);
+
+	/**
+	 * @return the array holding the matrix
+	 */
+	public double[] allocate(int numberOfInstruments) {
+		long size = size(numberOfInstruments);
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException(String.format(
+					"%d instruments need %d elements in %s storage, more than an array can hold", numberOfInstruments,
+					size, this));
+		}
+		return new double[(int) size];
+	}
+
+	/**
+	 * @return the packed index of [row, 0], i.e. such that the entry [row,
+	 *         column] for column &gt;= row is at <code>rowOffset + column</code>
+	 */
+	static int rowOffset(int numberOfInstruments, int row) {
+		return (int) longRowOffset(numberOfInstruments, row);
+	}
+
+	static long longRowOffset(int numberOfInstruments, int row) {
+		return (long) row * (2L * numberOfInstruments - row - 1) / 2;
+	}
+}
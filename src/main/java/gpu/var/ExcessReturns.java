@@ -0,0 +1,82 @@
+package gpu.var;
+
+import gpu.kernels.JavaKernels;
+
+/**
+ * The fused return, average and centring stage shared by the engines.
+ *
+ * The history is read once, observation by observation, while the returns are
+ * stored instrument by instrument, so that the covariance dot products run over
+ * contiguous memory. The averages are updated on the fly (Welford's running
+ * mean), the centring then only reads back the returns of the instruments
+ * which are still in cache.
+ */
+final class ExcessReturns {
+
+	private ExcessReturns() {
+	}
+
+	/**
+	 * Calculate the averages and the centred excess returns of the instruments
+	 * [start, end) of the observations x instruments history, row major
+	 *
+	 * @param instrumentsExcessReturns the instruments x (observations - 1)
+	 *                                 returns, instrument major
+	 */
+	static void calculate(double[] instrumentsValueHistory, int numberOfInstruments, int numberOfObservations,
+			int start, int end, double[] instrumentsExcessReturns, double[] instrumentsAverageReturns,
+			JavaKernels kernels) {
+		int numberOfReturns = numberOfObservations - 1;
+		for (int i = start; i < end; i++) {
+			instrumentsAverageReturns[i] = 0;
+		}
+		for (int j = 1; j < numberOfObservations; j++) {
+			int previous = numberOfInstruments * (j - 1);
+			int current = numberOfInstruments * j;
+			double inverseCount = 1.0 / j;
+			for (int i = start; i < end; i++) {
+				double returnValue = instrumentsValueHistory[current + i] / instrumentsValueHistory[previous + i] - 1;
+				instrumentsExcessReturns[i * numberOfReturns + j - 1] = returnValue;
+				instrumentsAverageReturns[i] += (returnValue - instrumentsAverageReturns[i]) * inverseCount;
+			}
+		}
+
+		for (int i = start; i < end; i++) {
+			kernels.subtract(instrumentsExcessReturns, i * numberOfReturns, numberOfReturns,
+					instrumentsAverageReturns[i]);
+		}
+	}
+
+	/**
+	 * Same as {@link #calculate(double[], int, int, int, int, double[], double[],
+	 * JavaKernels)} with the history and the returns off heap, addressed by long
+	 * indices
+	 */
+	static void calculate(OffHeapDoubleArray instrumentsValueHistory, int numberOfInstruments,
+			int numberOfObservations, int start, int end, OffHeapDoubleArray instrumentsExcessReturns,
+			double[] instrumentsAverageReturns) {
+		int numberOfReturns = numberOfObservations - 1;
+		for (int i = start; i < end; i++) {
+			instrumentsAverageReturns[i] = 0;
+		}
+		for (int j = 1; j < numberOfObservations; j++) {
+			long previous = (long) numberOfInstruments * (j - 1);
+			long current = (long) numberOfInstruments * j;
+			double inverseCount = 1.0 / j;
+			for (int i = start; i < end; i++) {
+				double returnValue = instrumentsValueHistory.get(current + i) / instrumentsValueHistory.get(previous + i)
+						- 1;
+				instrumentsExcessReturns.set((long) i * numberOfReturns + j - 1, returnValue);
+				instrumentsAverageReturns[i] += (returnValue - instrumentsAverageReturns[i]) * inverseCount;
+			}
+		}
+
+		for (int i = start; i < end; i++) {
+			long offset = (long) i * numberOfReturns;
+			double average = instrumentsAverageReturns[i];
+			for (int k = 0; k < numberOfReturns; k++) {
+				instrumentsExcessReturns.add(offset + k, -average);
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package gpu.var;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Array of doubles outside of the Java heap, indexed with a long.
+ *
+ * A Java array holds at most 2³¹ - 1 elements, i.e. a dense covariance matrix
+ * of at most 46,340 instruments, and a multi-GB array is moved around by the
+ * garbage collector. The values are stored in direct buffers of
+ * 2<sup>segmentShift</sup> doubles, native byte order, which the garbage
+ * collector neither scans nor moves. Their memory is bounded by
+ * <code>-XX:MaxDirectMemorySize</code> and released when the array is garbage
+ * collected. The segments can also be mapped onto a file, see
+ * {@link #map(Path, long)}.
+ *
+ * Distinct indices can be written by distinct threads concurrently, as for a
+ * Java array.
+ */
+public final class OffHeapDoubleArray {
+
+	// 2^27 doubles, 1 GiB per segment
+	public static final int DEFAULT_SEGMENT_SHIFT = 27;
+	static final int MAX_SEGMENT_SHIFT = 27;
+
+	private final long length;
+	private final int segmentShift;
+	private final long segmentMask;
+	private final DoubleBuffer[] segments;
+
+	public OffHeapDoubleArray(long length) {
+		this(length, DEFAULT_SEGMENT_SHIFT);
+	}
+
+	/**
+	 * @param segmentShift log2 of the number of doubles of a segment, small
+	 *                     segments are mostly useful to test the boundaries
+	 */
+	public OffHeapDoubleArray(long length, int segmentShift) {
+		this.length = length;
+		this.segmentShift = segmentShift;
+		this.segmentMask = (1L << segmentShift) - 1;
+		this.segments = new DoubleBuffer[segmentCount(length, segmentShift)];
+		for (int s = 0; s < segments.length; s++) {
+			segments[s] = ByteBuffer.allocateDirect(segmentBytes(s)).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+	}
+
+	private OffHeapDoubleArray(long length, FileChannel channel) throws IOException {
+		this.length = length;
+		this.segmentShift = DEFAULT_SEGMENT_SHIFT;
+		this.segmentMask = (1L << segmentShift) - 1;
+		this.segments = new DoubleBuffer[segmentCount(length, segmentShift)];
+		for (int s = 0; s < segments.length; s++) {
+			long position = ((long) s << segmentShift) * Double.BYTES;
+			segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentBytes(s))
+					.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+	}
+
+	private static int segmentCount(long length, int segmentShift) {
+		if (length < 0) {
+			throw new IllegalArgumentException(String.format("Invalid length=%d", length));
+		}
+		if (segmentShift < 0 || segmentShift > MAX_SEGMENT_SHIFT) {
+			throw new IllegalArgumentException(String.format("Invalid segmentShift=%d, expected [0, %d]",
+					segmentShift, MAX_SEGMENT_SHIFT));
+		}
+		long segmentCount = (length + (1L << segmentShift) - 1) >>> segmentShift;
+		if (segmentCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Invalid length=%d, too many segments", length));
+		}
+		return (int) segmentCount;
+	}
+
+	private int segmentBytes(int segment) {
+		return (int) Math.min(1L << segmentShift, length - ((long) segment << segmentShift)) * Double.BYTES;
+	}
+
+	/**
+	 * Map the array onto <code>file</code>, created or extended as needed. The
+	 * pages are read and written back by the operating system, the array can
+	 * therefore be larger than the physical memory. The mapping outlives the
+	 * file channel and is released when the array is garbage collected.
+	 */
+	public static OffHeapDoubleArray map(Path file, long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			return new OffHeapDoubleArray(length, channel);
+		}
+	}
+
+	/**
+	 * @return a copy of the values
+	 */
+	public static OffHeapDoubleArray copyOf(double[] values) {
+		OffHeapDoubleArray array = new OffHeapDoubleArray(values.length);
+		array.set(0, values, 0, values.length);
+		return array;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public double get(long index) {
+		return segments[(int) (index >>> segmentShift)].get((int) (index & segmentMask));
+	}
+
+	public void set(long index, double value) {
+		segments[(int) (index >>> segmentShift)].put((int) (index & segmentMask), value);
+	}
+
+	public void add(long index, double value) {
+		DoubleBuffer segment = segments[(int) (index >>> segmentShift)];
+		int position = (int) (index & segmentMask);
+		segment.put(position, segment.get(position) + value);
+	}
+
+	/**
+	 * Copy <code>[index, index + count)</code> into
+	 * <code>destination[offset, offset + count)</code>
+	 */
+	public void get(long index, double[] destination, int offset, int count) {
+		checkRange(index, count);
+		while (count > 0) {
+			DoubleBuffer segment = segments[(int) (index >>> segmentShift)];
+			int position = (int) (index & segmentMask);
+			int n = Math.min(count, segment.capacity() - position);
+			for (int k = 0; k < n; k++) {
+				destination[offset + k] = segment.get(position + k);
+			}
+			index += n;
+			offset += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * Copy <code>source[offset, offset + count)</code> into
+	 * <code>[index, index + count)</code>
+	 */
+	public void set(long index, double[] source, int offset, int count) {
+		checkRange(index, count);
+		while (count > 0) {
+			DoubleBuffer segment = segments[(int) (index >>> segmentShift)];
+			int position = (int) (index & segmentMask);
+			int n = Math.min(count, segment.capacity() - position);
+			for (int k = 0; k < n; k++) {
+				segment.put(position + k, source[offset + k]);
+			}
+			index += n;
+			offset += n;
+			count -= n;
+		}
+	}
+
+	public void fill(double value) {
+		for (DoubleBuffer segment : segments) {
+			for (int k = 0; k < segment.capacity(); k++) {
+				segment.put(k, value);
+			}
+		}
+	}
+
+	private void checkRange(long index, int count) {
+		if (index < 0 || count < 0 || index > length - count) {
+			throw new IndexOutOfBoundsException(
+					String.format("Range [%d, %d) out of bounds for length %d", index, index + count, length));
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package gpu.var;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
+
+/**
+ * Symmetric rank-k (SYRK like) construction of the variance covariance matrix.
+ *
+ * Only the tiles of the upper triangle are computed, every off-diagonal entry
+ * is computed once and mirrored into the lower triangle, or stored once with
+ * {@link CovarianceStorage#PACKED}. The tiles all have the
+ * same size, so that splitting the list of tiles into equal ranges gives every
+ * task the same amount of work, unlike splitting the triangle by rows.
+ *
+ * Within a tile the returns are processed by blocks whose packed panels fit in
+ * the L2 cache, and a register tiled micro kernel computes 4x4 covariance
+ * entries at once, in the spirit of the eight accumulators of
+ * {@link gpu.mm.MatrixMultiplicationDoublePrecisionGPUv4}. The micro kernel is
+ * provided by {@link JavaKernels}.
+ */
+public final class SymmetricCovarianceBuilder {
+
+	static final int TILE_SIZE = 64;
+	// Must divide TILE_SIZE, see JavaKernels.covarianceMicroKernel
+	static final int MICRO_TILE_SIZE = 4;
+	static final int RETURNS_BLOCK_SIZE = 256;
+
+	/**
+	 * Receives the tiles of a build instead of a matrix
+	 */
+	interface TileConsumer {
+		/**
+		 * @param chunk the task computing the tile
+		 * @param tile  the covariances of the instruments [rowStart, rowStart +
+		 *              rows) x [columnStart, columnStart + columns), row major with
+		 *              rows of <code>TILE_SIZE</code>. On a diagonal tile only the
+		 *              entries on and above the diagonal are set.
+		 */
+		void accept(int chunk, int rowStart, int rows, int columnStart, int columns, double[] tile);
+	}
+
+	private final JavaKernels kernels;
+	private final CovarianceStorage covarianceStorage;
+	private final int numberOfInstruments;
+	private final int numberOfTiles;
+	// [2 * t] row tile, [2 * t + 1] column tile of the t-th upper triangle tile
+	private final int[] tiles;
+	private final ParallelRange.RangeTask tilesTask = this::computeTiles;
+	// [chunk] packed rows, packed columns and tile buffers of the tasks
+	private double[][][] scratch = new double[0][][];
+	// Arguments of the current build
+	private double[] excessReturns;
+	private int numberOfReturns;
+	private double[] varianceCovarienceMatrix;
+	private OffHeapDoubleArray offHeapExcessReturns;
+	private OffHeapDoubleArray offHeapMatrix;
+	private TileConsumer tileConsumer;
+
+	public SymmetricCovarianceBuilder(int numberOfInstruments) {
+		this(numberOfInstruments, JavaKernels.preferred());
+	}
+
+	public SymmetricCovarianceBuilder(int numberOfInstruments, JavaKernels kernels) {
+		this(numberOfInstruments, kernels, CovarianceStorage.DENSE);
+	}
+
+	public SymmetricCovarianceBuilder(int numberOfInstruments, JavaKernels kernels,
+			CovarianceStorage covarianceStorage) {
+		this.kernels = kernels;
+		this.covarianceStorage = covarianceStorage;
+		this.numberOfInstruments = numberOfInstruments;
+		int tilesPerSide = (numberOfInstruments + TILE_SIZE - 1) / TILE_SIZE;
+		this.numberOfTiles = tilesPerSide * (tilesPerSide + 1) / 2;
+		this.tiles = new int[this.numberOfTiles * 2];
+		int t = 0;
+		for (int rowTile = 0; rowTile < tilesPerSide; rowTile++) {
+			for (int columnTile = rowTile; columnTile < tilesPerSide; columnTile++) {
+				tiles[t++] = rowTile;
+				tiles[t++] = columnTile;
+			}
+		}
+	}
+
+	public int getNumberOfTiles() {
+		return numberOfTiles;
+	}
+
+	/**
+	 * Number of tiles per task such that a task holds about the same work as
+	 * <code>grainSize</code> average rows of the upper triangle.
+	 */
+	int getTilesPerTask(int grainSize) {
+		long entries = (long) grainSize * (numberOfInstruments + 1) / 2;
+		return (int) Math.max(1, Math.min(numberOfTiles, entries / (TILE_SIZE * TILE_SIZE)));
+	}
+
+	/**
+	 * Build the covariance matrix of the centred excess returns, stored
+	 * instrument by instrument (the <code>numberOfReturns</code> returns of an
+	 * instrument are contiguous), as <code>R'R / numberOfReturns</code>, in the
+	 * storage of the builder.
+	 *
+	 * The scratch buffers of the tasks are kept from one build to the next, a
+	 * builder therefore runs a single build at a time.
+	 */
+	public void build(ExecutorService executorService, int grainSize, double[] excessReturns, int numberOfReturns,
+			double[] varianceCovarienceMatrix) {
+		int tilesPerTask = getTilesPerTask(grainSize);
+		int chunks = ParallelRange.numberOfChunks(numberOfTiles, tilesPerTask);
+		if (scratch.length < chunks) {
+			scratch = Arrays.copyOf(scratch, chunks);
+		}
+		this.excessReturns = excessReturns;
+		this.numberOfReturns = numberOfReturns;
+		this.varianceCovarienceMatrix = varianceCovarienceMatrix;
+		try {
+			ParallelRange.execute(executorService, numberOfTiles, tilesPerTask, tilesTask);
+		} finally {
+			// Do not retain the arrays of the caller
+			this.excessReturns = null;
+			this.varianceCovarienceMatrix = null;
+		}
+	}
+
+	/**
+	 * Build the covariance matrix as {@link #build(ExecutorService, int, double[],
+	 * int, double[])} from and into off heap arrays, for matrices larger than a
+	 * Java array. The offsets of the storage are long, see
+	 * {@link CovarianceStorage#offset(int, int, int)}.
+	 */
+	public void build(ExecutorService executorService, int grainSize, OffHeapDoubleArray excessReturns,
+			int numberOfReturns, OffHeapDoubleArray varianceCovarienceMatrix) {
+		int tilesPerTask = getTilesPerTask(grainSize);
+		int chunks = ParallelRange.numberOfChunks(numberOfTiles, tilesPerTask);
+		if (scratch.length < chunks) {
+			scratch = Arrays.copyOf(scratch, chunks);
+		}
+		this.offHeapExcessReturns = excessReturns;
+		this.numberOfReturns = numberOfReturns;
+		this.offHeapMatrix = varianceCovarienceMatrix;
+		try {
+			ParallelRange.execute(executorService, numberOfTiles, tilesPerTask, tilesTask);
+		} finally {
+			this.offHeapExcessReturns = null;
+			this.offHeapMatrix = null;
+		}
+	}
+
+	/**
+	 * Compute the tiles of the upper triangle and hand them over to the
+	 * consumer, so that the matrix is never held in full. The consumer is called
+	 * concurrently for the tiles of distinct chunks of
+	 * <code>tilesPerTask</code> tiles.
+	 */
+	void build(ExecutorService executorService, int tilesPerTask, double[] excessReturns, int numberOfReturns,
+			TileConsumer tileConsumer) {
+		int chunks = ParallelRange.numberOfChunks(numberOfTiles, tilesPerTask);
+		if (scratch.length < chunks) {
+			scratch = Arrays.copyOf(scratch, chunks);
+		}
+		this.excessReturns = excessReturns;
+		this.numberOfReturns = numberOfReturns;
+		this.tileConsumer = tileConsumer;
+		try {
+			ParallelRange.execute(executorService, numberOfTiles, tilesPerTask, tilesTask);
+		} finally {
+			this.excessReturns = null;
+			this.tileConsumer = null;
+		}
+	}
+
+	private void computeTiles(int chunk, int fromTile, int toTile) {
+		// Scratch buffers of the task: the packed panels of the returns block fit
+		// in L2 and the two micro panels used by the micro kernel fit in L1
+		if (scratch[chunk] == null) {
+			scratch[chunk] = new double[4][];
+			scratch[chunk][0] = new double[TILE_SIZE * RETURNS_BLOCK_SIZE];
+			scratch[chunk][1] = new double[TILE_SIZE * RETURNS_BLOCK_SIZE];
+			scratch[chunk][2] = new double[TILE_SIZE * TILE_SIZE];
+			scratch[chunk][3] = new double[RETURNS_BLOCK_SIZE];
+		}
+		double[] tile = scratch[chunk][2];
+		for (int t = fromTile; t < toTile; t++) {
+			computeTile(t, scratch[chunk][0], scratch[chunk][1], scratch[chunk][3], tile);
+			if (tileConsumer != null) {
+				int rowStart = tiles[2 * t] * TILE_SIZE;
+				int columnStart = tiles[2 * t + 1] * TILE_SIZE;
+				int rows = Math.min(TILE_SIZE, numberOfInstruments - rowStart);
+				int columns = Math.min(TILE_SIZE, numberOfInstruments - columnStart);
+				for (int r = 0; r < rows; r++) {
+					for (int c = 0; c < columns; c++) {
+						tile[r * TILE_SIZE + c] /= numberOfReturns;
+					}
+				}
+				tileConsumer.accept(chunk, rowStart, rows, columnStart, columns, tile);
+			} else if (offHeapMatrix != null) {
+				storeTile(t, tile, offHeapMatrix);
+			} else {
+				storeTile(t, tile, varianceCovarienceMatrix);
+			}
+		}
+	}
+
+	/**
+	 * Compute the products R'R of the t-th tile into <code>tile</code>
+	 */
+	private void computeTile(int t, double[] packedRows, double[] packedColumns, double[] returnsBuffer,
+			double[] tile) {
+		int rowStart = tiles[2 * t] * TILE_SIZE;
+		int columnStart = tiles[2 * t + 1] * TILE_SIZE;
+		int rows = Math.min(TILE_SIZE, numberOfInstruments - rowStart);
+		int columns = Math.min(TILE_SIZE, numberOfInstruments - columnStart);
+		boolean diagonal = rowStart == columnStart;
+
+		Arrays.fill(tile, 0);
+		for (int returnsStart = 0; returnsStart < numberOfReturns; returnsStart += RETURNS_BLOCK_SIZE) {
+			int returns = Math.min(RETURNS_BLOCK_SIZE, numberOfReturns - returnsStart);
+			pack(rowStart, rows, returnsStart, returns, packedRows, returnsBuffer);
+			double[] columnPanel = packedRows;
+			if (!diagonal) {
+				pack(columnStart, columns, returnsStart, returns, packedColumns, returnsBuffer);
+				columnPanel = packedColumns;
+			}
+			for (int r = 0; r < rows; r += MICRO_TILE_SIZE) {
+				// On a diagonal tile the micro tiles below the diagonal are mirrors
+				for (int c = diagonal ? r : 0; c < columns; c += MICRO_TILE_SIZE) {
+					kernels.covarianceMicroKernel(packedRows, r, columnPanel, c, returns, tile, TILE_SIZE);
+				}
+			}
+		}
+	}
+
+	private void pack(int instrumentStart, int instruments, int returnsStart, int returns, double[] panel,
+			double[] returnsBuffer) {
+		if (offHeapExcessReturns == null) {
+			pack(excessReturns, numberOfReturns, instrumentStart, instruments, returnsStart, returns, panel);
+			return;
+		}
+		// Same layout as pack(double[]...), each block of returns is first copied on heap
+		for (int p = 0; p < instruments; p += MICRO_TILE_SIZE) {
+			int offset = p * returns;
+			for (int q = 0; q < MICRO_TILE_SIZE; q++) {
+				if (p + q < instruments) {
+					offHeapExcessReturns.get((long) (instrumentStart + p + q) * numberOfReturns + returnsStart,
+							returnsBuffer, 0, returns);
+					for (int k = 0; k < returns; k++) {
+						panel[offset + k * MICRO_TILE_SIZE + q] = returnsBuffer[k];
+					}
+				} else {
+					for (int k = 0; k < returns; k++) {
+						panel[offset + k * MICRO_TILE_SIZE + q] = 0;
+					}
+				}
+			}
+		}
+	}
+
+	private void storeTile(int t, double[] tile, double[] varianceCovarienceMatrix) {
+		int rowStart = tiles[2 * t] * TILE_SIZE;
+		int columnStart = tiles[2 * t + 1] * TILE_SIZE;
+		int rows = Math.min(TILE_SIZE, numberOfInstruments - rowStart);
+		int columns = Math.min(TILE_SIZE, numberOfInstruments - columnStart);
+		boolean diagonal = rowStart == columnStart;
+
+		if (covarianceStorage == CovarianceStorage.PACKED) {
+			// The tile is in the upper triangle, its rows are contiguous in the packed rows
+			for (int r = 0; r < rows; r++) {
+				int offset = CovarianceStorage.rowOffset(numberOfInstruments, rowStart + r) + columnStart;
+				for (int c = diagonal ? r : 0; c < columns; c++) {
+					varianceCovarienceMatrix[offset + c] = tile[r * TILE_SIZE + c] / numberOfReturns;
+				}
+			}
+			return;
+		}
+		for (int r = 0; r < rows; r++) {
+			for (int c = diagonal ? r : 0; c < columns; c++) {
+				double covariance = tile[r * TILE_SIZE + c] / numberOfReturns;
+				varianceCovarienceMatrix[(rowStart + r) * numberOfInstruments + columnStart + c] = covariance;
+				varianceCovarienceMatrix[(columnStart + c) * numberOfInstruments + rowStart + r] = covariance;
+			}
+		}
+	}
+
+	private void storeTile(int t, double[] tile, OffHeapDoubleArray varianceCovarienceMatrix) {
+		int rowStart = tiles[2 * t] * TILE_SIZE;
+		int columnStart = tiles[2 * t + 1] * TILE_SIZE;
+		int rows = Math.min(TILE_SIZE, numberOfInstruments - rowStart);
+		int columns = Math.min(TILE_SIZE, numberOfInstruments - columnStart);
+		boolean diagonal = rowStart == columnStart;
+
+		for (int r = 0; r < rows; r++) {
+			int first = diagonal ? r : 0;
+			for (int c = first; c < columns; c++) {
+				tile[r * TILE_SIZE + c] /= numberOfReturns;
+			}
+			varianceCovarienceMatrix.set(covarianceStorage.offset(numberOfInstruments, rowStart + r, columnStart + first),
+					tile, r * TILE_SIZE + first, columns - first);
+			if (covarianceStorage == CovarianceStorage.DENSE) {
+				for (int c = first; c < columns; c++) {
+					varianceCovarienceMatrix.set(covarianceStorage.offset(numberOfInstruments, columnStart + c,
+							rowStart + r), tile[r * TILE_SIZE + c]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the returns [returnsStart, returnsStart + returns) of the instruments
+	 * [instrumentStart, instrumentStart + instruments) into micro panels of
+	 * <code>MICRO_TILE_SIZE</code> instruments, interleaved return by return. The
+	 * missing instruments of the last micro panel are padded with zeros.
+	 */
+	static void pack(double[] excessReturns, int numberOfReturns, int instrumentStart, int instruments,
+			int returnsStart, int returns, double[] panel) {
+		for (int p = 0; p < instruments; p += MICRO_TILE_SIZE) {
+			int offset = p * returns;
+			for (int q = 0; q < MICRO_TILE_SIZE; q++) {
+				if (p + q < instruments) {
+					int source = (instrumentStart + p + q) * numberOfReturns + returnsStart;
+					for (int k = 0; k < returns; k++) {
+						panel[offset + k * MICRO_TILE_SIZE + q] = excessReturns[source + k];
+					}
+				} else {
+					for (int k = 0; k < returns; k++) {
+						panel[offset + k * MICRO_TILE_SIZE + q] = 0;
+					}
+				}
+			}
+		}
+	}
+}
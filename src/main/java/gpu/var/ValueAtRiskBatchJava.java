@@ -0,0 +1,300 @@
+package gpu.var;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
+import gpu.var.ValueAtRisk.PERCENTILES;
+
+/**
+ * Value at Risk of many books drawing on the same instruments and history.
+ *
+ * The variance covariance matrix Σ is built once. The variances
+ * w<sub>b</sub>'Σw<sub>b</sub> of all the books are then obtained from the
+ * product ΣW' of the matrix with the weights matrix W (books x instruments,
+ * row major), computed in a single blocked pass over Σ with the micro kernel
+ * of {@link SymmetricCovarianceBuilder}: every block of rows of Σ is read once
+ * and multiplied with the weights of all the books while it is in cache.
+ */
+public class ValueAtRiskBatchJava {
+
+	static final int DEFAULT_GRAIN_SIZE = 250;
+	static final int ROWS_BLOCK_SIZE = SymmetricCovarianceBuilder.TILE_SIZE;
+	static final int COLUMNS_BLOCK_SIZE = SymmetricCovarianceBuilder.RETURNS_BLOCK_SIZE;
+	private static final PERCENTILES[] PERCENTILES_VALUES = PERCENTILES.values();
+
+	private final double[] instrumentsValueHistory;
+	// Books x instruments, row major
+	private double[] booksWeight;
+	private double[] portfolioValues;
+	private int numberOfBooks;
+	private final int numberOfInstruments;
+	private final int numberOfObservations;
+	private final int numberOfReturns;
+	private final boolean debug;
+	private final ExecutorService executorService;
+	private final JavaKernels kernels = JavaKernels.preferred();
+	private final SymmetricCovarianceBuilder covarianceBuilder;
+
+	private final double[] varianceCovarienceMatrix;
+	// Instrument major, the returns of an instrument are contiguous
+	private final double[] instrumentsExcessReturns;
+	private final double[] instrumentsAverageReturns;
+
+	// True once execute() has built the matrix of the history
+	private boolean varianceCovarianceMatrixComputed = false;
+
+	// Sized for the largest number of books set so far, see setBooks
+	private double[] weightedAverageReturns = new double[0];
+	private double[] portfolioStandardDeviation;
+	// Books x percentiles
+	private double[] VaRPercent;
+	private double[] VaRValue;
+
+	// Chunks x books partial sums
+	private double[] weightedAverageReturnsBuffer;
+	private double[] varianceBuffer;
+	// [chunk] packed rows, packed weights and products of the tasks, reused
+	// across runs and grown with the number of books
+	private double[][][] scratch = new double[0][][];
+	private int subrange;
+	private int grainSize;
+	// Stable tasks, ParallelRange caches the callables of their chunks
+	private final ParallelRange.RangeTask excessReturnsTask;
+	private final ParallelRange.RangeTask booksTask = this::computeBooksPartialSums;
+
+	public ValueAtRiskBatchJava(double[] instrumentsValueHistory, double[] booksWeight, double[] portfolioValues,
+			int numberOfBooks, int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, booksWeight, portfolioValues, numberOfBooks, numberOfInstruments,
+				numberOfObservations, debug, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	/**
+	 * @param booksWeight     the weights of the instruments in every book, the
+	 *                        <code>numberOfInstruments</code> weights of a book
+	 *                        are contiguous
+	 * @param portfolioValues the value of every book
+	 */
+	public ValueAtRiskBatchJava(double[] instrumentsValueHistory, double[] booksWeight, double[] portfolioValues,
+			int numberOfBooks, int numberOfInstruments, int numberOfObservations, boolean debug,
+			ExecutorService executorService) {
+		this.instrumentsValueHistory = instrumentsValueHistory;
+		this.numberOfInstruments = numberOfInstruments;
+		this.numberOfObservations = numberOfObservations;
+		this.numberOfReturns = numberOfObservations - 1;
+		this.debug = debug;
+		this.executorService = executorService;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels);
+
+		this.varianceCovarienceMatrix = CovarianceStorage.DENSE.allocate(numberOfInstruments);
+		this.instrumentsExcessReturns = new double[numberOfInstruments * numberOfReturns];
+		this.instrumentsAverageReturns = new double[numberOfInstruments];
+		this.grainSize = DEFAULT_GRAIN_SIZE;
+		this.excessReturnsTask = (chunk, start, end) -> ExcessReturns.calculate(instrumentsValueHistory,
+				numberOfInstruments, numberOfObservations, start, end, instrumentsExcessReturns,
+				instrumentsAverageReturns, kernels);
+		setBooks(booksWeight, portfolioValues, numberOfBooks);
+	}
+
+	/**
+	 * Replace the books, the next {@link #executeBooks()} computes their VaR on
+	 * the matrix of the last {@link #execute()}. The result buffers only grow:
+	 * fewer books than before reuse them, so that a caller alternating batch
+	 * sizes does not reallocate.
+	 *
+	 * @param booksWeight     the weights of the instruments in every book, the
+	 *                        <code>numberOfInstruments</code> weights of a book
+	 *                        are contiguous
+	 * @param portfolioValues the value of every book
+	 */
+	public void setBooks(double[] booksWeight, double[] portfolioValues, int numberOfBooks) {
+		if (numberOfBooks < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid numberOfBooks=%d, the number of books must be positive", numberOfBooks));
+		}
+		if (booksWeight.length < (long) numberOfBooks * numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d x %d book weights but got %d",
+					numberOfBooks, numberOfInstruments, booksWeight.length));
+		}
+		if (portfolioValues.length < numberOfBooks) {
+			throw new IllegalArgumentException(String.format("Expected %d portfolio values but got %d", numberOfBooks,
+					portfolioValues.length));
+		}
+		this.booksWeight = booksWeight;
+		this.portfolioValues = portfolioValues;
+		this.numberOfBooks = numberOfBooks;
+		if (numberOfBooks > weightedAverageReturns.length) {
+			this.weightedAverageReturns = new double[numberOfBooks];
+			this.portfolioStandardDeviation = new double[numberOfBooks];
+			this.VaRPercent = new double[numberOfBooks * PERCENTILES_VALUES.length];
+			this.VaRValue = new double[numberOfBooks * PERCENTILES_VALUES.length];
+			setGrainSize(grainSize);
+		}
+	}
+
+	/**
+	 * Number of instruments, i.e. rows of the covariance matrix, processed by a
+	 * single task. Every task keeps partial sums for all the books.
+	 */
+	public void setGrainSize(int grainSize) {
+		this.subrange = ParallelRange.numberOfChunks(this.numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+		this.weightedAverageReturnsBuffer = new double[subrange * weightedAverageReturns.length];
+		this.varianceBuffer = new double[subrange * weightedAverageReturns.length];
+		if (scratch.length < subrange) {
+			scratch = Arrays.copyOf(scratch, subrange);
+		}
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	public int getNumberOfBooks() {
+		return numberOfBooks;
+	}
+
+	/**
+	 * Build the matrix of the history and compute the VaR of the books
+	 */
+	public void execute() {
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, excessReturnsTask);
+
+		covarianceBuilder.build(executorService, grainSize, instrumentsExcessReturns, numberOfReturns,
+				varianceCovarienceMatrix);
+		varianceCovarianceMatrixComputed = true;
+
+		executeBooks();
+	}
+
+	/**
+	 * Compute the VaR of the books on the matrix of the last {@link #execute()},
+	 * the O(N²·books) part of a run
+	 */
+	public void executeBooks() {
+		if (!varianceCovarianceMatrixComputed) {
+			throw new IllegalStateException("The variance covariance matrix has not been computed, call execute()");
+		}
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, booksTask);
+
+		for (int b = 0; b < numberOfBooks; b++) {
+			double weightedReturns = 0;
+			double variance = 0;
+			for (int chunk = 0; chunk < subrange; chunk++) {
+				weightedReturns += weightedAverageReturnsBuffer[chunk * numberOfBooks + b];
+				variance += varianceBuffer[chunk * numberOfBooks + b];
+			}
+			weightedAverageReturns[b] = weightedReturns;
+			portfolioStandardDeviation[b] = Math.sqrt(variance);
+			computeVar(b);
+		}
+
+		if (debug) {
+			printSummary();
+		}
+	}
+
+	/**
+	 * Accumulate, for every book b, the weighted average return and the variance
+	 * Σ<sub>i</sub> w<sub>b,i</sub>(Σw<sub>b</sub>)<sub>i</sub> of the instruments
+	 * [start, end). The rows of Σ are processed by blocks of
+	 * <code>ROWS_BLOCK_SIZE</code> x <code>COLUMNS_BLOCK_SIZE</code> packed
+	 * entries, multiplied with the packed weights of all the books.
+	 */
+	private void computeBooksPartialSums(int chunk, int start, int end) {
+		int micro = SymmetricCovarianceBuilder.MICRO_TILE_SIZE;
+		int paddedBooks = (numberOfBooks + micro - 1) / micro * micro;
+		if (scratch[chunk] == null || scratch[chunk][1].length < paddedBooks * COLUMNS_BLOCK_SIZE) {
+			scratch[chunk] = new double[][] { new double[ROWS_BLOCK_SIZE * COLUMNS_BLOCK_SIZE],
+					new double[paddedBooks * COLUMNS_BLOCK_SIZE], new double[ROWS_BLOCK_SIZE * paddedBooks] };
+		}
+		double[] packedRows = scratch[chunk][0];
+		double[] packedWeights = scratch[chunk][1];
+		// (Σ W') of the rows block, rows x books
+		double[] products = scratch[chunk][2];
+
+		int offset = chunk * numberOfBooks;
+		Arrays.fill(varianceBuffer, offset, offset + numberOfBooks, 0);
+		Arrays.fill(weightedAverageReturnsBuffer, offset, offset + numberOfBooks, 0);
+
+		for (int rowStart = start; rowStart < end; rowStart += ROWS_BLOCK_SIZE) {
+			int rows = Math.min(ROWS_BLOCK_SIZE, end - rowStart);
+			Arrays.fill(products, 0, ROWS_BLOCK_SIZE * paddedBooks, 0);
+			for (int columnStart = 0; columnStart < numberOfInstruments; columnStart += COLUMNS_BLOCK_SIZE) {
+				int columns = Math.min(COLUMNS_BLOCK_SIZE, numberOfInstruments - columnStart);
+				SymmetricCovarianceBuilder.pack(varianceCovarienceMatrix, numberOfInstruments, rowStart, rows,
+						columnStart, columns, packedRows);
+				SymmetricCovarianceBuilder.pack(booksWeight, numberOfInstruments, 0, numberOfBooks, columnStart,
+						columns, packedWeights);
+				for (int r = 0; r < rows; r += micro) {
+					for (int b = 0; b < numberOfBooks; b += micro) {
+						kernels.covarianceMicroKernel(packedRows, r, packedWeights, b, columns, products, paddedBooks);
+					}
+				}
+			}
+
+			for (int b = 0; b < numberOfBooks; b++) {
+				int weights = b * numberOfInstruments + rowStart;
+				double variance = 0;
+				double weightedReturns = 0;
+				for (int r = 0; r < rows; r++) {
+					variance += booksWeight[weights + r] * products[r * paddedBooks + b];
+					weightedReturns += booksWeight[weights + r] * instrumentsAverageReturns[rowStart + r];
+				}
+				varianceBuffer[offset + b] += variance;
+				weightedAverageReturnsBuffer[offset + b] += weightedReturns;
+			}
+		}
+	}
+
+	private void computeVar(int book) {
+		for (int i = 0; i < PERCENTILES_VALUES.length; i++) {
+			int index = book * PERCENTILES_VALUES.length + i;
+			VaRPercent[index] = -(weightedAverageReturns[book]
+					+ PERCENTILES_VALUES[i].zstat * portfolioStandardDeviation[book]);
+			VaRValue[index] = portfolioValues[book] * VaRPercent[index];
+		}
+	}
+
+	public double getPortfolioStandardDeviation(int book) {
+		return portfolioStandardDeviation[book];
+	}
+
+	public double getWeightedAverageReturns(int book) {
+		return weightedAverageReturns[book];
+	}
+
+	public double getPortfolioValue(int book) {
+		return portfolioValues[book];
+	}
+
+	/**
+	 * @return the VaR of the book for every {@link PERCENTILES}, in percent of the
+	 *         book value
+	 */
+	public double[] getVaRPercent(int book) {
+		int length = PERCENTILES_VALUES.length;
+		return Arrays.copyOfRange(VaRPercent, book * length, (book + 1) * length);
+	}
+
+	/**
+	 * @return the VaR of the book for every {@link PERCENTILES}
+	 */
+	public double[] getVaRValue(int book) {
+		int length = PERCENTILES_VALUES.length;
+		return Arrays.copyOfRange(VaRValue, book * length, (book + 1) * length);
+	}
+
+	public double getVarianceCovarianceMatrix(int x, int y) {
+		return varianceCovarienceMatrix[x + y * this.numberOfInstruments];
+	}
+
+	void printSummary() {
+		for (int b = 0; b < numberOfBooks; b++) {
+			System.out.println(String.format(
+					"Book %d: Weighted Average Return (%%) = %.5f Portfolio Standard Deviation (%%) = %.5f", b,
+					weightedAverageReturns[b] * 100, portfolioStandardDeviation[b] * 100));
+		}
+	}
+}
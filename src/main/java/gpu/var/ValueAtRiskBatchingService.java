@@ -0,0 +1,232 @@
+package gpu.var;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process service coalescing the concurrent VaR requests of many books on
+ * the same history.
+ *
+ * The requests are queued and taken by a single dispatcher thread. A batch is
+ * closed once it holds <code>maxBatchSize</code> requests or
+ * <code>maxDelayNanos</code> after its first request, and its books are
+ * computed together by {@link ValueAtRiskBatchJava#executeBooks()}: one pass
+ * over the covariance matrix of the history, built by the first batch, for the
+ * whole weights matrix. The requests arriving while a batch is computed form
+ * the next one, so that the batches grow with the load.
+ */
+public final class ValueAtRiskBatchingService implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+	public static final long DEFAULT_MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final class Request {
+		private final double[] instrumentsWeight;
+		private final double portfolioValue;
+		private final CompletableFuture<ValueAtRiskResult> future = new CompletableFuture<>();
+
+		Request(double[] instrumentsWeight, double portfolioValue) {
+			this.instrumentsWeight = instrumentsWeight;
+			this.portfolioValue = portfolioValue;
+		}
+	}
+
+	// Queued by close() to wake up the dispatcher
+	private static final Request CLOSE = new Request(null, 0);
+
+	private final int numberOfInstruments;
+	private final int maxBatchSize;
+	private final long maxDelayNanos;
+	private final ValueAtRiskBatchJava engine;
+	private final LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+	private final ExecutorService dispatcher = ValueAtRiskExecutors.newExecutor(1);
+	private volatile boolean closed = false;
+
+	// Written by the dispatcher only
+	private boolean varianceCovarianceMatrixComputed = false;
+	// The books of the current batch, sized for maxBatchSize
+	private final double[] booksWeight;
+	private final double[] portfolioValues;
+	private volatile long numberOfBatches = 0;
+	private volatile long numberOfRequests = 0;
+
+	public ValueAtRiskBatchingService(double[] instrumentsValueHistory, int numberOfInstruments,
+			int numberOfObservations) {
+		this(instrumentsValueHistory, numberOfInstruments, numberOfObservations, DEFAULT_MAX_BATCH_SIZE,
+				DEFAULT_MAX_DELAY_NANOS, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	/**
+	 * @param maxBatchSize    the largest number of requests computed together
+	 * @param maxDelayNanos   the longest wait for more requests after the first
+	 *                        one of a batch
+	 * @param executorService executor running the computation steps of the
+	 *                        batches, it is not shut down by the service
+	 */
+	public ValueAtRiskBatchingService(double[] instrumentsValueHistory, int numberOfInstruments,
+			int numberOfObservations, int maxBatchSize, long maxDelayNanos, ExecutorService executorService) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid maxBatchSize=%d, the batch size must be positive", maxBatchSize));
+		}
+		if (maxDelayNanos < 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid maxDelayNanos=%d, the delay must not be negative", maxDelayNanos));
+		}
+		if ((long) maxBatchSize * numberOfInstruments > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid maxBatchSize=%d, %d books of %d instruments do not fit in an array", maxBatchSize,
+					maxBatchSize, numberOfInstruments));
+		}
+		if (instrumentsValueHistory.length < (long) numberOfInstruments * numberOfObservations) {
+			throw new IllegalArgumentException(String.format("Expected %d x %d instrument values but got %d",
+					numberOfInstruments, numberOfObservations, instrumentsValueHistory.length));
+		}
+		this.numberOfInstruments = numberOfInstruments;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = maxDelayNanos;
+		this.booksWeight = new double[maxBatchSize * numberOfInstruments];
+		this.portfolioValues = new double[maxBatchSize];
+		// Set up for the largest batch, so that the engine never reallocates
+		this.engine = new ValueAtRiskBatchJava(instrumentsValueHistory, booksWeight, portfolioValues, maxBatchSize,
+				numberOfInstruments, numberOfObservations, false, executorService);
+		dispatcher.execute(this::dispatch);
+	}
+
+	/**
+	 * Queue the VaR of a book. The weights are read when its batch is computed,
+	 * they must not be modified until the future completes.
+	 *
+	 * @return the future of the result, completed by the dispatcher thread
+	 */
+	public CompletableFuture<ValueAtRiskResult> submit(double[] instrumentsWeight, double portfolioValue) {
+		if (instrumentsWeight.length < numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d instrument weights but got %d",
+					numberOfInstruments, instrumentsWeight.length));
+		}
+		if (closed) {
+			throw new IllegalStateException("The service is closed");
+		}
+		Request request = new Request(instrumentsWeight, portfolioValue);
+		requests.add(request);
+		// The dispatcher may have drained the queue before the request was added
+		if (closed && requests.remove(request)) {
+			request.future.completeExceptionally(new IllegalStateException("The service is closed"));
+		}
+		return request.future;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getMaxDelayNanos() {
+		return maxDelayNanos;
+	}
+
+	/**
+	 * @return the number of batches computed, at most the number of requests
+	 */
+	public long getNumberOfBatches() {
+		return numberOfBatches;
+	}
+
+	/**
+	 * @return the number of requests computed
+	 */
+	public long getNumberOfRequests() {
+		return numberOfRequests;
+	}
+
+	/**
+	 * Stop the dispatcher once the current batch is computed, without
+	 * interrupting it, the queued requests complete exceptionally
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		requests.add(CLOSE);
+		dispatcher.shutdown();
+		try {
+			dispatcher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		failQueuedRequests();
+	}
+
+	private void dispatch() {
+		List<Request> batch = new ArrayList<>(maxBatchSize);
+		try {
+			while (!closed) {
+				Request first = requests.take();
+				if (first == CLOSE) {
+					break;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while (batch.size() < maxBatchSize) {
+					Request request = requests.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					// The batch collected before close() is still computed
+					if (request == null || request == CLOSE) {
+						break;
+					}
+					batch.add(request);
+				}
+				compute(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			for (Request request : batch) {
+				request.future.completeExceptionally(new IllegalStateException("The service is closed"));
+			}
+		}
+	}
+
+	/**
+	 * Compute the books of the batch with a single pass over the matrix and
+	 * complete their futures
+	 */
+	private void compute(List<Request> batch) {
+		int numberOfBooks = batch.size();
+		for (int b = 0; b < numberOfBooks; b++) {
+			Request request = batch.get(b);
+			System.arraycopy(request.instrumentsWeight, 0, booksWeight, b * numberOfInstruments, numberOfInstruments);
+			portfolioValues[b] = request.portfolioValue;
+		}
+		try {
+			engine.setBooks(booksWeight, portfolioValues, numberOfBooks);
+			if (varianceCovarianceMatrixComputed) {
+				engine.executeBooks();
+			} else {
+				engine.execute();
+				varianceCovarianceMatrixComputed = true;
+			}
+		} catch (RuntimeException e) {
+			for (Request request : batch) {
+				request.future.completeExceptionally(e);
+			}
+			return;
+		}
+		numberOfBatches++;
+		numberOfRequests += numberOfBooks;
+		for (int b = 0; b < numberOfBooks; b++) {
+			batch.get(b).future.complete(new ValueAtRiskResult(engine.getWeightedAverageReturns(b),
+					engine.getPortfolioStandardDeviation(b), portfolioValues[b], engine.getVaRPercent(b),
+					engine.getVaRValue(b), null));
+		}
+	}
+
+	private void failQueuedRequests() {
+		Request request;
+		while ((request = requests.poll()) != null) {
+			if (request != CLOSE) {
+				request.future.completeExceptionally(new IllegalStateException("The service is closed"));
+			}
+		}
+	}
+}
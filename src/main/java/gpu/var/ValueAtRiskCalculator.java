@@ -0,0 +1,146 @@
+package gpu.var;
+
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
+
+/**
+ * Thread safe variance covariance VaR, the stateless counterpart of
+ * {@link ValueAtRiskJava}.
+ *
+ * The calculator only holds its configuration: every call works in its own
+ * buffers and returns an immutable {@link ValueAtRiskResult}, so that a single
+ * warmed calculator serves any number of concurrent callers. With a
+ * {@link CovarianceCache}, itself thread safe, the calls on a known history
+ * share its matrix and only pay the O(N²) product Σw.
+ */
+public final class ValueAtRiskCalculator {
+
+	private final int numberOfInstruments;
+	private final int numberOfObservations;
+	private final ExecutorService executorService;
+	private final CovarianceStorage covarianceStorage;
+	private final CovarianceCache covarianceCache;
+	private final int grainSize;
+	private final JavaKernels kernels = JavaKernels.preferred();
+
+	public ValueAtRiskCalculator(int numberOfInstruments, int numberOfObservations) {
+		this(numberOfInstruments, numberOfObservations, ValueAtRiskExecutors.getSharedExecutor(),
+				CovarianceStorage.DENSE, null);
+	}
+
+	/**
+	 * @param executorService   executor running the computation steps of the
+	 *                          calls, it is not shut down
+	 * @param covarianceStorage layout of the variance covariance matrices
+	 * @param covarianceCache   cache of the matrices of the histories, null to
+	 *                          disable caching
+	 */
+	public ValueAtRiskCalculator(int numberOfInstruments, int numberOfObservations, ExecutorService executorService,
+			CovarianceStorage covarianceStorage, CovarianceCache covarianceCache) {
+		if (numberOfInstruments < 1 || numberOfObservations < 2) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid %d instruments x %d observations, at least one instrument and two observations are needed",
+					numberOfInstruments, numberOfObservations));
+		}
+		this.numberOfInstruments = numberOfInstruments;
+		this.numberOfObservations = numberOfObservations;
+		this.executorService = executorService;
+		this.covarianceStorage = covarianceStorage;
+		this.covarianceCache = covarianceCache;
+		this.grainSize = ValueAtRiskJava.DEFAULT_GRAIN_SIZE;
+	}
+
+	public int getNumberOfInstruments() {
+		return numberOfInstruments;
+	}
+
+	public int getNumberOfObservations() {
+		return numberOfObservations;
+	}
+
+	public CovarianceCache getCovarianceCache() {
+		return covarianceCache;
+	}
+
+	/**
+	 * Compute the VaR of the weights on the history. The arrays are only read,
+	 * they must not be modified during the call.
+	 *
+	 * @param instrumentsValueHistory the observations x instruments values, row
+	 *                                major
+	 */
+	public ValueAtRiskResult calculate(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue) {
+		if (instrumentsValueHistory.length < (long) numberOfInstruments * numberOfObservations) {
+			throw new IllegalArgumentException(String.format("Expected %d x %d instrument values but got %d",
+					numberOfInstruments, numberOfObservations, instrumentsValueHistory.length));
+		}
+		if (instrumentsWeight.length < numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d instrument weights but got %d",
+					numberOfInstruments, instrumentsWeight.length));
+		}
+
+		CovarianceCache.Key key = null;
+		double[] varianceCovarianceMatrix;
+		double[] instrumentsAverageReturns;
+		if (covarianceCache != null) {
+			key = CovarianceCache.key(instrumentsValueHistory, numberOfInstruments, numberOfObservations,
+					covarianceStorage);
+			// Concurrent calls missing the same history wait for a single build
+			CovarianceCache.Entry entry = covarianceCache.computeIfAbsent(key,
+					averageReturns -> computeVarianceCovarianceMatrix(instrumentsValueHistory, averageReturns));
+			varianceCovarianceMatrix = entry.getVarianceCovarianceMatrix();
+			instrumentsAverageReturns = entry.getInstrumentsAverageReturns();
+		} else {
+			instrumentsAverageReturns = new double[numberOfInstruments];
+			varianceCovarianceMatrix = computeVarianceCovarianceMatrix(instrumentsValueHistory,
+					instrumentsAverageReturns);
+		}
+
+		long weightsFingerprint = 0;
+		double[] covarianceTimesWeights = null;
+		if (key != null) {
+			weightsFingerprint = CovarianceCache.fingerprint(instrumentsWeight, numberOfInstruments);
+			covarianceTimesWeights = covarianceCache.getCovarianceTimesWeights(key, weightsFingerprint);
+		}
+		if (covarianceTimesWeights == null) {
+			covarianceTimesWeights = CovarianceProduct.multiply(executorService, grainSize, kernels, covarianceStorage,
+					varianceCovarianceMatrix, numberOfInstruments, instrumentsWeight);
+			if (key != null) {
+				covarianceCache.putCovarianceTimesWeights(key, weightsFingerprint, covarianceTimesWeights);
+			}
+		}
+
+		double weightedAverageReturns = 0;
+		double variance = 0;
+		double[] weightedCovariance = new double[numberOfInstruments];
+		for (int i = 0; i < numberOfInstruments; i++) {
+			weightedAverageReturns += instrumentsWeight[i] * instrumentsAverageReturns[i];
+			weightedCovariance[i] = instrumentsWeight[i] * covarianceTimesWeights[i];
+			variance += weightedCovariance[i];
+		}
+		return ValueAtRiskResult.parametric(weightedAverageReturns, Math.sqrt(variance), portfolioValue,
+				weightedCovariance);
+	}
+
+	/**
+	 * Compute the average returns of the history as {@link ValueAtRiskJava}, and
+	 * its variance covariance matrix in a new array
+	 */
+	private double[] computeVarianceCovarianceMatrix(double[] instrumentsValueHistory,
+			double[] instrumentsAverageReturns) {
+		int numberOfReturns = numberOfObservations - 1;
+		double[] instrumentsExcessReturns = new double[numberOfInstruments * numberOfReturns];
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize,
+				(chunk, start, end) -> ExcessReturns.calculate(instrumentsValueHistory, numberOfInstruments,
+						numberOfObservations, start, end, instrumentsExcessReturns, instrumentsAverageReturns, kernels));
+
+		double[] varianceCovarianceMatrix = covarianceStorage.allocate(numberOfInstruments);
+		// The builder keeps scratch buffers, it is therefore created by the call
+		new SymmetricCovarianceBuilder(numberOfInstruments, kernels, covarianceStorage).build(executorService,
+				grainSize, instrumentsExcessReturns, numberOfReturns, varianceCovarianceMatrix);
+		return varianceCovarianceMatrix;
+	}
+}
@@ -0,0 +1,186 @@
+package gpu.var;
+
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+
+/**
+ * Value at Risk engine on an exponentially weighted (RiskMetrics) covariance
+ * matrix.
+ *
+ * With decay λ, the return r<sub>k</sub> of the k-th most recent observation
+ * has the weight (1 - λ)λ<sup>k</sup>, and the covariance follows the
+ * recursion Σ ← λΣ + (1 - λ)rr'. As in RiskMetrics the returns are not
+ * centred, the mean return of the VaR is the exponentially weighted average of
+ * the returns.
+ *
+ * The first {@link #execute()} builds the matrix of the history given to the
+ * constructor, the weights of its returns normalised to sum to one, with
+ * {@link SymmetricCovarianceBuilder}. Every
+ * {@link #addObservation(double[])} then applies the recursion by ranges of
+ * rows in O(N²), without reading the history again.
+ */
+public class ValueAtRiskEwmaJava extends AbstractValueAtRisk implements ValueAtRisk {
+
+	static final int DEFAULT_GRAIN_SIZE = 250;
+	// RiskMetrics daily decay
+	public static final double DEFAULT_DECAY = 0.94;
+
+	private final ExecutorService executorService;
+	private final SymmetricCovarianceBuilder covarianceBuilder;
+	private final int numberOfReturns;
+	private final double decay;
+
+	private final double[] lastInstrumentsValue;
+	private final double[] lastInstrumentsReturn;
+	private boolean initialized = false;
+
+	private int grainSize = DEFAULT_GRAIN_SIZE;
+	// Step created once so that the updates do not allocate
+	private final ParallelRange.RangeTask updateTask = this::updateVarianceCovarianceMatrix;
+
+	public ValueAtRiskEwmaJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, DEFAULT_DECAY, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	public ValueAtRiskEwmaJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, double decay,
+			ExecutorService executorService) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, decay, executorService, CovarianceStorage.DENSE);
+	}
+
+	/**
+	 * @param decay the decay λ in (0, 1), the weight of the previous matrix in
+	 *              the recursion
+	 */
+	public ValueAtRiskEwmaJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, double decay,
+			ExecutorService executorService, CovarianceStorage covarianceStorage) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, covarianceStorage);
+		if (!(decay > 0 && decay < 1)) {
+			throw new IllegalArgumentException(String.format("Invalid decay=%f, expected (0, 1)", decay));
+		}
+		this.executorService = executorService;
+		this.decay = decay;
+		this.numberOfReturns = numberOfObservations - 1;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels, covarianceStorage);
+		this.lastInstrumentsValue = new double[numberOfInstruments];
+		this.lastInstrumentsReturn = new double[numberOfInstruments];
+	}
+
+	public void setGrainSize(int grainSize) {
+		ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	public double getDecay() {
+		return decay;
+	}
+
+	/**
+	 * Replace the history, the matrix is rebuilt from it by the next
+	 * {@link #execute()} or {@link #addObservation(double[])}
+	 */
+	@Override
+	public void setInstrumentsValueHistory(double[] instrumentsValueHistory) {
+		super.setInstrumentsValueHistory(instrumentsValueHistory);
+		initialized = false;
+	}
+
+	@Override
+	public void execute() {
+		if (!initialized) {
+			initialize();
+		}
+
+		reduceVarianceCovarianceMatrix(executorService, grainSize);
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
+	}
+
+	/**
+	 * Apply the recursion to the return from the last known prices to
+	 * <code>instrumentsValue</code>.
+	 *
+	 * @param instrumentsValue the price of every instrument at the new observation
+	 */
+	public void addObservation(double[] instrumentsValue) {
+		if (instrumentsValue.length < numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d instrument values but got %d",
+					numberOfInstruments, instrumentsValue.length));
+		}
+		if (!initialized) {
+			initialize();
+		}
+
+		for (int i = 0; i < numberOfInstruments; i++) {
+			double returnValue = instrumentsValue[i] / lastInstrumentsValue[i] - 1;
+			lastInstrumentsReturn[i] = returnValue;
+			instrumentsAverageReturns[i] = decay * instrumentsAverageReturns[i] + (1 - decay) * returnValue;
+			lastInstrumentsValue[i] = instrumentsValue[i];
+		}
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, updateTask);
+	}
+
+	/**
+	 * Build the matrix from the history: the k-th most recent return weighs
+	 * (1 - λ)λ<sup>k</sup> / (1 - λ<sup>T</sup>). The builder computes R'R / T,
+	 * the returns are therefore scaled by the square root of T times their
+	 * weight.
+	 */
+	private void initialize() {
+		double normalisation = (1 - decay) / (1 - Math.pow(decay, numberOfReturns));
+		double[] weightedReturns = new double[numberOfInstruments * numberOfReturns];
+		double[] returnWeights = new double[numberOfReturns];
+		for (int k = 0; k < numberOfReturns; k++) {
+			returnWeights[k] = normalisation * Math.pow(decay, numberOfReturns - 1 - k);
+		}
+
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, (chunk, start, end) -> {
+			for (int i = start; i < end; i++) {
+				instrumentsAverageReturns[i] = 0;
+			}
+			for (int k = 0; k < numberOfReturns; k++) {
+				int previous = k * numberOfInstruments;
+				int current = previous + numberOfInstruments;
+				double scale = Math.sqrt(returnWeights[k] * numberOfReturns);
+				for (int i = start; i < end; i++) {
+					double returnValue = instrumentsValueHistory[current + i] / instrumentsValueHistory[previous + i]
+							- 1;
+					weightedReturns[i * numberOfReturns + k] = scale * returnValue;
+					instrumentsAverageReturns[i] += returnWeights[k] * returnValue;
+				}
+			}
+		});
+		covarianceBuilder.build(executorService, grainSize, weightedReturns, numberOfReturns,
+				varianceCovarienceMatrix);
+
+		System.arraycopy(instrumentsValueHistory, numberOfReturns * numberOfInstruments, lastInstrumentsValue, 0,
+				numberOfInstruments);
+		initialized = true;
+	}
+
+	/**
+	 * Apply Σ ← λΣ + (1 - λ)rr' to the rows [start, end), only on and above the
+	 * diagonal with the packed storage
+	 */
+	private void updateVarianceCovarianceMatrix(int chunk, int start, int end) {
+		boolean packed = covarianceStorage == CovarianceStorage.PACKED;
+		for (int r = start; r < end; r++) {
+			int first = packed ? r : 0;
+			int row = packed ? CovarianceStorage.rowOffset(numberOfInstruments, r) + r : r * numberOfInstruments;
+			kernels.axpby((1 - decay) * lastInstrumentsReturn[r], lastInstrumentsReturn, first, decay,
+					varianceCovarienceMatrix, row, numberOfInstruments - first);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package gpu.var;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gpu.kernels.CallerThreadExecutor;
+
+/**
+ * Executors used by the Java based Value at Risk engines.
+ *
+ * Creating a thread pool is expensive compared to a VaR run on a small
+ * portfolio, therefore the engines share a single long-lived pool unless an
+ * executor is explicitly injected. The parallelism of the shared pool defaults
+ * to the number of available processors and can be overridden with the
+ * <code>gpu.var.parallelism</code> system property.
+ */
+public final class ValueAtRiskExecutors {
+
+	public static final String PARALLELISM_PROPERTY = "gpu.var.parallelism";
+
+	private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+	private static volatile ExecutorService sharedExecutor;
+	private static volatile ExecutorService sharedAsyncExecutor;
+
+	private ValueAtRiskExecutors() {
+	}
+
+	/**
+	 * @return the executor shared by all the engines that were not given one
+	 */
+	public static ExecutorService getSharedExecutor() {
+		ExecutorService executor = sharedExecutor;
+		if (executor == null) {
+			synchronized (ValueAtRiskExecutors.class) {
+				executor = sharedExecutor;
+				if (executor == null) {
+					executor = newExecutor(getDefaultParallelism());
+					sharedExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * @return the executor running the {@link AbstractValueAtRisk#executeAsync()}
+	 *         calls. It is distinct from the shared executor: a run waits for
+	 *         the tasks it submits to the executor of its engine, which would
+	 *         deadlock once every thread of that executor waits.
+	 */
+	public static ExecutorService getSharedAsyncExecutor() {
+		ExecutorService executor = sharedAsyncExecutor;
+		if (executor == null) {
+			synchronized (ValueAtRiskExecutors.class) {
+				executor = sharedAsyncExecutor;
+				if (executor == null) {
+					executor = newExecutor(getDefaultParallelism());
+					sharedAsyncExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * @return the parallelism of the shared executor
+	 */
+	public static int getDefaultParallelism() {
+		int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid %s=%d, the parallelism must be positive", PARALLELISM_PROPERTY, parallelism));
+		}
+		return parallelism;
+	}
+
+	/**
+	 * Create a fixed size executor suitable to be injected into an engine. The
+	 * threads are daemon threads so that an executor that is never shut down does
+	 * not prevent the JVM from exiting.
+	 *
+	 * @param parallelism number of worker threads
+	 * @return a new executor, owned by the caller
+	 */
+	public static ExecutorService newExecutor(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid parallelism=%d, the parallelism must be positive", parallelism));
+		}
+		final int poolId = POOL_COUNTER.incrementAndGet();
+		return new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger threadCounter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread thread = new Thread(r,
+								String.format("var-pool-%d-worker-%d", poolId, threadCounter.incrementAndGet()));
+						thread.setDaemon(true);
+						thread.setUncaughtExceptionHandler((t, e) -> {
+							System.out.println("Uncaught Exception occurred on thread: " + t.getName());
+							System.out.println("Exception message: " + e.getMessage());
+						});
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Create an executor running the computations on the calling thread. This
+	 * suits callers that already run many VaR calculations concurrently, and it
+	 * is the configuration in which {@link ValueAtRisk#execute()} does not
+	 * allocate once warm.
+	 *
+	 * @return a new executor, owned by the caller
+	 */
+	public static ExecutorService newCallerThreadExecutor() {
+		return new CallerThreadExecutor();
+	}
+}
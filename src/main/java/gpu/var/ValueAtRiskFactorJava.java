@@ -0,0 +1,414 @@
+package gpu.var;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+
+/**
+ * Value at Risk engine on a statistical factor model of the covariance,
+ * Σ ≈ BFB' + D, with B the N x k loadings, F the k x k diagonal factor
+ * variances and D the N diagonal specific variances.
+ *
+ * The factors are the k leading principal components of the excess returns
+ * R, found by a randomised range finder (Halko, Martinsson and Tropp): the
+ * range of Σ is sampled by ΣΩ for a random N x (k + oversampling) matrix Ω,
+ * refined by power iterations, and Σ is projected on it. Σ is only ever
+ * applied as R'(RX) / T, so that the model takes O(N·T·k) time and never
+ * forms an N x N matrix. Its memory is the N x T excess returns, as large as
+ * the history, plus O(N·k) for the loadings and the sampled range, and a
+ * (k + oversampling) x T projection buffer per chunk of the grain size. The
+ * portfolio variance w'BFB'w + w'Dw and the weighted covariance
+ * w<sub>i</sub>(Σw)<sub>i</sub> then take O(N·k).
+ *
+ * The specific variances keep the diagonal of the model equal to the sample
+ * variances, the covariances between instruments are those of the factors.
+ */
+public class ValueAtRiskFactorJava extends AbstractValueAtRisk implements ValueAtRisk {
+
+	static final int DEFAULT_GRAIN_SIZE = 250;
+	static final int DEFAULT_OVERSAMPLING = 10;
+	static final int DEFAULT_POWER_ITERATIONS = 2;
+	static final long DEFAULT_SEED = 42;
+	static final int MAX_JACOBI_SWEEPS = 100;
+	// Relative norm under which an orthogonalised column is considered dependent
+	static final double RANK_TOLERANCE = 1e-10;
+
+	private final ExecutorService executorService;
+	private final int numberOfReturns;
+	private final int numberOfFactors;
+	// Columns of the range finder, k + oversampling capped by the rank
+	private final int numberOfSamples;
+
+	// Instrument major, the returns of an instrument are contiguous
+	private final double[] instrumentsExcessReturns;
+	// Column major N x k, the loadings of a factor are contiguous
+	private final double[] factorLoadings;
+	private final double[] factorVariances;
+	private final double[] specificVariances;
+	// F(B'w)
+	private final double[] factorExposures;
+
+	// Column major N x samples and samples x T working matrices
+	private final double[] basis;
+	private final double[] projected;
+	private double[][] projectedBuffers = new double[0][];
+	private final double[] smallMatrix;
+	private final double[] smallEigenvectors;
+
+	private int grainSize = DEFAULT_GRAIN_SIZE;
+	private int powerIterations = DEFAULT_POWER_ITERATIONS;
+	private long seed = DEFAULT_SEED;
+	// Arguments of the current product
+	private double[] productInput;
+	private double[] productOutput;
+	private final ParallelRange.RangeTask excessReturnsTask;
+	private final ParallelRange.RangeTask projectTask = this::project;
+	private final ParallelRange.RangeTask backProjectTask = (chunk, start, end) -> backProject(start, end);
+
+	public ValueAtRiskFactorJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, int numberOfFactors) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, numberOfFactors, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	/**
+	 * @param numberOfFactors k, at most the number of instruments and of returns
+	 */
+	public ValueAtRiskFactorJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, int numberOfFactors,
+			ExecutorService executorService) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, null);
+		this.numberOfReturns = numberOfObservations - 1;
+		if (numberOfFactors < 1 || numberOfFactors > Math.min(numberOfInstruments, numberOfReturns)) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid numberOfFactors=%d, expected [1, %d] for %d instruments and %d returns", numberOfFactors,
+					Math.min(numberOfInstruments, numberOfReturns), numberOfInstruments, numberOfReturns));
+		}
+		this.executorService = executorService;
+		this.numberOfFactors = numberOfFactors;
+		this.numberOfSamples = Math.min(numberOfFactors + DEFAULT_OVERSAMPLING,
+				Math.min(numberOfInstruments, numberOfReturns));
+		this.instrumentsExcessReturns = new double[numberOfInstruments * numberOfReturns];
+		// The field, replaced by setInstrumentsValueHistory
+		this.excessReturnsTask = (chunk, start, end) -> ExcessReturns.calculate(this.instrumentsValueHistory,
+				numberOfInstruments, numberOfObservations, start, end, instrumentsExcessReturns,
+				instrumentsAverageReturns, kernels);
+		this.factorLoadings = new double[numberOfInstruments * numberOfFactors];
+		this.factorVariances = new double[numberOfFactors];
+		this.specificVariances = new double[numberOfInstruments];
+		this.factorExposures = new double[numberOfFactors];
+		this.basis = new double[numberOfInstruments * numberOfSamples];
+		this.projected = new double[numberOfSamples * numberOfReturns];
+		this.smallMatrix = new double[numberOfSamples * numberOfSamples];
+		this.smallEigenvectors = new double[numberOfSamples * numberOfSamples];
+		setGrainSize(DEFAULT_GRAIN_SIZE);
+	}
+
+	/**
+	 * Number of instruments processed by a single task. Every task keeps a
+	 * samples x T buffer of partial products.
+	 */
+	public void setGrainSize(int grainSize) {
+		int chunks = ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+		this.projectedBuffers = new double[chunks][];
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	/**
+	 * Number of applications of Σ refining the sampled range, each one sharpens
+	 * the separation of the leading factors when the spectrum decays slowly
+	 */
+	public void setPowerIterations(int powerIterations) {
+		if (powerIterations < 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid powerIterations=%d, expected a non negative number", powerIterations));
+		}
+		this.powerIterations = powerIterations;
+	}
+
+	public int getPowerIterations() {
+		return powerIterations;
+	}
+
+	/**
+	 * Seed of the random sampling matrix, the model is reproducible for a given
+	 * seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public int getNumberOfFactors() {
+		return numberOfFactors;
+	}
+
+	/**
+	 * @return the N x k loadings B, column major: the loadings of factor f are
+	 *         <code>[f * N, (f + 1) * N)</code>
+	 */
+	public double[] getFactorLoadings() {
+		return factorLoadings;
+	}
+
+	/**
+	 * @return the k variances of the factors, the diagonal of F, decreasing
+	 */
+	public double[] getFactorVariances() {
+		return factorVariances;
+	}
+
+	/**
+	 * @return the N specific variances, the diagonal of D
+	 */
+	public double[] getSpecificVariances() {
+		return specificVariances;
+	}
+
+	@Override
+	public void execute() {
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, excessReturnsTask);
+
+		computeFactorModel();
+
+		// Σw = B(F(B'w)) + Dw
+		double variance = 0;
+		for (int f = 0; f < numberOfFactors; f++) {
+			double exposure = kernels.dot(factorLoadings, f * numberOfInstruments, instrumentsWeight, 0,
+					numberOfInstruments);
+			factorExposures[f] = factorVariances[f] * exposure;
+			variance += exposure * factorExposures[f];
+		}
+		weightedAverageReturns = 0;
+		for (int i = 0; i < numberOfInstruments; i++) {
+			double covariance = specificVariances[i] * instrumentsWeight[i];
+			for (int f = 0; f < numberOfFactors; f++) {
+				covariance += factorLoadings[f * numberOfInstruments + i] * factorExposures[f];
+			}
+			covarianceTimesWeights[i] = covariance;
+			weightedCovariance[i] = instrumentsWeight[i] * covariance;
+			variance += specificVariances[i] * instrumentsWeight[i] * instrumentsWeight[i];
+			weightedAverageReturns += instrumentsWeight[i] * instrumentsAverageReturns[i];
+		}
+		portfolioStandardDeviation = Math.sqrt(variance);
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
+	}
+
+	/**
+	 * Find the factors: Q = orth(ΣΩ), refined by the power iterations
+	 * Q = orth(ΣQ), then the eigen decomposition UΛU' of the small matrix Q'ΣQ
+	 * gives the loadings QU and the factor variances Λ
+	 */
+	private void computeFactorModel() {
+		Random random = new Random(seed);
+		for (int k = 0; k < basis.length; k++) {
+			basis[k] = random.nextGaussian();
+		}
+		for (int iteration = 0; iteration <= powerIterations; iteration++) {
+			orthonormalize(basis);
+			multiplyCovariance(basis, basis);
+		}
+		orthonormalize(basis);
+
+		// Q'ΣQ = (RQ)'(RQ) / T
+		multiplyReturns(basis);
+		for (int a = 0; a < numberOfSamples; a++) {
+			for (int b = a; b < numberOfSamples; b++) {
+				double value = kernels.dot(projected, a * numberOfReturns, projected, b * numberOfReturns,
+						numberOfReturns) / numberOfReturns;
+				smallMatrix[a * numberOfSamples + b] = value;
+				smallMatrix[b * numberOfSamples + a] = value;
+			}
+		}
+		double[] eigenvalues = new double[numberOfSamples];
+		symmetricEigenDecomposition(smallMatrix, numberOfSamples, eigenvalues, smallEigenvectors);
+
+		// The factors are the leading eigenvectors, with the eigenvalues sorted
+		Integer[] order = new Integer[numberOfSamples];
+		for (int a = 0; a < numberOfSamples; a++) {
+			order[a] = a;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(eigenvalues[b], eigenvalues[a]));
+		Arrays.fill(factorLoadings, 0);
+		for (int f = 0; f < numberOfFactors; f++) {
+			int column = order[f];
+			factorVariances[f] = Math.max(0, eigenvalues[column]);
+			for (int a = 0; a < numberOfSamples; a++) {
+				kernels.axpy(smallEigenvectors[a * numberOfSamples + column], basis, a * numberOfInstruments,
+						factorLoadings, f * numberOfInstruments, numberOfInstruments);
+			}
+		}
+
+		for (int i = 0; i < numberOfInstruments; i++) {
+			double sampleVariance = kernels.dot(instrumentsExcessReturns, i * numberOfReturns,
+					instrumentsExcessReturns, i * numberOfReturns, numberOfReturns) / numberOfReturns;
+			double factorVariance = 0;
+			for (int f = 0; f < numberOfFactors; f++) {
+				double loading = factorLoadings[f * numberOfInstruments + i];
+				factorVariance += loading * loading * factorVariances[f];
+			}
+			specificVariances[i] = Math.max(0, sampleVariance - factorVariance);
+		}
+	}
+
+	/**
+	 * Orthonormalise the columns of the N x samples matrix with the classical
+	 * Gram-Schmidt process applied twice, which is as stable as the modified one
+	 * and reads every column with a dot product
+	 */
+	private void orthonormalize(double[] matrix) {
+		for (int a = 0; a < numberOfSamples; a++) {
+			int column = a * numberOfInstruments;
+			double initialNorm = Math.sqrt(kernels.dot(matrix, column, matrix, column, numberOfInstruments));
+			for (int pass = 0; pass < 2; pass++) {
+				for (int b = 0; b < a; b++) {
+					double projection = kernels.dot(matrix, b * numberOfInstruments, matrix, column,
+							numberOfInstruments);
+					kernels.axpy(-projection, matrix, b * numberOfInstruments, matrix, column, numberOfInstruments);
+				}
+			}
+			double norm = Math.sqrt(kernels.dot(matrix, column, matrix, column, numberOfInstruments));
+			// A column in the span of the previous ones only keeps rounding errors, which
+			// are not orthogonal to them: it is dropped, i.e. zeroed
+			double inverseNorm = norm > RANK_TOLERANCE * initialNorm ? 1 / norm : 0;
+			for (int i = 0; i < numberOfInstruments; i++) {
+				matrix[column + i] *= inverseNorm;
+			}
+		}
+	}
+
+	/**
+	 * output = Σ input = R'(R input) / T, for N x samples column major matrices,
+	 * input and output can be the same array
+	 */
+	private void multiplyCovariance(double[] input, double[] output) {
+		multiplyReturns(input);
+		productOutput = output;
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, backProjectTask);
+		productOutput = null;
+	}
+
+	/**
+	 * projected = R input, samples x T column major: the T returns of a sample
+	 * are contiguous. The tasks accumulate the instruments of their range in
+	 * their own buffer, the buffers are then summed.
+	 */
+	private void multiplyReturns(double[] input) {
+		productInput = input;
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, projectTask);
+		productInput = null;
+
+		Arrays.fill(projected, 0);
+		for (double[] buffer : projectedBuffers) {
+			kernels.axpy(1, buffer, 0, projected, 0, projected.length);
+		}
+	}
+
+	private void project(int chunk, int start, int end) {
+		if (projectedBuffers[chunk] == null) {
+			projectedBuffers[chunk] = new double[numberOfSamples * numberOfReturns];
+		}
+		double[] buffer = projectedBuffers[chunk];
+		Arrays.fill(buffer, 0);
+		for (int i = start; i < end; i++) {
+			for (int a = 0; a < numberOfSamples; a++) {
+				kernels.axpy(productInput[a * numberOfInstruments + i], instrumentsExcessReturns, i * numberOfReturns,
+						buffer, a * numberOfReturns, numberOfReturns);
+			}
+		}
+	}
+
+	private void backProject(int start, int end) {
+		for (int i = start; i < end; i++) {
+			for (int a = 0; a < numberOfSamples; a++) {
+				productOutput[a * numberOfInstruments + i] = kernels.dot(instrumentsExcessReturns,
+						i * numberOfReturns, projected, a * numberOfReturns, numberOfReturns) / numberOfReturns;
+			}
+		}
+	}
+
+	/**
+	 * Cyclic Jacobi eigen decomposition of the symmetric n x n matrix, which is
+	 * overwritten. The eigenvectors are the columns of <code>eigenvectors</code>,
+	 * row major.
+	 */
+	static void symmetricEigenDecomposition(double[] matrix, int n, double[] eigenvalues, double[] eigenvectors) {
+		Arrays.fill(eigenvectors, 0);
+		for (int i = 0; i < n; i++) {
+			eigenvectors[i * n + i] = 1;
+		}
+		for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++) {
+			double offDiagonal = 0;
+			double diagonal = 0;
+			for (int p = 0; p < n; p++) {
+				diagonal += matrix[p * n + p] * matrix[p * n + p];
+				for (int q = p + 1; q < n; q++) {
+					offDiagonal += matrix[p * n + q] * matrix[p * n + q];
+				}
+			}
+			if (offDiagonal <= 1e-30 * diagonal) {
+				break;
+			}
+			for (int p = 0; p < n; p++) {
+				for (int q = p + 1; q < n; q++) {
+					double apq = matrix[p * n + q];
+					if (apq == 0) {
+						continue;
+					}
+					double theta = (matrix[q * n + q] - matrix[p * n + p]) / (2 * apq);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0) {
+						t = 1;
+					}
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					for (int k = 0; k < n; k++) {
+						double akp = matrix[k * n + p];
+						double akq = matrix[k * n + q];
+						matrix[k * n + p] = c * akp - s * akq;
+						matrix[k * n + q] = s * akp + c * akq;
+					}
+					for (int k = 0; k < n; k++) {
+						double apk = matrix[p * n + k];
+						double aqk = matrix[q * n + k];
+						matrix[p * n + k] = c * apk - s * aqk;
+						matrix[q * n + k] = s * apk + c * aqk;
+					}
+					for (int k = 0; k < n; k++) {
+						double vkp = eigenvectors[k * n + p];
+						double vkq = eigenvectors[k * n + q];
+						eigenvectors[k * n + p] = c * vkp - s * vkq;
+						eigenvectors[k * n + q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			eigenvalues[i] = matrix[i * n + i];
+		}
+	}
+
+	/**
+	 * @return the covariance of the model, Σ<sub>f</sub> B<sub>xf</sub>
+	 *         F<sub>f</sub> B<sub>yf</sub> plus the specific variance on the
+	 *         diagonal, in O(k)
+	 */
+	@Override
+	public double getVarianceCovarianceMatrix(int x, int y) {
+		double covariance = x == y ? specificVariances[x] : 0;
+		for (int f = 0; f < numberOfFactors; f++) {
+			covariance += factorLoadings[f * numberOfInstruments + x] * factorVariances[f]
+					* factorLoadings[f * numberOfInstruments + y];
+		}
+		return covariance;
+	}
+}
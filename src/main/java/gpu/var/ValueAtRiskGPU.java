@@ -4,20 +4,48 @@ public class ValueAtRiskGPU extends AbstractValueAtRisk implements ValueAtRisk {
 
 	public ValueAtRiskGPU(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
 			int numberOfInstruments, int numberOfObservations, boolean debug) {
-		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, 
-				numberOfInstruments, numberOfObservations, debug);
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, CovarianceStorage.DENSE);
+	}
 
+	/**
+	 * @param covarianceStorage layout of the variance covariance matrix in the
+	 *                          device memory, the packed one halves the
+	 *                          transfers and the memory of the device
+	 */
+	public ValueAtRiskGPU(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, CovarianceStorage covarianceStorage) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, covarianceStorage);
 	}
 
 
+	private ValueAtRiskKernel kernel;
+
 	@Override
 	public void execute() {
-		ValueAtRiskKernel kernel = new ValueAtRiskKernel(instrumentsValueHistory, numberOfInstruments, numberOfObservations, instrumentsWeight,
-				varianceCovarienceMatrix, weightedCovariance, debug);
+		// The kernel is kept across runs, its buffers are uploaded by every execution
+		if (kernel == null || kernel.getInstrumentsValueHistory() != instrumentsValueHistory
+				|| kernel.getInstrumentsWeight() != instrumentsWeight) {
+			if (kernel != null) {
+				kernel.dispose();
+			}
+			kernel = new ValueAtRiskKernel(instrumentsValueHistory, numberOfInstruments, numberOfObservations,
+					instrumentsWeight, varianceCovarienceMatrix, weightedCovariance, debug, covarianceStorage);
+		}
 		kernel.execute();
 		this.portfolioStandardDeviation = kernel.getPortfolioStandardDeviation();
 		this.weightedAverageReturns = kernel.getWeightedAverageReturns();
 		computeVar();
 		printSummary();
 	}
+
+	/**
+	 * @return false, Σw and the average returns stay on the device, and reading
+	 *         them back would cost a transfer of the matrix
+	 */
+	@Override
+	protected boolean isHostReduced() {
+		return false;
+	}
 }
@@ -0,0 +1,154 @@
+package gpu.var;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Historical simulation Value at Risk: the VaR at α is the loss of the (1 - α)
+ * quantile of the portfolio returns over the historical scenarios, instead of
+ * the normal quantile of the variance covariance engines.
+ *
+ * The portfolio return of every scenario, Σ<sub>i</sub>
+ * w<sub>i</sub>r<sub>i,k</sub>, is computed by the parallel pass of
+ * {@link ValueAtRiskMatrixFreeJava}, which also gives the mean and the
+ * standard deviation. Its second pass over the history, for Σw, is skipped:
+ * the weighted covariance is left at zero. The quantiles are then picked by quickselect, in
+ * expected linear time rather than with a sort: the percentiles are selected
+ * from the highest quantile down, each one within the values below the
+ * previous one. The quantiles interpolate linearly between the order
+ * statistics (Hyndman and Fan's definition 7, the default of R and NumPy).
+ */
+public class ValueAtRiskHistoricalJava extends ValueAtRiskMatrixFreeJava {
+
+	private final int numberOfReturns;
+	// Portfolio returns of the scenarios, reordered by the selections
+	private final double[] scenarioReturns;
+
+	public ValueAtRiskHistoricalJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	public ValueAtRiskHistoricalJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			ExecutorService executorService) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, executorService);
+		this.numberOfReturns = numberOfObservations - 1;
+		this.scenarioReturns = new double[numberOfReturns];
+	}
+
+	/**
+	 * @return the portfolio return of every historical scenario of the last
+	 *         execution, in the order of the history
+	 */
+	public double[] getScenarioReturns() {
+		double[] portfolioExcessReturns = getPortfolioExcessReturns();
+		double[] returns = new double[numberOfReturns];
+		for (int k = 0; k < numberOfReturns; k++) {
+			returns[k] = portfolioExcessReturns[k] + weightedAverageReturns;
+		}
+		return returns;
+	}
+
+	@Override
+	protected void computeVar() {
+		double[] portfolioExcessReturns = getPortfolioExcessReturns();
+		for (int k = 0; k < numberOfReturns; k++) {
+			scenarioReturns[k] = portfolioExcessReturns[k] + weightedAverageReturns;
+		}
+
+		quantiles(scenarioReturns, numberOfReturns, VaRPercent);
+		for (int i = 0; i < PERCENTILES_VALUES.length; i++) {
+			VaRPercent[i] = -VaRPercent[i];
+			VaRValue[i] = portfolioValue * VaRPercent[i];
+		}
+	}
+
+	/**
+	 * Compute the (1 - α) quantile of the first <code>count</code> values for
+	 * every percentile α, the values are reordered.
+	 */
+	static void quantiles(double[] values, int count, double[] quantiles) {
+		// The percentiles increase, their quantiles 1 - α decrease
+		int to = count;
+		for (int i = 0; i < PERCENTILES_VALUES.length; i++) {
+			double position = (count - 1) * (1 - PERCENTILES_VALUES[i].percentage / 100);
+			int lower = (int) Math.floor(position);
+			select(values, 0, to, lower);
+			double quantile = values[lower];
+			if (lower + 1 < to) {
+				// The next order statistic is the smallest value above the selected one
+				double next = values[lower + 1];
+				for (int k = lower + 2; k < to; k++) {
+					next = Math.min(next, values[k]);
+				}
+				quantile += (position - lower) * (next - quantile);
+			}
+			quantiles[i] = quantile;
+			to = lower + 1;
+		}
+	}
+
+	/**
+	 * Reorder <code>values[from, to)</code> so that <code>values[k]</code> is the
+	 * value of rank k, with the smaller values before and the larger ones after
+	 * it (Hoare's quickselect with a median of three pivot)
+	 */
+	static void select(double[] values, int from, int to, int k) {
+		int left = from;
+		int right = to - 1;
+		while (right > left) {
+			int middle = (left + right) >>> 1;
+			if (values[middle] < values[left]) {
+				swap(values, middle, left);
+			}
+			if (values[right] < values[left]) {
+				swap(values, right, left);
+			}
+			if (values[right] < values[middle]) {
+				swap(values, right, middle);
+			}
+			double pivot = values[middle];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(values, i++, j--);
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static void swap(double[] values, int i, int j) {
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+
+	/**
+	 * @return false, the VaR is a quantile of the simulated returns
+	 */
+	@Override
+	protected boolean isParametric() {
+		return false;
+	}
+
+	@Override
+	String summaryLabel() {
+		return "HS";
+	}
+}
@@ -0,0 +1,258 @@
+package gpu.var;
+
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+
+/**
+ * Value at Risk engine over a rolling window of returns.
+ *
+ * The first {@link #execute()} builds the covariance matrix of the
+ * <code>numberOfObservations</code> prices given to the constructor. Every
+ * {@link #addObservation(double[])} then appends the new return vector and
+ * drops the oldest one with a rank-one update and a rank-one downdate of the
+ * matrix, in O(N²) instead of the O(N²·T) rebuild. Rounding errors accumulate
+ * with the updates, the matrix is therefore rebuilt from the returns of the
+ * window every <code>recomputeInterval</code> observations.
+ */
+public class ValueAtRiskIncrementalJava extends AbstractValueAtRisk implements ValueAtRisk {
+
+	static final int DEFAULT_GRAIN_SIZE = 250;
+	static final int DEFAULT_RECOMPUTE_INTERVAL = 64;
+
+	private final ExecutorService executorService;
+	private final SymmetricCovarianceBuilder covarianceBuilder;
+	private final int numberOfReturns;
+
+	// Raw returns of the window, observation by observation, used as a ring buffer
+	private final double[] instrumentsReturns;
+	// Centred, instrument major copy of the window used by the full rebuild
+	private final double[] instrumentsExcessReturns;
+	private final double[] lastInstrumentsValue;
+	private final double[] addedDeviation;
+	private final double[] removedDeviation;
+	private int oldestReturn = 0;
+	private int updatesSinceRebuild = 0;
+	private boolean initialized = false;
+
+	private int grainSize = DEFAULT_GRAIN_SIZE;
+	private int recomputeInterval = DEFAULT_RECOMPUTE_INTERVAL;
+	// Steps created once so that the updates do not allocate
+	private final ParallelRange.RangeTask rankTwoUpdateTask = this::updateVarianceCovarianceMatrix;
+	private final ParallelRange.RangeTask excessReturnsTask = this::calculateExcessReturns;
+	private double addedFactor;
+	private double removedFactor;
+
+	public ValueAtRiskIncrementalJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	public ValueAtRiskIncrementalJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			ExecutorService executorService) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, executorService, CovarianceStorage.DENSE);
+	}
+
+	/**
+	 * @param covarianceStorage layout of the variance covariance matrix, the
+	 *                          packed one halves its memory and the work of the
+	 *                          rolling updates
+	 */
+	public ValueAtRiskIncrementalJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			ExecutorService executorService, CovarianceStorage covarianceStorage) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, covarianceStorage);
+		this.executorService = executorService;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels, covarianceStorage);
+		this.numberOfReturns = numberOfObservations - 1;
+		this.instrumentsReturns = new double[numberOfInstruments * numberOfReturns];
+		this.instrumentsExcessReturns = new double[numberOfInstruments * numberOfReturns];
+		this.lastInstrumentsValue = new double[numberOfInstruments];
+		this.addedDeviation = new double[numberOfInstruments];
+		this.removedDeviation = new double[numberOfInstruments];
+	}
+
+	public void setGrainSize(int grainSize) {
+		ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	/**
+	 * Number of rolling updates after which the covariance matrix is rebuilt
+	 * from the window to bound the numerical drift.
+	 */
+	public void setRecomputeInterval(int recomputeInterval) {
+		if (recomputeInterval < 1) {
+			throw new IllegalArgumentException(String
+					.format("Invalid recomputeInterval=%d, the interval must be positive", recomputeInterval));
+		}
+		this.recomputeInterval = recomputeInterval;
+	}
+
+	public int getRecomputeInterval() {
+		return recomputeInterval;
+	}
+
+	/**
+	 * Replace the history, the window is rebuilt from it by the next
+	 * {@link #execute()} or {@link #addObservation(double[])}
+	 */
+	@Override
+	public void setInstrumentsValueHistory(double[] instrumentsValueHistory) {
+		super.setInstrumentsValueHistory(instrumentsValueHistory);
+		initialized = false;
+	}
+
+	@Override
+	public void execute() {
+		if (!initialized) {
+			initialize();
+		}
+
+		reduceVarianceCovarianceMatrix(executorService, grainSize);
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
+	}
+
+	/**
+	 * Roll the window by one observation: the return from the last known prices
+	 * to <code>instrumentsValue</code> replaces the oldest return of the window.
+	 *
+	 * @param instrumentsValue the price of every instrument at the new observation
+	 */
+	public void addObservation(double[] instrumentsValue) {
+		if (instrumentsValue.length < numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d instrument values but got %d",
+					numberOfInstruments, instrumentsValue.length));
+		}
+		if (!initialized) {
+			initialize();
+		}
+
+		// Add the new return x then remove the oldest return y with Welford's updates,
+		// for a window of n returns and a = x - μ, μ1 = μ + a / (n + 1), b = y - μ1:
+		// Σ' = Σ + a a' / (n + 1) - (n + 1) / n² b b'
+		double n = numberOfReturns;
+		int slot = oldestReturn * numberOfInstruments;
+		for (int i = 0; i < numberOfInstruments; i++) {
+			double newReturn = instrumentsValue[i] / lastInstrumentsValue[i] - 1;
+			double average = instrumentsAverageReturns[i];
+
+			double added = newReturn - average;
+			average += added / (n + 1);
+			double removed = instrumentsReturns[slot + i] - average;
+			average -= removed / n;
+
+			addedDeviation[i] = added;
+			removedDeviation[i] = removed;
+			instrumentsAverageReturns[i] = average;
+			instrumentsReturns[slot + i] = newReturn;
+			lastInstrumentsValue[i] = instrumentsValue[i];
+		}
+		oldestReturn = (oldestReturn + 1) % numberOfReturns;
+
+		if (++updatesSinceRebuild >= recomputeInterval) {
+			rebuildVarianceCovarianceMatrix();
+			return;
+		}
+
+		addedFactor = 1 / (n + 1);
+		removedFactor = (n + 1) / (n * n);
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, rankTwoUpdateTask);
+
+		if (debug) {
+			debugCovarianceMatrix();
+		}
+	}
+
+	private void initialize() {
+		for (int k = 0; k < numberOfReturns; k++) {
+			int previous = k * numberOfInstruments;
+			int current = previous + numberOfInstruments;
+			for (int i = 0; i < numberOfInstruments; i++) {
+				instrumentsReturns[previous + i] = instrumentsValueHistory[current + i]
+						/ instrumentsValueHistory[previous + i] - 1;
+			}
+		}
+		System.arraycopy(instrumentsValueHistory, numberOfReturns * numberOfInstruments, lastInstrumentsValue, 0,
+				numberOfInstruments);
+		oldestReturn = 0;
+		rebuildVarianceCovarianceMatrix();
+		initialized = true;
+	}
+
+	/**
+	 * Rebuild the averages and the covariance matrix from the returns of the
+	 * window. The order of the returns in the ring buffer does not matter.
+	 */
+	private void rebuildVarianceCovarianceMatrix() {
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, excessReturnsTask);
+		covarianceBuilder.build(executorService, grainSize, instrumentsExcessReturns, numberOfReturns,
+				varianceCovarienceMatrix);
+		updatesSinceRebuild = 0;
+
+		if (debug) {
+			debugCovarianceMatrix();
+		}
+	}
+
+	/**
+	 * Apply the rank-one update and downdate to the rows [start, end), only on and
+	 * above the diagonal with the packed storage
+	 */
+	private void updateVarianceCovarianceMatrix(int chunk, int start, int end) {
+		boolean packed = covarianceStorage == CovarianceStorage.PACKED;
+		for (int r = start; r < end; r++) {
+			int first = packed ? r : 0;
+			int row = packed ? CovarianceStorage.rowOffset(numberOfInstruments, r) + r : r * numberOfInstruments;
+			int length = numberOfInstruments - first;
+			kernels.axpy(addedFactor * addedDeviation[r], addedDeviation, first, varianceCovarienceMatrix, row, length);
+			kernels.axpy(-removedFactor * removedDeviation[r], removedDeviation, first, varianceCovarienceMatrix, row,
+					length);
+		}
+	}
+
+	/**
+	 * Compute the averages and the centred, instrument major returns of the
+	 * instruments [start, end) from the window
+	 */
+	private void calculateExcessReturns(int chunk, int start, int end) {
+		// Single pass over the window with running means, as in ExcessReturns
+		for (int i = start; i < end; i++) {
+			instrumentsAverageReturns[i] = 0;
+		}
+		for (int k = 0; k < numberOfReturns; k++) {
+			int row = k * numberOfInstruments;
+			double inverseCount = 1.0 / (k + 1);
+			for (int i = start; i < end; i++) {
+				double returnValue = instrumentsReturns[row + i];
+				instrumentsExcessReturns[i * numberOfReturns + k] = returnValue;
+				instrumentsAverageReturns[i] += (returnValue - instrumentsAverageReturns[i]) * inverseCount;
+			}
+		}
+		for (int i = start; i < end; i++) {
+			kernels.subtract(instrumentsExcessReturns, i * numberOfReturns, numberOfReturns,
+					instrumentsAverageReturns[i]);
+		}
+	}
+
+	protected void debugCovarianceMatrix() {
+		for (int y = 0; y < this.numberOfInstruments; y++) {
+			for (int x = 0; x < this.numberOfInstruments; x++) {
+				System.out.print(
+						String.format("%+.12f     ", getVarianceCovarianceMatrix(x, y)));
+			}
+			System.out.println();
+		}
+	}
+}
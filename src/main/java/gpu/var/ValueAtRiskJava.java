@@ -1,227 +1,187 @@
 package gpu.var;
 
-import java.lang.Thread.UncaughtExceptionHandler;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+
+import gpu.kernels.JavaKernels;
+import gpu.kernels.ParallelRange;
 
 public class ValueAtRiskJava extends AbstractValueAtRisk implements ValueAtRisk {
 
-	static final int BLOCK_SIZE = 250;
+	static final int DEFAULT_GRAIN_SIZE = 250;
 
+	// Instrument major, the returns of an instrument are contiguous
 	private final double[] instrumentsExcessReturns;
-	// [0] Average price, [1] Average return
-	private final double[] instrumentsStatistics;
-	private double[] weightedAverageReturnsBuffer;
-	private double[] portfolioStandardDeviationBuffer;
-	private int subrange;
+	private int grainSize;
+	private final ExecutorService executorService;
+	private SymmetricCovarianceBuilder covarianceBuilder;
+	private CovarianceCache covarianceCache;
+	// True when varianceCovarienceMatrix is owned by the cache and must not be written
+	private boolean sharedVarianceCovarianceMatrix = false;
+	// Steps of execute(), created once so that the runs do not allocate
+	private final ParallelRange.RangeTask excessReturnsTask;
 
 	public ValueAtRiskJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
 			int numberOfInstruments, int numberOfObservations, boolean debug) {
-		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
-				debug);
-		this.instrumentsExcessReturns = new double[numberOfInstruments * numberOfObservations];
-		this.instrumentsStatistics = new double[numberOfInstruments * 2];
-		this.subrange = (this.numberOfInstruments / BLOCK_SIZE) + 1;
-		this.weightedAverageReturnsBuffer = new double[subrange];
-		this.portfolioStandardDeviationBuffer = new double[subrange];
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, ValueAtRiskExecutors.getSharedExecutor());
 	}
 
-	@Override
-	public void execute() {
+	/**
+	 * @param executorService executor running the computation steps, it is not
+	 *                        shut down by the engine and can therefore be shared
+	 *                        across instances and runs
+	 */
+	public ValueAtRiskJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, ExecutorService executorService) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, executorService, CovarianceStorage.DENSE);
+	}
 
-		try {
-
-			ExecutorService executorService = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
-					Runtime.getRuntime().availableProcessors(), 0L, TimeUnit.MILLISECONDS,
-					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
-						@Override
-						public Thread newThread(Runnable r) {
-							final Thread thread = new Thread(r);
-							thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-								@Override
-								public void uncaughtException(Thread t, Throwable e) {
-									System.out.println("Uncaught Exception occurred on thread: " + t.getName());
-									System.out.println("Exception message: " + e.getMessage());
-								}
-							});
-							return thread;
-						}
-					});
-
-
-			List<Callable<Integer>> step1Tasks = new ArrayList<>();
-			for (int i = 0; i < this.numberOfInstruments; i++) {
-				final int index = i;
-				Callable<Integer> step1 = () -> {
-					calculateExcessReturns(index);
-					return 0;
-				};
-				step1Tasks.add(step1);
-			}
-			executorService.invokeAll(step1Tasks);
+	/**
+	 * @param covarianceStorage layout of the variance covariance matrix, the
+	 *                          packed one halves its memory
+	 */
+	public ValueAtRiskJava(double[] instrumentsValueHistory, double[] instrumentsWeight, double portfolioValue,
+			int numberOfInstruments, int numberOfObservations, boolean debug, ExecutorService executorService,
+			CovarianceStorage covarianceStorage) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, covarianceStorage);
+		this.instrumentsExcessReturns = new double[numberOfInstruments * (numberOfObservations - 1)];
+		// The field, replaced by setInstrumentsValueHistory
+		this.excessReturnsTask = (chunk, start, end) -> ExcessReturns.calculate(this.instrumentsValueHistory,
+				numberOfInstruments, numberOfObservations, start, end, instrumentsExcessReturns,
+				instrumentsAverageReturns, kernels);
+		this.executorService = executorService;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels, covarianceStorage);
+		setGrainSize(DEFAULT_GRAIN_SIZE);
+	}
 
-			if (debug) {
-				debugExcessReturns();
-			}
+	/**
+	 * Number of instruments processed by a single task. Smaller grains balance
+	 * the load better, larger grains reduce the scheduling overhead.
+	 */
+	public void setGrainSize(int grainSize) {
+		ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+	}
 
-			List<Callable<Integer>> step2Tasks = new ArrayList<>();
-			for (int i = 0; i < this.numberOfInstruments; i++) {
-				final int index = i;
-				Callable<Integer> step1 = () -> {
-					computeWeightedAverageReturns(index);
-					buildVarianceCovarianceMatrix(index);
-					return 0;
-				};
-				step2Tasks.add(step1);
-			}
-			executorService.invokeAll(step2Tasks);
+	public int getGrainSize() {
+		return grainSize;
+	}
 
-			if (debug) {
-				debugCovarianceMatrix();
-			}
-			List<Callable<Integer>> step3Tasks = new ArrayList<>();
-			for (int i = 0; i < this.numberOfInstruments; i++) {
-				final int index = i;
-				Callable<Integer> step1 = () -> {
-					computeWeightedCovarianceMatrix(index);
-					return 0;
-				};
-				step3Tasks.add(step1);
-			}
-			executorService.invokeAll(step3Tasks);
+	/**
+	 * @return the executor running the computation steps
+	 */
+	protected ExecutorService getExecutorService() {
+		return executorService;
+	}
 
-			if (debug) {
-				debugWeightedAverageAndWeightedCovariance();
-			}
-			
-			List<Callable<Integer>> step4Tasks = new ArrayList<>();
-			for (int i = 0; i < this.numberOfInstruments; i++) {
-				final int index = i;
-				Callable<Integer> step1 = () -> {
-					computeStandardDeviation(index);
-					return 0;
-				};
-				step4Tasks.add(step1);
-			}
-			executorService.invokeAll(step4Tasks);
+	/**
+	 * Select the implementation of the inner loops, by default the vector one
+	 * when the runtime supports it
+	 */
+	public void setKernels(JavaKernels kernels) {
+		this.kernels = kernels;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels, covarianceStorage);
+	}
 
-			executorService.shutdown();
+	public JavaKernels getKernels() {
+		return kernels;
+	}
 
-			for (int i = 0; i < subrange; i++) {
-				weightedAverageReturns += weightedAverageReturnsBuffer[i];
-			}
+	/**
+	 * Reuse the covariance matrices of the cache for the histories already seen
+	 * and cache the matrices of the others, null to disable caching
+	 */
+	public void setCovarianceCache(CovarianceCache covarianceCache) {
+		this.covarianceCache = covarianceCache;
+	}
 
-			for (int i = 0; i < subrange; i++) {
-				portfolioStandardDeviation += portfolioStandardDeviationBuffer[i];
-			}
-			portfolioStandardDeviation = (double) Math.sqrt((double) portfolioStandardDeviation);
+	public CovarianceCache getCovarianceCache() {
+		return covarianceCache;
+	}
 
-			computeVar();
-			printSummary();
+	@Override
+	public void execute() {
 
-		} catch (InterruptedException e) {
-			throw new IllegalStateException(e);
+		CovarianceCache.Key key = null;
+		CovarianceCache.Entry entry = null;
+		if (covarianceCache != null) {
+			key = CovarianceCache.key(instrumentsValueHistory, numberOfInstruments, numberOfObservations,
+					covarianceStorage);
+			entry = covarianceCache.get(key);
 		}
-	}
 
-	/**
-	 * Compute the weighted average return from the instruments statistics
-	 */
-	private void computeWeightedAverageReturns(int index) {
-		if (index % BLOCK_SIZE != 0) {
-			return;
-		}
-		int range = index == 0 ? (this.numberOfInstruments < BLOCK_SIZE ? this.numberOfInstruments : BLOCK_SIZE)
-				: this.numberOfInstruments - ((BLOCK_SIZE / index) * BLOCK_SIZE);
-		int start = BLOCK_SIZE * (index / BLOCK_SIZE);
-		double weightedReturns = 0;
-		for (int i = start; i < start + range; i++) {
-			weightedReturns += instrumentsStatistics[i * 2 + 1] * instrumentsWeight[i];
+		if (entry == null) {
+			computeVarianceCovarianceMatrix(key);
+		} else {
+			varianceCovarienceMatrix = entry.getVarianceCovarianceMatrix();
+			sharedVarianceCovarianceMatrix = true;
+			double[] averageReturns = entry.getInstrumentsAverageReturns();
+			System.arraycopy(averageReturns, 0, instrumentsAverageReturns, 0, numberOfInstruments);
 		}
-		weightedAverageReturnsBuffer[index / BLOCK_SIZE] = weightedReturns;
-	}
 
-	/**
-	 * Compute the weighted covariance matrix from the variance covariance matrix
-	 */
-	private void computeWeightedCovarianceMatrix(int instrumentId) {
-		double weightedCovarianceOfInst = 0;
-		for (int i = 0; i < this.numberOfInstruments; i++) {
-			weightedCovarianceOfInst += varianceCovarienceMatrix[instrumentId * this.numberOfInstruments + i]
-					;
+		long weightsFingerprint = 0;
+		double[] cachedCovarianceTimesWeights = null;
+		if (key != null) {
+			weightsFingerprint = CovarianceCache.fingerprint(instrumentsWeight, numberOfInstruments);
+			cachedCovarianceTimesWeights = covarianceCache.getCovarianceTimesWeights(key, weightsFingerprint);
 		}
-		weightedCovariance[instrumentId] = weightedCovarianceOfInst * instrumentsWeight[instrumentId]* instrumentsWeight[instrumentId];
-	}
 
-	private void computeStandardDeviation(int index) {
-		if (index % BLOCK_SIZE != 0) {
-			return;
+		if (cachedCovarianceTimesWeights != null) {
+			System.arraycopy(cachedCovarianceTimesWeights, 0, covarianceTimesWeights, 0, numberOfInstruments);
+			reduceCovarianceTimesWeights(executorService, grainSize);
+		} else {
+			reduceVarianceCovarianceMatrix(executorService, grainSize);
+			if (key != null) {
+				covarianceCache.putCovarianceTimesWeights(key, weightsFingerprint, covarianceTimesWeights.clone());
+			}
 		}
-		int range = index == 0 ? (this.numberOfInstruments < BLOCK_SIZE ? this.numberOfInstruments : BLOCK_SIZE)
-				: this.numberOfInstruments - ((BLOCK_SIZE / index) * BLOCK_SIZE);
-		int start = BLOCK_SIZE * (index / BLOCK_SIZE);
-		double portfolioDeviation = 0;
-		for (int i = start; i < start + range; i++) {
-			portfolioDeviation += (weightedCovariance[i]);
+
+		if (debug) {
+			debugWeightedAverageAndWeightedCovariance();
 		}
-		portfolioStandardDeviationBuffer[index / BLOCK_SIZE] = portfolioDeviation;
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
 	}
 
 	/**
-	 * Calculate the excess returns based on the instrument history
-	 * 
-	 * @param instrumentId
+	 * Compute the excess returns, the average returns and the variance
+	 * covariance matrix from the history, and cache the matrix under the key
+	 * unless it is null
 	 */
-	private void calculateExcessReturns(int instrumentId) {
+	private void computeVarianceCovarianceMatrix(CovarianceCache.Key key) {
+		if (sharedVarianceCovarianceMatrix) {
+			varianceCovarienceMatrix = covarianceStorage.allocate(numberOfInstruments);
+			sharedVarianceCovarianceMatrix = false;
+		}
 
-		double averageReturn = 0;
-		for (int j = 1; j < numberOfObservations; j++) {
-			double returnValue = instrumentsValueHistory[instrumentId + numberOfInstruments * j]
-					/ instrumentsValueHistory[instrumentId + numberOfInstruments * (j - 1)] - 1;
-			instrumentsExcessReturns[instrumentId + (numberOfInstruments) * (j - 1)] = returnValue;
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, excessReturnsTask);
 
-			averageReturn += returnValue;
+		if (debug) {
+			debugExcessReturns();
 		}
-		instrumentsStatistics[instrumentId * 2 + 1] = averageReturn / (numberOfObservations - 1);
 
-		for (int j = 0; j < numberOfObservations - 1; j++) {
-			instrumentsExcessReturns[instrumentId
-					+ j * (numberOfInstruments)] = instrumentsExcessReturns[instrumentId + numberOfInstruments * j]
-							- instrumentsStatistics[instrumentId * 2 + 1];
+		covarianceBuilder.build(executorService, grainSize, instrumentsExcessReturns, numberOfObservations - 1,
+				varianceCovarienceMatrix);
+
+		if (debug) {
+			debugCovarianceMatrix();
 		}
-	}
 
-	/**
-	 * Calculate a covariance matrix, based on the instruments excess returns
-	 * 
-	 * @param instrumentId
-	 */
-	private void buildVarianceCovarianceMatrix(int instrumentId) {
-		for (int c = 0; c < numberOfInstruments; c++) {
-			double covariance = 0;
-			for (int k = 0; k < numberOfObservations - 1; k++) {
-				double a = instrumentsExcessReturns[k * (numberOfInstruments) + c];
-				double b = instrumentsExcessReturns[k * (numberOfInstruments) + instrumentId];
-//				if (instrumentId == 0) {
-//					System.out.println(String.format("%.5f * %.5f", a, b));
-//				}
-				covariance += a * b;
-			}
-			varianceCovarienceMatrix[instrumentId + numberOfInstruments * c] = covariance / (numberOfObservations - 1);
+		if (key != null) {
+			covarianceCache.put(key, varianceCovarienceMatrix, instrumentsAverageReturns.clone());
+			sharedVarianceCovarianceMatrix = true;
 		}
 	}
-	
+
 	protected void debugExcessReturns() {
 		for (int y = 0; y < this.numberOfObservations - 1; y++) {
 			for (int x = 0; x < this.numberOfInstruments; x++) {
 				System.out.print(
-						String.format("%+.12f     ", instrumentsExcessReturns[x + y * (this.numberOfInstruments)]));
+						String.format("%+.12f     ", instrumentsExcessReturns[x * (this.numberOfObservations - 1) + y]));
 			}
 			System.out.println();
 		}
@@ -232,7 +192,7 @@ public class ValueAtRiskJava extends AbstractValueAtRisk implements ValueAtRisk
 		for (int y = 0; y < this.numberOfInstruments; y++) {
 			for (int x = 0; x < this.numberOfInstruments; x++) {
 				System.out.print(
-						String.format("%+.12f     ", varianceCovarienceMatrix[x + y * (this.numberOfInstruments)]));
+						String.format("%+.12f     ", getVarianceCovarianceMatrix(x, y)));
 			}
 			System.out.println();
 		}
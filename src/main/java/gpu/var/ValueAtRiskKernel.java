@@ -19,7 +19,6 @@ class ValueAtRiskKernel extends Kernel {
 
 	private double[] results;
 
-	private double avgBuffer[];
 	private double avgWeightedAverage[];
 	private double avgVariance[];
 
@@ -28,11 +27,21 @@ class ValueAtRiskKernel extends Kernel {
 	private int tileSize = 2;
 	private final int MAX_TILE_SIZE = 8;
 	private int numTiles;
+	// 1 when the matrix is stored as the packed upper triangle, see CovarianceStorage
+	private int packedStorage;
 	int step = 0;
 	boolean debug;
 
 	public ValueAtRiskKernel(double[] instrumentsValueHistory, int numberOfInstruments, int numberOfObservations,
 			double[] instrumentsWeight, double[] varianceCovarienceMatrix, double[] weightedCovariance, boolean debug) {
+		this(instrumentsValueHistory, numberOfInstruments, numberOfObservations, instrumentsWeight,
+				varianceCovarienceMatrix, weightedCovariance, debug, CovarianceStorage.DENSE);
+	}
+
+	public ValueAtRiskKernel(double[] instrumentsValueHistory, int numberOfInstruments, int numberOfObservations,
+			double[] instrumentsWeight, double[] varianceCovarienceMatrix, double[] weightedCovariance, boolean debug,
+			CovarianceStorage covarianceStorage) {
+		this.packedStorage = covarianceStorage == CovarianceStorage.PACKED ? 1 : 0;
 		this.innerInstrumentsValueHistory = instrumentsValueHistory;
 		this.numberOfInstruments = numberOfInstruments;
 		this.numberOfObservations = numberOfObservations;
@@ -52,8 +61,6 @@ class ValueAtRiskKernel extends Kernel {
 		tileSize = 4;
 		this.numTiles = numberOfObservations / tileSize;
 
-		avgBuffer = new double[this.numberOfInstruments * ((this.numberOfObservations / tileSize) + 1)];
-
 		avgWeightedAverage = new double[this.numberOfInstruments / tileSize + 1];
 		avgVariance = new double[this.numberOfInstruments / tileSize + 1];
 
@@ -74,29 +81,21 @@ class ValueAtRiskKernel extends Kernel {
 		this.put(weightedAverageReturns);
 
 		System.out.println(String.format("Starting the GPU kernel with tile size = %d", tileSize));
-		executeStep(0, "compute returns",
-				Range.create2D(numberOfInstruments, numberOfObservations, tileSize, tileSize));
-		if (debug) {
-			debugReturns();
-		}
-		executeStep(1, "compute average", Range.create2D(numberOfInstruments, numberOfObservations / tileSize));
+		executeStep(0, "compute average and excess returns", Range.create(numberOfInstruments));
 		if (debug) {
 			debugWeightedAverageReturns();
-		}
-		executeStep(2, "compute excess returns", Range.create2D(numberOfInstruments, numberOfObservations - 1, 1, 1));
-		if (debug) {
 			debugExcessReturns();
 		}
-		executeStep(3, "compute covariance matrix",
+		executeStep(1, "compute covariance matrix",
 				Range.create2D(numberOfInstruments, numberOfInstruments, tileSize, tileSize));
 		if (debug) {
 			debugCovarianceMatrix();
 		}
-		executeStep(4, "compute Weighted Average Returns and Weighted Covariance", Range.create(numberOfInstruments));
+		executeStep(2, "compute Weighted Average Returns and Weighted Covariance", Range.create(numberOfInstruments));
 		if (debug) {
 			debugWeightedAverageAndWeightedCovariance();
 		}
-		executeStep(5, "compute Variance and Average Return", Range.create(numberOfInstruments / tileSize));
+		executeStep(3, "compute Variance and Average Return", Range.create(numberOfInstruments / tileSize));
 
 		this.get(results);
 		this.portfolioStandardDeviation = sqrt(results[1]);
@@ -126,8 +125,7 @@ class ValueAtRiskKernel extends Kernel {
 		this.get(varianceCovarienceMatrix);
 		for (int y = 0; y < this.numberOfInstruments; y++) {
 			for (int x = 0; x < this.numberOfInstruments; x++) {
-				System.out.print(
-						String.format("%+.12f     ", varianceCovarienceMatrix[x + y * (this.numberOfInstruments)]));
+				System.out.print(String.format("%+.12f     ", varianceCovarienceMatrix[covarianceIndex(y, x)]));
 			}
 			System.out.println();
 		}
@@ -153,32 +151,16 @@ class ValueAtRiskKernel extends Kernel {
 		System.out.println();
 	}
 
-	protected void debugReturns() {
-		this.get(instrumentsExcessReturns);
-		for (int y = 0; y < this.numberOfObservations - 1; y++) {
-			for (int x = 0; x < this.numberOfInstruments; x++) {
-				System.out.print(
-						String.format("%+.12f     ", instrumentsExcessReturns[x + y * (this.numberOfInstruments)]));
-			}
-			System.out.println();
-		}
-		System.out.println();
-	}
-
 	@Override
 	public void run() {
 
 		if (step == 0) {
-			computeReturnMatrix();
+			computeExcessReturns();
 		} else if (step == 1) {
-			computeAvgReturn();
-		} else if (step == 2) {
-			computeExcessReturn();
-		} else if (step == 3) {
 			computeCovarianceMatrix();
-		} else if (step == 4) {
+		} else if (step == 2) {
 			computeWeightedCovarianceAndAverageReturn();
-		} else if (step == 5) {
+		} else if (step == 3) {
 			computeWeightedAverageReturnAndVariance();
 		}
 
@@ -188,17 +170,25 @@ class ValueAtRiskKernel extends Kernel {
 
 		int y = getGlobalId();
 
+		// (Σw)y
 		double weightedCovarianceValue = 0;
 		for (int x = 0; x < numberOfInstruments; x++) {
-			weightedCovarianceValue +=  this.varianceCovarienceMatrix[x + y * numberOfInstruments];
+			weightedCovarianceValue += this.varianceCovarienceMatrix[covarianceIndex(y, x)] * instrumentsWeight[x];
 		}
 
 		weightedAverageReturns[y] = this.weightedAverageReturns[y] * instrumentsWeight[y];
-		this.weightedCovariance[y] = weightedCovarianceValue * instrumentsWeight[y] * instrumentsWeight[y];
+		this.weightedCovariance[y] = weightedCovarianceValue * instrumentsWeight[y];
 		localBarrier();
 	}
 
 	protected void computeCovarianceMatrix() {
+		// The matrix is symmetric, only the groups on and above the diagonal are
+		// computed and mirrored. The test is uniform within a group so that no work
+		// item of a computing group misses the barriers.
+		if (getGroupId(1) > getGroupId(0)) {
+			return;
+		}
+
 		int col = getLocalId(0);
 		int row = getLocalId(1);
 
@@ -231,49 +221,54 @@ class ValueAtRiskKernel extends Kernel {
 			localBarrier();
 		}
 
-		this.varianceCovarienceMatrix[globalRow * this.numberOfInstruments + globalCol] = value
-				/ (numberOfObservations - 1);
+		double covariance = value / (numberOfObservations - 1);
+		if (packedStorage == 1) {
+			if (globalRow <= globalCol) {
+				this.varianceCovarienceMatrix[covarianceIndex(globalRow, globalCol)] = covariance;
+			}
+		} else {
+			this.varianceCovarienceMatrix[globalRow * this.numberOfInstruments + globalCol] = covariance;
+			this.varianceCovarienceMatrix[globalCol * this.numberOfInstruments + globalRow] = covariance;
+		}
 	}
 
-	protected void computeExcessReturn() {
-		int globalCol = getGlobalId(0);
-		int globalRow = getGlobalId(1);
-
-		// Because we are tiling the matrix we might overflow because of the tiling size
-		if (globalRow > numberOfObservations || globalCol > numberOfInstruments) {
-			return;
+	/**
+	 * @return the index of [row, column] in the matrix, see
+	 *         {@link CovarianceStorage#index(int, int, int)}
+	 */
+	protected int covarianceIndex(int row, int column) {
+		if (packedStorage == 0) {
+			return row * numberOfInstruments + column;
 		}
-
-		this.instrumentsExcessReturns[globalCol + globalRow * numberOfInstruments] -= weightedAverageReturns[globalCol];
-		localBarrier();
+		int first = min(row, column);
+		long offset = (long) first * (2L * numberOfInstruments - first - 1) / 2;
+		return (int) offset + max(row, column);
 	}
 
-	protected void computeAvgReturn() {
-		int returns = getGlobalId(1);
-		if (returns >= numberOfObservations - 1) {
+	/**
+	 * Compute the returns of an instrument, their running mean and centre them.
+	 * The history is read once, the second loop only reads back the returns the
+	 * work item has just written. Consecutive work items access consecutive
+	 * instruments, the accesses of a group are therefore coalesced.
+	 */
+	protected void computeExcessReturns() {
+		int instrumentId = getGlobalId(0);
+		if (instrumentId >= numberOfInstruments) {
 			return;
 		}
 
-		int instrumentId = getGlobalId(0);
-
-		double returnsValue = 0;
-		for (int i = 0; i < tileSize && (returns * tileSize + i) < (this.numberOfObservations - 1); i++) {
-			double val = this.instrumentsExcessReturns[instrumentId + (returns * tileSize + i) * numberOfInstruments];
-			returnsValue += val;
+		double average = 0;
+		for (int j = 1; j < numberOfObservations; j++) {
+			double returnValue = innerInstrumentsValueHistory[instrumentId + j * numberOfInstruments]
+					/ innerInstrumentsValueHistory[instrumentId + (j - 1) * numberOfInstruments] - 1;
+			instrumentsExcessReturns[instrumentId + (j - 1) * numberOfInstruments] = returnValue;
+			average += (returnValue - average) / j;
 		}
-		int o = instrumentId + (returns) * this.numberOfInstruments;
-
-		avgBuffer[o] += returnsValue;
-		localBarrier();
 
-		if (returns == getGlobalSize(1) - 1) {
-			double avg = 0;
-			for (int i = 0; i < getGlobalSize(1); i++) {
-				avg += avgBuffer[instrumentId + i * this.numberOfInstruments];
-			}
-			weightedAverageReturns[instrumentId] = avg / (this.numberOfObservations - 1);
+		for (int j = 0; j < numberOfObservations - 1; j++) {
+			instrumentsExcessReturns[instrumentId + j * numberOfInstruments] -= average;
 		}
-		localBarrier();
+		weightedAverageReturns[instrumentId] = average;
 	}
 
 	protected void computeWeightedAverageReturnAndVariance() {
@@ -287,8 +282,9 @@ class ValueAtRiskKernel extends Kernel {
 
 		}
 
-		avgVariance[instrumentId] += sumVariance;
-		avgWeightedAverage[instrumentId] += sumAverage;
+		// Assigned rather than accumulated so that the kernel can be executed again
+		avgVariance[instrumentId] = sumVariance;
+		avgWeightedAverage[instrumentId] = sumAverage;
 
 		localBarrier();
 
@@ -306,22 +302,12 @@ class ValueAtRiskKernel extends Kernel {
 		localBarrier();
 	}
 
-	protected void computeReturnMatrix() {
-		int col = getLocalId(0);
-		int row = getLocalId(1);
-
-		int globalCol = tileSize * getGroupId(0) + col;
-		int globalRow = tileSize * getGroupId(1) + row;
-
-		// Because we are tiling the matrix we might overflow because of the tiling size
-		if (globalRow == 0 || globalRow > numberOfObservations || globalCol > numberOfInstruments) {
-			return;
-		}
+	double[] getInstrumentsValueHistory() {
+		return innerInstrumentsValueHistory;
+	}
 
-		double excessReturn = (this.innerInstrumentsValueHistory[globalCol + (globalRow) * numberOfInstruments])
-				/ (this.innerInstrumentsValueHistory[globalCol + (globalRow - 1) * numberOfInstruments]) - 1;
-		this.instrumentsExcessReturns[globalCol + (globalRow - 1) * numberOfInstruments] = excessReturn;
-		localBarrier();
+	double[] getInstrumentsWeight() {
+		return instrumentsWeight;
 	}
 
 	public double getPortfolioStandardDeviation() {
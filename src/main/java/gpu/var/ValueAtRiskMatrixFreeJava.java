@@ -0,0 +1,194 @@
+package gpu.var;
+
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+
+/**
+ * Value at Risk engine that never materialises the N x N variance covariance
+ * matrix.
+ *
+ * With R the centred excess returns (observations x instruments) and
+ * Σ = R'R / T, the portfolio variance w'Σw is the variance of the portfolio
+ * excess returns p = Rw, i.e. p'p / T. The per instrument weighted covariance
+ * w<sub>i</sub>(Σw)<sub>i</sub> = w<sub>i</sub>(R'p)<sub>i</sub> / T is
+ * obtained from the same vector. Both take O(N·T) time and O(N + T) memory on
+ * top of the history, the returns are recomputed from the prices on the fly.
+ * {@link #getVarianceCovarianceMatrix(int, int)} is therefore not supported.
+ */
+public class ValueAtRiskMatrixFreeJava extends AbstractValueAtRisk implements ValueAtRisk {
+
+	static final int DEFAULT_GRAIN_SIZE = 1024;
+
+	private final ExecutorService executorService;
+	private final int numberOfReturns;
+	private final double[] portfolioExcessReturns;
+	private double[] portfolioExcessReturnsBuffer;
+	private double[] weightedAverageReturnsBuffer;
+	private int subrange;
+	private int grainSize;
+	// Steps of execute(), created once so that the runs do not allocate
+	private final ParallelRange.RangeTask averageAndPortfolioReturnsTask = this::computeAverageAndPortfolioReturns;
+	private final ParallelRange.RangeTask weightedCovarianceTask = (chunk, start,
+			end) -> computeWeightedCovariance(start, end);
+
+	public ValueAtRiskMatrixFreeJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	public ValueAtRiskMatrixFreeJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			ExecutorService executorService) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, null);
+		this.executorService = executorService;
+		this.numberOfReturns = numberOfObservations - 1;
+		this.portfolioExcessReturns = new double[numberOfReturns];
+		setGrainSize(DEFAULT_GRAIN_SIZE);
+	}
+
+	/**
+	 * Number of instruments processed by a single task. Every task keeps a buffer
+	 * of the partial portfolio returns, larger grains therefore also use less
+	 * memory.
+	 */
+	public void setGrainSize(int grainSize) {
+		this.subrange = ParallelRange.numberOfChunks(this.numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+		this.portfolioExcessReturnsBuffer = new double[subrange * numberOfReturns];
+		this.weightedAverageReturnsBuffer = new double[subrange];
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	@Override
+	public void execute() {
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, averageAndPortfolioReturnsTask);
+
+		weightedAverageReturns = 0;
+		for (int i = 0; i < subrange; i++) {
+			weightedAverageReturns += weightedAverageReturnsBuffer[i];
+		}
+
+		// p = Rw - w'μ, the chunks hold the partial sums of Rw
+		double variance = 0;
+		for (int k = 0; k < numberOfReturns; k++) {
+			double portfolioReturn = 0;
+			for (int chunk = 0; chunk < subrange; chunk++) {
+				portfolioReturn += portfolioExcessReturnsBuffer[chunk * numberOfReturns + k];
+			}
+			portfolioReturn -= weightedAverageReturns;
+			portfolioExcessReturns[k] = portfolioReturn;
+			variance += portfolioReturn * portfolioReturn;
+		}
+		portfolioStandardDeviation = Math.sqrt(variance / numberOfReturns);
+
+		// The simulation engines only need p, Σw would cost a second O(N·T) pass
+		if (isParametric()) {
+			ParallelRange.execute(executorService, numberOfInstruments, grainSize, weightedCovarianceTask);
+
+			if (debug) {
+				debugWeightedCovariance();
+			}
+		}
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
+	}
+
+	/**
+	 * Compute the average return of the instruments [start, end), their weighted
+	 * sum and their contribution to the (non centred) portfolio returns. The
+	 * history is traversed observation by observation so that the accesses stay
+	 * contiguous.
+	 */
+	private void computeAverageAndPortfolioReturns(int chunk, int start, int end) {
+		for (int i = start; i < end; i++) {
+			instrumentsAverageReturns[i] = 0;
+		}
+		int offset = chunk * numberOfReturns;
+		for (int k = 0; k < numberOfReturns; k++) {
+			int previous = k * numberOfInstruments;
+			int current = previous + numberOfInstruments;
+			double portfolioReturn = 0;
+			for (int i = start; i < end; i++) {
+				double returnValue = instrumentsValueHistory[current + i] / instrumentsValueHistory[previous + i] - 1;
+				instrumentsAverageReturns[i] += returnValue;
+				portfolioReturn += instrumentsWeight[i] * returnValue;
+			}
+			portfolioExcessReturnsBuffer[offset + k] = portfolioReturn;
+		}
+
+		double weightedReturns = 0;
+		for (int i = start; i < end; i++) {
+			instrumentsAverageReturns[i] /= numberOfReturns;
+			weightedReturns += instrumentsAverageReturns[i] * instrumentsWeight[i];
+		}
+		weightedAverageReturnsBuffer[chunk] = weightedReturns;
+	}
+
+	/**
+	 * Compute (Σw)<sub>i</sub> and w<sub>i</sub>(Σw)<sub>i</sub> for the
+	 * instruments [start, end)
+	 */
+	private void computeWeightedCovariance(int start, int end) {
+		for (int i = start; i < end; i++) {
+			covarianceTimesWeights[i] = 0;
+		}
+		for (int k = 0; k < numberOfReturns; k++) {
+			int previous = k * numberOfInstruments;
+			int current = previous + numberOfInstruments;
+			double portfolioReturn = portfolioExcessReturns[k];
+			for (int i = start; i < end; i++) {
+				double excessReturn = instrumentsValueHistory[current + i] / instrumentsValueHistory[previous + i] - 1
+						- instrumentsAverageReturns[i];
+				covarianceTimesWeights[i] += excessReturn * portfolioReturn;
+			}
+		}
+		for (int i = start; i < end; i++) {
+			covarianceTimesWeights[i] /= numberOfReturns;
+			weightedCovariance[i] = instrumentsWeight[i] * covarianceTimesWeights[i];
+		}
+	}
+
+	/**
+	 * @return the centred portfolio returns p = Rw - w'μ of the last execution,
+	 *         one per historical return
+	 */
+	protected double[] getPortfolioExcessReturns() {
+		return portfolioExcessReturns;
+	}
+
+	/**
+	 * Δ'ΣΔ is the variance of the centred returns RΔ of the delta, O(T·k) from
+	 * the history of the last execution
+	 */
+	@Override
+	protected double deltaVariance(int[] instruments, double[] weightDeltas) {
+		double variance = 0;
+		for (int k = 0; k < numberOfReturns; k++) {
+			int previous = k * numberOfInstruments;
+			int current = previous + numberOfInstruments;
+			double deltaReturn = 0;
+			for (int j = 0; j < instruments.length; j++) {
+				int i = instruments[j];
+				deltaReturn += weightDeltas[j] * (instrumentsValueHistory[current + i]
+						/ instrumentsValueHistory[previous + i] - 1 - instrumentsAverageReturns[i]);
+			}
+			variance += deltaReturn * deltaReturn;
+		}
+		return variance / numberOfReturns;
+	}
+
+	protected void debugWeightedCovariance() {
+		for (int x = 0; x < this.numberOfInstruments; x++) {
+			System.out.println(String.format("Weighted Covariance=%+.12f", weightedCovariance[x]));
+		}
+		System.out.println();
+	}
+}
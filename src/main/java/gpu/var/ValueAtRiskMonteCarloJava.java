@@ -0,0 +1,259 @@
+package gpu.var;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+import gpu.linalg.BlockedCholesky;
+import gpu.mm.TriangularMatrixMultiplicationJava;
+
+/**
+ * Monte Carlo Value at Risk on the variance covariance matrix of
+ * {@link ValueAtRiskJava}: the instrument returns are drawn from the normal
+ * distribution of the historical mean and covariance, the portfolio is
+ * revalued on every scenario, and the VaR is the loss of the (1 - α) quantile
+ * of the simulated portfolio returns.
+ *
+ * The matrix is factored in place as Σ = LL' by {@link BlockedCholesky}, and
+ * restored once the scenarios are simulated, the factor never needs a second
+ * N x N array. The semi-definite matrices of duplicated instruments give zero
+ * columns of L, a nearly collinear matrix is factored with pivots as P'ΣP =
+ * LL'. The instrument returns of a block of scenarios are the rows of μ + ZL',
+ * one independent standard normal of Z per non zero column of L, computed as a
+ * blocked matrix product by {@link TriangularMatrixMultiplicationJava}. The
+ * portfolio return of a scenario is then the revaluation w'r of its
+ * instrument returns, the step a non-linear pricer would replace.
+ *
+ * The scenarios are generated by blocks of {@link #BLOCK_SIZE}, each one with
+ * its own {@link SplittableRandom} split from the seed in block order, so that
+ * the results only depend on the seed and not on the scheduling of the blocks.
+ * The tasks, one per thread of the executor of the engine, each keep the
+ * normals and the instrument returns of one block.
+ *
+ * The covariance matrix is written during the simulation, the engine
+ * therefore does not share it with a {@link CovarianceCache}.
+ */
+public class ValueAtRiskMonteCarloJava extends ValueAtRiskJava {
+
+	// Every scenario revalues every instrument, in O(N x rank)
+	public static final int DEFAULT_NUMBER_OF_SCENARIOS = 100_000;
+	public static final long DEFAULT_SEED = 42;
+	static final int BLOCK_SIZE = 64;
+
+	private int numberOfScenarios;
+	private long seed = DEFAULT_SEED;
+
+	private final BlockedCholesky cholesky;
+	private int rank;
+	// The non zero columns of L, which are all below depth
+	private final int[] factorColumns;
+	private int depth;
+	// Average returns and weights of the instruments of the rows of L
+	private final double[] factorAverageReturns;
+	private final double[] factorWeights;
+
+	private double[] scenarioReturns;
+	private SplittableRandom[] blockRandoms;
+	private int blocksPerTask;
+	// [chunk] normals and instrument returns of the block of the tasks
+	private double[][][] scratch = new double[0][][];
+	private TriangularMatrixMultiplicationJava[] products = new TriangularMatrixMultiplicationJava[0];
+	private final ParallelRange.RangeTask scenarioTask = this::simulateBlocks;
+
+	public ValueAtRiskMonteCarloJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, DEFAULT_NUMBER_OF_SCENARIOS, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	public ValueAtRiskMonteCarloJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			int numberOfScenarios, ExecutorService executorService) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, executorService);
+		this.cholesky = new BlockedCholesky(numberOfInstruments, kernels, executorService);
+		this.factorColumns = new int[numberOfInstruments];
+		this.factorAverageReturns = new double[numberOfInstruments];
+		this.factorWeights = new double[numberOfInstruments];
+		setNumberOfScenarios(numberOfScenarios);
+	}
+
+	public void setNumberOfScenarios(int numberOfScenarios) {
+		if (numberOfScenarios < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid numberOfScenarios=%d, the number of scenarios must be positive", numberOfScenarios));
+		}
+		this.numberOfScenarios = numberOfScenarios;
+		this.scenarioReturns = new double[numberOfScenarios];
+		int blocks = ParallelRange.numberOfChunks(numberOfScenarios, BLOCK_SIZE);
+		this.blockRandoms = new SplittableRandom[blocks];
+		// The blocks all have the same cost, one task per thread of the executor
+		// balances them
+		this.blocksPerTask = ParallelRange.grainSizePerTask(getExecutorService(), blocks);
+		int chunks = ParallelRange.numberOfChunks(blocks, blocksPerTask);
+		if (scratch.length < chunks) {
+			scratch = Arrays.copyOf(scratch, chunks);
+			products = Arrays.copyOf(products, chunks);
+		}
+	}
+
+	public int getNumberOfScenarios() {
+		return numberOfScenarios;
+	}
+
+	/**
+	 * Seed of the scenarios, the same seed gives the same VaR whatever the
+	 * executor
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @return the number of independent directions of the covariance matrix, the
+	 *         rank of its Cholesky factor
+	 */
+	public int getRank() {
+		return rank;
+	}
+
+	/**
+	 * @return the portfolio returns of the scenarios of the last execution, in
+	 *         no particular order
+	 */
+	public double[] getScenarioReturns() {
+		return scenarioReturns;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException when the cache is not null, the
+	 *                                       simulation factors the matrix in
+	 *                                       place
+	 */
+	@Override
+	public void setCovarianceCache(CovarianceCache covarianceCache) {
+		if (covarianceCache != null) {
+			throw new UnsupportedOperationException(String.format(
+					"%s factors the covariance matrix in place, it cannot share it with a cache",
+					getClass().getSimpleName()));
+		}
+		super.setCovarianceCache(null);
+	}
+
+	@Override
+	protected void computeVar() {
+		double[] matrix = varianceCovarienceMatrix;
+		rank = cholesky.factor(matrix);
+		try {
+			prepareFactor(matrix);
+
+			SplittableRandom random = new SplittableRandom(seed);
+			for (int block = 0; block < blockRandoms.length; block++) {
+				blockRandoms[block] = random.split();
+			}
+			ParallelRange.execute(getExecutorService(), blockRandoms.length, blocksPerTask, scenarioTask);
+		} finally {
+			cholesky.restore(matrix);
+		}
+
+		ValueAtRiskHistoricalJava.quantiles(scenarioReturns, numberOfScenarios, VaRPercent);
+		for (int i = 0; i < PERCENTILES_VALUES.length; i++) {
+			VaRPercent[i] = -VaRPercent[i];
+			VaRValue[i] = portfolioValue * VaRPercent[i];
+		}
+	}
+
+	/**
+	 * @return false, the VaR is a quantile of the simulated returns
+	 */
+	@Override
+	protected boolean isParametric() {
+		return false;
+	}
+
+	@Override
+	String summaryLabel() {
+		return "MC";
+	}
+
+	/**
+	 * Find the non zero columns of L, and order the average returns and the
+	 * weights as its rows
+	 */
+	private void prepareFactor(double[] factor) {
+		int n = numberOfInstruments;
+		int k = 0;
+		for (int column = 0; column < n; column++) {
+			if (factor[column * n + column] != 0) {
+				factorColumns[k++] = column;
+			}
+		}
+		depth = k == 0 ? 0 : factorColumns[k - 1] + 1;
+
+		int[] pivots = cholesky.getPivots();
+		for (int i = 0; i < n; i++) {
+			factorAverageReturns[i] = instrumentsAverageReturns[pivots[i]];
+			factorWeights[i] = instrumentsWeight[pivots[i]];
+		}
+	}
+
+	/**
+	 * Simulate the scenarios of the blocks [start, end): the normals of a block
+	 * form a BLOCK_SIZE x depth matrix Z, whose product ZL' with the factor gives
+	 * the instrument returns of the scenarios around their averages
+	 */
+	private void simulateBlocks(int chunk, int start, int end) {
+		int n = numberOfInstruments;
+		if (scratch[chunk] == null) {
+			scratch[chunk] = new double[][] { new double[BLOCK_SIZE * n], new double[BLOCK_SIZE * n] };
+			products[chunk] = new TriangularMatrixMultiplicationJava(kernels);
+		}
+		double[] normals = scratch[chunk][0];
+		double[] instrumentReturns = scratch[chunk][1];
+		for (int block = start; block < end; block++) {
+			int first = block * BLOCK_SIZE;
+			int count = Math.min(BLOCK_SIZE, numberOfScenarios - first);
+			SplittableRandom random = blockRandoms[block];
+			// The columns of the dependent instruments stay zero
+			Arrays.fill(normals, 0, count * depth, 0);
+			for (int s = 0; s < count; s++) {
+				fillStandardNormals(random, normals, s * depth, factorColumns, rank);
+			}
+			// The lower triangle of the matrix holds L during the simulation
+			products[chunk].multiply(normals, count, depth, varianceCovarienceMatrix, n, instrumentReturns);
+			for (int s = 0; s < count; s++) {
+				int offset = s * n;
+				kernels.axpy(1, factorAverageReturns, 0, instrumentReturns, offset, n);
+				scenarioReturns[first + s] = kernels.dot(instrumentReturns, offset, factorWeights, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Marsaglia's polar method, SplittableRandom has no Gaussian generator
+	 * before Java 17. The normals are stored at the given columns of the row.
+	 */
+	private static void fillStandardNormals(SplittableRandom random, double[] normals, int offset, int[] columns,
+			int count) {
+		for (int i = 0; i < count; i += 2) {
+			double u;
+			double v;
+			double s;
+			do {
+				u = 2 * random.nextDouble() - 1;
+				v = 2 * random.nextDouble() - 1;
+				s = u * u + v * v;
+			} while (s >= 1 || s == 0);
+			double scale = Math.sqrt(-2 * Math.log(s) / s);
+			normals[offset + columns[i]] = u * scale;
+			if (i + 1 < count) {
+				normals[offset + columns[i + 1]] = v * scale;
+			}
+		}
+	}
+}
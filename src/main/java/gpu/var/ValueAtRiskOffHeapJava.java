@@ -0,0 +1,196 @@
+package gpu.var;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+
+/**
+ * Value at Risk engine whose history, excess returns and variance covariance
+ * matrix are {@link OffHeapDoubleArray}s indexed with longs, for universes
+ * whose matrix does not fit in a Java array (beyond 46,340 instruments dense,
+ * 65,535 packed) or should not be on the garbage collected heap.
+ *
+ * The matrix is built by the tiles of {@link SymmetricCovarianceBuilder} in the
+ * {@link CovarianceStorage#PACKED} storage. The product Σw is computed by
+ * ranges of rows: a task reads the rows of its range from the diagonal on, and
+ * the segments of the rows above it that hold the columns of its range, so
+ * that every task reads about <code>grainSize</code> x N entries and writes
+ * only its own rows. The weights, the averages and the weighted covariance,
+ * of size N, stay on the heap.
+ */
+public class ValueAtRiskOffHeapJava extends AbstractValueAtRisk implements ValueAtRisk {
+
+	static final int DEFAULT_GRAIN_SIZE = 256;
+	// Entries of a packed row copied on heap at once by the reduction
+	static final int ROW_BLOCK_SIZE = 4096;
+
+	private final ExecutorService executorService;
+	private final SymmetricCovarianceBuilder covarianceBuilder;
+	private final int numberOfReturns;
+
+	private OffHeapDoubleArray offHeapValueHistory;
+	// Instrument major, the returns of an instrument are contiguous
+	private final OffHeapDoubleArray instrumentsExcessReturns;
+	private final OffHeapDoubleArray offHeapCovarianceMatrix;
+
+	private int grainSize;
+	// [chunk] row block and (Σw) of the rows of the tasks, reused across runs
+	private double[][] rowBuffers = new double[0][];
+	private double[][] productBuffers = new double[0][];
+	private final ParallelRange.RangeTask excessReturnsTask;
+	private final ParallelRange.RangeTask productTask = this::multiplyRows;
+
+	public ValueAtRiskOffHeapJava(OffHeapDoubleArray instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	/**
+	 * @param instrumentsValueHistory the prices, observation by observation as
+	 *                                the <code>double[]</code> histories of the
+	 *                                other engines
+	 */
+	public ValueAtRiskOffHeapJava(OffHeapDoubleArray instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			ExecutorService executorService) {
+		super(null, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations, debug, null);
+		if (instrumentsWeight.length < numberOfInstruments) {
+			throw new IllegalArgumentException(String.format("Expected %d instrument weights but got %d",
+					numberOfInstruments, instrumentsWeight.length));
+		}
+		setInstrumentsValueHistory(instrumentsValueHistory);
+		this.executorService = executorService;
+		this.numberOfReturns = numberOfObservations - 1;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels,
+				CovarianceStorage.PACKED);
+		this.instrumentsExcessReturns = new OffHeapDoubleArray((long) numberOfInstruments * numberOfReturns);
+		this.excessReturnsTask = (chunk, start, end) -> ExcessReturns.calculate(offHeapValueHistory,
+				numberOfInstruments, numberOfObservations, start, end, instrumentsExcessReturns,
+				instrumentsAverageReturns);
+		this.offHeapCovarianceMatrix = new OffHeapDoubleArray(CovarianceStorage.PACKED.size(numberOfInstruments));
+		setGrainSize(DEFAULT_GRAIN_SIZE);
+	}
+
+	/**
+	 * Number of instruments processed by a single task
+	 */
+	public void setGrainSize(int grainSize) {
+		int chunks = ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+		this.rowBuffers = new double[chunks][];
+		this.productBuffers = new double[chunks][];
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	/**
+	 * Replace the history, the next {@link #execute()} uses it
+	 */
+	public void setInstrumentsValueHistory(OffHeapDoubleArray instrumentsValueHistory) {
+		if (instrumentsValueHistory.length() < (long) numberOfInstruments * numberOfObservations) {
+			throw new IllegalArgumentException(String.format("Expected %d x %d instrument values but got %d",
+					numberOfInstruments, numberOfObservations, instrumentsValueHistory.length()));
+		}
+		this.offHeapValueHistory = instrumentsValueHistory;
+	}
+
+	/**
+	 * Copy the history off heap, the next {@link #execute()} uses the copy
+	 */
+	@Override
+	public void setInstrumentsValueHistory(double[] instrumentsValueHistory) {
+		setInstrumentsValueHistory(OffHeapDoubleArray.copyOf(instrumentsValueHistory));
+	}
+
+	public OffHeapDoubleArray getInstrumentsValueHistory() {
+		return offHeapValueHistory;
+	}
+
+	@Override
+	public void execute() {
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, excessReturnsTask);
+
+		covarianceBuilder.build(executorService, grainSize, instrumentsExcessReturns, numberOfReturns,
+				offHeapCovarianceMatrix);
+
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, productTask);
+
+		// The N values are on heap, the sums are cheap next to the O(N²) product
+		weightedAverageReturns = 0;
+		double variance = 0;
+		for (int i = 0; i < numberOfInstruments; i++) {
+			weightedCovariance[i] = instrumentsWeight[i] * covarianceTimesWeights[i];
+			variance += weightedCovariance[i];
+			weightedAverageReturns += instrumentsWeight[i] * instrumentsAverageReturns[i];
+		}
+		portfolioStandardDeviation = Math.sqrt(variance);
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
+	}
+
+	/**
+	 * Compute (Σw)<sub>i</sub> of the rows [start, end) from the packed rows: the
+	 * part on and above the diagonal is read row by row, the part below the
+	 * diagonal is read from the columns [start, end) of the rows above.
+	 */
+	private void multiplyRows(int chunk, int start, int end) {
+		if (rowBuffers[chunk] == null) {
+			rowBuffers[chunk] = new double[Math.max(ROW_BLOCK_SIZE, end - start)];
+			productBuffers[chunk] = new double[end - start];
+		}
+		double[] row = rowBuffers[chunk];
+		double[] product = productBuffers[chunk];
+		int rows = end - start;
+		Arrays.fill(product, 0, rows, 0);
+
+		// Rows above the range: Σ[j, start..end) is contiguous in the packed row j
+		for (int j = 0; j < start; j++) {
+			offHeapCovarianceMatrix.get(CovarianceStorage.PACKED.offset(numberOfInstruments, j, start), row, 0,
+					rows);
+			kernels.axpy(instrumentsWeight[j], row, 0, product, 0, rows);
+		}
+
+		// Rows of the range, from the diagonal on
+		for (int i = start; i < end; i++) {
+			long diagonal = CovarianceStorage.PACKED.offset(numberOfInstruments, i, i);
+			double dot = 0;
+			for (int column = i; column < numberOfInstruments; column += ROW_BLOCK_SIZE) {
+				int length = Math.min(ROW_BLOCK_SIZE, numberOfInstruments - column);
+				offHeapCovarianceMatrix.get(diagonal + column - i, row, 0, length);
+				dot += kernels.dot(row, 0, instrumentsWeight, column, length);
+				// Mirror of the entries of the block below the diagonal of the range
+				int mirrored = Math.min(length, end - column) - (column == i ? 1 : 0);
+				if (mirrored > 0) {
+					int first = column == i ? 1 : 0;
+					kernels.axpy(instrumentsWeight[i], row, first, product, column + first - start, mirrored);
+				}
+			}
+			product[i - start] += dot;
+		}
+		System.arraycopy(product, 0, covarianceTimesWeights, start, rows);
+	}
+
+	@Override
+	public double getVarianceCovarianceMatrix(int x, int y) {
+		return offHeapCovarianceMatrix.get(CovarianceStorage.PACKED.offset(numberOfInstruments, y, x));
+	}
+
+	@Override
+	public CovarianceStorage getCovarianceStorage() {
+		return CovarianceStorage.PACKED;
+	}
+
+	/**
+	 * @return the packed variance covariance matrix, see
+	 *         {@link CovarianceStorage#offset(int, int, int)}
+	 */
+	public OffHeapDoubleArray getOffHeapVarianceCovarianceMatrix() {
+		return offHeapCovarianceMatrix;
+	}
+}
@@ -0,0 +1,228 @@
+package gpu.var;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import gpu.kernels.ParallelRange;
+
+/**
+ * Value at Risk engine whose memory is bounded by a budget rather than by the
+ * N² entries of the variance covariance matrix.
+ *
+ * The tiles of the upper triangle are computed by
+ * {@link SymmetricCovarianceBuilder} and reduced as soon as they are finished:
+ * the rows of a tile add to (Σw)<sub>i</sub> of its rows and, off the
+ * diagonal, its columns add to (Σw)<sub>j</sub> of its columns. A task only
+ * holds its packing buffers and its partial Σw, the budget therefore bounds
+ * the number of tasks, and the tasks get larger as the budget gets smaller.
+ * The history and the excess returns, O(N·T), are not part of the budget.
+ *
+ * The finished tiles can also be streamed to a memory mapped file in the
+ * {@link CovarianceStorage#PACKED} storage, see
+ * {@link #setCovarianceFile(Path)}: the operating system then writes the pages
+ * back to the disk as needed, and
+ * {@link #getVarianceCovarianceMatrix(int, int)} reads the file.
+ */
+public class ValueAtRiskOutOfCoreJava extends AbstractValueAtRisk implements ValueAtRisk {
+
+	static final int DEFAULT_GRAIN_SIZE = 250;
+	static final int TILE_SIZE = SymmetricCovarianceBuilder.TILE_SIZE;
+	// Packing and tile buffers of a task of the builder, in doubles
+	static final int BUILDER_SCRATCH_SIZE = 2 * TILE_SIZE * SymmetricCovarianceBuilder.RETURNS_BLOCK_SIZE
+			+ TILE_SIZE * TILE_SIZE + SymmetricCovarianceBuilder.RETURNS_BLOCK_SIZE;
+
+	private final ExecutorService executorService;
+	private final SymmetricCovarianceBuilder covarianceBuilder;
+	private final int numberOfReturns;
+	private final long memoryBudget;
+
+	// Instrument major, the returns of an instrument are contiguous
+	private final double[] instrumentsExcessReturns;
+	// [chunk] partial Σw of the tiles of a task
+	private double[][] productBuffers = new double[0][];
+	private OffHeapDoubleArray covarianceFileMatrix;
+	// Centred returns RΔ of a what-if delta
+	private double[] deltaReturns;
+
+	private int grainSize;
+	private int tilesPerTask;
+	private final ParallelRange.RangeTask excessReturnsTask;
+	private final SymmetricCovarianceBuilder.TileConsumer tileReduction = this::reduceTile;
+	private final ParallelRange.RangeTask gatherTask = (chunk, start, end) -> gatherProducts(start, end);
+
+	public ValueAtRiskOutOfCoreJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			long memoryBudget) {
+		this(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, memoryBudget, ValueAtRiskExecutors.getSharedExecutor());
+	}
+
+	/**
+	 * @param memoryBudget bytes of the working buffers, on top of the history and
+	 *                     the excess returns. It must at least hold the buffers
+	 *                     of a single task, i.e. about 8 x (N + 37,000) bytes.
+	 */
+	public ValueAtRiskOutOfCoreJava(double[] instrumentsValueHistory, double[] instrumentsWeight,
+			double portfolioValue, int numberOfInstruments, int numberOfObservations, boolean debug,
+			long memoryBudget, ExecutorService executorService) {
+		super(instrumentsValueHistory, instrumentsWeight, portfolioValue, numberOfInstruments, numberOfObservations,
+				debug, null);
+		long taskBytes = getTaskBytes(numberOfInstruments);
+		if (memoryBudget < taskBytes) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid memoryBudget=%d, a task of %d instruments needs %d bytes", memoryBudget,
+					numberOfInstruments, taskBytes));
+		}
+		this.executorService = executorService;
+		this.memoryBudget = memoryBudget;
+		this.numberOfReturns = numberOfObservations - 1;
+		this.covarianceBuilder = new SymmetricCovarianceBuilder(numberOfInstruments, kernels,
+				CovarianceStorage.PACKED);
+		this.instrumentsExcessReturns = new double[numberOfInstruments * numberOfReturns];
+		// The field, replaced by setInstrumentsValueHistory
+		this.excessReturnsTask = (chunk, start, end) -> ExcessReturns.calculate(this.instrumentsValueHistory,
+				numberOfInstruments, numberOfObservations, start, end, instrumentsExcessReturns,
+				instrumentsAverageReturns, kernels);
+		setGrainSize(DEFAULT_GRAIN_SIZE);
+	}
+
+	/**
+	 * Number of instruments processed by a single task. The tasks computing the
+	 * tiles are made larger when the budget cannot hold the buffers of as many
+	 * tasks.
+	 */
+	public void setGrainSize(int grainSize) {
+		ParallelRange.numberOfChunks(numberOfInstruments, grainSize);
+		this.grainSize = grainSize;
+		int numberOfTiles = covarianceBuilder.getNumberOfTiles();
+		long maximumTasks = memoryBudget / getTaskBytes(numberOfInstruments);
+		int minimumTilesPerTask = (int) Math.min(numberOfTiles, (numberOfTiles + maximumTasks - 1) / maximumTasks);
+		this.tilesPerTask = Math.max(covarianceBuilder.getTilesPerTask(grainSize), minimumTilesPerTask);
+		int chunks = ParallelRange.numberOfChunks(numberOfTiles, tilesPerTask);
+		if (productBuffers.length != chunks) {
+			productBuffers = new double[chunks][];
+		}
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return the number of tasks computing the tiles, bounded by the budget
+	 */
+	public int getNumberOfTileTasks() {
+		return productBuffers.length;
+	}
+
+	/**
+	 * Stream the matrix of the next executions to <code>file</code>, in the
+	 * packed storage of N(N+1)/2 native order doubles. Null to stop streaming.
+	 */
+	public void setCovarianceFile(Path file) throws IOException {
+		this.covarianceFileMatrix = file == null ? null
+				: OffHeapDoubleArray.map(file, CovarianceStorage.PACKED.size(numberOfInstruments));
+	}
+
+	@Override
+	public void execute() {
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, excessReturnsTask);
+
+		for (int chunk = 0; chunk < productBuffers.length; chunk++) {
+			if (productBuffers[chunk] == null) {
+				productBuffers[chunk] = new double[numberOfInstruments];
+			} else {
+				Arrays.fill(productBuffers[chunk], 0);
+			}
+		}
+		covarianceBuilder.build(executorService, tilesPerTask, instrumentsExcessReturns, numberOfReturns,
+				tileReduction);
+
+		ParallelRange.execute(executorService, numberOfInstruments, grainSize, gatherTask);
+
+		weightedAverageReturns = 0;
+		double variance = 0;
+		for (int i = 0; i < numberOfInstruments; i++) {
+			variance += weightedCovariance[i];
+			weightedAverageReturns += instrumentsWeight[i] * instrumentsAverageReturns[i];
+		}
+		portfolioStandardDeviation = Math.sqrt(variance);
+
+		computeVar();
+		computeVarContributions();
+		printSummary();
+	}
+
+	/**
+	 * Add the products of a finished tile, and of its mirror below the diagonal,
+	 * with the weights to the partial Σw of the task
+	 */
+	private void reduceTile(int chunk, int rowStart, int rows, int columnStart, int columns, double[] tile) {
+		double[] product = productBuffers[chunk];
+		boolean diagonal = rowStart == columnStart;
+		for (int r = 0; r < rows; r++) {
+			int first = diagonal ? r : 0;
+			product[rowStart + r] += kernels.dot(tile, r * TILE_SIZE + first, instrumentsWeight, columnStart + first,
+					columns - first);
+			int mirrored = diagonal ? r + 1 : 0;
+			kernels.axpy(instrumentsWeight[rowStart + r], tile, r * TILE_SIZE + mirrored, product,
+					columnStart + mirrored, columns - mirrored);
+			if (covarianceFileMatrix != null) {
+				covarianceFileMatrix.set(CovarianceStorage.PACKED.offset(numberOfInstruments, rowStart + r,
+						columnStart + first), tile, r * TILE_SIZE + first, columns - first);
+			}
+		}
+	}
+
+	private void gatherProducts(int start, int end) {
+		for (int i = start; i < end; i++) {
+			double product = 0;
+			for (double[] partialProduct : productBuffers) {
+				product += partialProduct[i];
+			}
+			covarianceTimesWeights[i] = product;
+			weightedCovariance[i] = instrumentsWeight[i] * product;
+		}
+	}
+
+	/**
+	 * @return the entry of the matrix streamed to the covariance file by the last
+	 *         execution
+	 */
+	@Override
+	public double getVarianceCovarianceMatrix(int x, int y) {
+		if (covarianceFileMatrix == null) {
+			throw new UnsupportedOperationException(String.format(
+					"%s only keeps the variance covariance matrix in a covariance file", getClass().getSimpleName()));
+		}
+		return covarianceFileMatrix.get(CovarianceStorage.PACKED.offset(numberOfInstruments, y, x));
+	}
+
+	/**
+	 * Δ'ΣΔ is the variance of the centred returns RΔ of the delta, O(T·k) from
+	 * the excess returns of the last execution, with or without a covariance
+	 * file
+	 */
+	@Override
+	protected double deltaVariance(int[] instruments, double[] weightDeltas) {
+		if (deltaReturns == null) {
+			deltaReturns = new double[numberOfReturns];
+		}
+		Arrays.fill(deltaReturns, 0);
+		for (int k = 0; k < instruments.length; k++) {
+			kernels.axpy(weightDeltas[k], instrumentsExcessReturns, instruments[k] * numberOfReturns, deltaReturns, 0,
+					numberOfReturns);
+		}
+		return kernels.dot(deltaReturns, 0, deltaReturns, 0, numberOfReturns) / numberOfReturns;
+	}
+
+	private static long getTaskBytes(int numberOfInstruments) {
+		return ((long) numberOfInstruments + BUILDER_SCRATCH_SIZE) * Double.BYTES;
+	}
+}
@@ -0,0 +1,94 @@
+package gpu.var;
+
+import java.util.Arrays;
+
+import gpu.var.ValueAtRisk.PERCENTILES;
+
+/**
+ * Immutable VaR of a portfolio: its weighted average return, its standard
+ * deviation, the VaR at every {@link PERCENTILES}, in percent of the portfolio
+ * value and in value, and the weighted covariance of every instrument. The
+ * array getters return copies.
+ */
+public final class ValueAtRiskResult {
+
+	private final double weightedAverageReturns;
+	private final double portfolioStandardDeviation;
+	private final double portfolioValue;
+	private final double[] VaRPercent;
+	private final double[] VaRValue;
+	private final double[] weightedCovariance;
+
+	/**
+	 * @param weightedCovariance the weighted covariances, copied, or null when
+	 *                           they are not computed
+	 */
+	ValueAtRiskResult(double weightedAverageReturns, double portfolioStandardDeviation, double portfolioValue,
+			double[] VaRPercent, double[] VaRValue, double[] weightedCovariance) {
+		this.weightedAverageReturns = weightedAverageReturns;
+		this.portfolioStandardDeviation = portfolioStandardDeviation;
+		this.portfolioValue = portfolioValue;
+		this.VaRPercent = VaRPercent.clone();
+		this.VaRValue = VaRValue.clone();
+		this.weightedCovariance = weightedCovariance == null ? null : weightedCovariance.clone();
+	}
+
+	/**
+	 * @return the normal VaR -(μ + zσ) of the mean and standard deviation
+	 */
+	static ValueAtRiskResult parametric(double weightedAverageReturns, double portfolioStandardDeviation,
+			double portfolioValue, double[] weightedCovariance) {
+		PERCENTILES[] percentiles = PERCENTILES.values();
+		double[] VaRPercent = new double[percentiles.length];
+		double[] VaRValue = new double[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			VaRPercent[i] = -(weightedAverageReturns + percentiles[i].zstat * portfolioStandardDeviation);
+			VaRValue[i] = portfolioValue * VaRPercent[i];
+		}
+		return new ValueAtRiskResult(weightedAverageReturns, portfolioStandardDeviation, portfolioValue, VaRPercent,
+				VaRValue, weightedCovariance);
+	}
+
+	public double getWeightedAverageReturns() {
+		return weightedAverageReturns;
+	}
+
+	public double getPortfolioStandardDeviation() {
+		return portfolioStandardDeviation;
+	}
+
+	public double getPortfolioValue() {
+		return portfolioValue;
+	}
+
+	public double getVaRPercent(PERCENTILES percentile) {
+		return VaRPercent[percentile.ordinal()];
+	}
+
+	public double getVaRValue(PERCENTILES percentile) {
+		return VaRValue[percentile.ordinal()];
+	}
+
+	public double[] getVaRPercent() {
+		return VaRPercent.clone();
+	}
+
+	public double[] getVaRValue() {
+		return VaRValue.clone();
+	}
+
+	/**
+	 * @return w<sub>i</sub>(Σw)<sub>i</sub> of every instrument, or null when
+	 *         the result does not hold them, e.g. a what-if
+	 */
+	public double[] getWeightedCovariance() {
+		return weightedCovariance == null ? null : weightedCovariance.clone();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ValueAtRiskResult[weightedAverageReturns=%s, portfolioStandardDeviation=%s, "
+				+ "VaRPercent=%s, VaRValue=%s]", weightedAverageReturns, portfolioStandardDeviation,
+				Arrays.toString(VaRPercent), Arrays.toString(VaRValue));
+	}
+}
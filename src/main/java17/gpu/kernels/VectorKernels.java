@@ -0,0 +1,112 @@
+package gpu.kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link JavaKernels} based on the Vector API, loaded by
+ * {@link JavaKernelsLoader} on Java 17 or later.
+ */
+final class VectorKernels implements JavaKernels {
+
+	// One lane per instrument of a micro panel. The other loops use the same
+	// width: mixing 512 bit vectors in made the micro kernel about ten times
+	// slower on AVX-512 hardware.
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_256;
+
+	@Override
+	public boolean isVectorized() {
+		// Narrower hardware vectors would emulate the lanes
+		return DoubleVector.SPECIES_PREFERRED.vectorBitSize() >= SPECIES.vectorBitSize();
+	}
+
+	@Override
+	public void subtract(double[] values, int offset, int length, double value) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, values, offset + i).sub(value).intoArray(values, offset + i);
+		}
+		for (; i < length; i++) {
+			values[offset + i] -= value;
+		}
+	}
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+		DoubleVector dot = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			dot = DoubleVector.fromArray(SPECIES, a, aOffset + i)
+					.fma(DoubleVector.fromArray(SPECIES, b, bOffset + i), dot);
+		}
+		double result = dot.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			result += a[aOffset + i] * b[bOffset + i];
+		}
+		return result;
+	}
+
+	@Override
+	public void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int length) {
+		DoubleVector factor = DoubleVector.broadcast(SPECIES, a);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, x, xOffset + i)
+					.fma(factor, DoubleVector.fromArray(SPECIES, y, yOffset + i)).intoArray(y, yOffset + i);
+		}
+		for (; i < length; i++) {
+			y[yOffset + i] += a * x[xOffset + i];
+		}
+	}
+
+	@Override
+	public void axpby(double a, double[] x, int xOffset, double b, double[] y, int yOffset, int length) {
+		DoubleVector factorA = DoubleVector.broadcast(SPECIES, a);
+		DoubleVector factorB = DoubleVector.broadcast(SPECIES, b);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, x, xOffset + i)
+					.fma(factorA, DoubleVector.fromArray(SPECIES, y, yOffset + i).mul(factorB))
+					.intoArray(y, yOffset + i);
+		}
+		for (; i < length; i++) {
+			y[yOffset + i] = a * x[xOffset + i] + b * y[yOffset + i];
+		}
+	}
+
+	/**
+	 * Each row of the 4x4 block is a vector, every step broadcasts the four row
+	 * returns against the vector of the four column returns.
+	 */
+	@Override
+	public void covarianceMicroKernel(double[] rowPanel, int row, double[] columnPanel, int column, int returns,
+			double[] tile, int tileSize) {
+		int a = row * returns;
+		int b = column * returns;
+
+		int t0 = row * tileSize + column;
+		int t1 = t0 + tileSize;
+		int t2 = t1 + tileSize;
+		int t3 = t2 + tileSize;
+		DoubleVector c0 = DoubleVector.fromArray(SPECIES, tile, t0);
+		DoubleVector c1 = DoubleVector.fromArray(SPECIES, tile, t1);
+		DoubleVector c2 = DoubleVector.fromArray(SPECIES, tile, t2);
+		DoubleVector c3 = DoubleVector.fromArray(SPECIES, tile, t3);
+
+		for (int k = 0; k < returns; k++) {
+			DoubleVector columns = DoubleVector.fromArray(SPECIES, columnPanel, b);
+			c0 = columns.fma(DoubleVector.broadcast(SPECIES, rowPanel[a]), c0);
+			c1 = columns.fma(DoubleVector.broadcast(SPECIES, rowPanel[a + 1]), c1);
+			c2 = columns.fma(DoubleVector.broadcast(SPECIES, rowPanel[a + 2]), c2);
+			c3 = columns.fma(DoubleVector.broadcast(SPECIES, rowPanel[a + 3]), c3);
+			a += 4;
+			b += 4;
+		}
+
+		c0.intoArray(tile, t0);
+		c1.intoArray(tile, t1);
+		c2.intoArray(tile, t2);
+		c3.intoArray(tile, t3);
+	}
+}
@@ -0,0 +1,238 @@
+package gpu.linalg.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.kernels.JavaKernels;
+import gpu.linalg.BlockedCholesky;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+
+class BlockedCholeskyTest {
+
+	@Test
+	void testPositiveDefinite() {
+		// Not a multiple of the block nor of the tile size
+		int size = 301;
+		double[] matrix = randomPositiveDefinite(size, 5);
+		double[] factor = matrix.clone();
+
+		ExecutorService executorService = ValueAtRiskExecutors.newExecutor(4);
+		try {
+			BlockedCholesky cholesky = new BlockedCholesky(size, JavaKernels.preferred(), executorService);
+			assertEquals(size, cholesky.factor(factor));
+			assertFactor(matrix, factor, size, 1e-12);
+
+			double[] solution = new double[size];
+			double[] b = new double[size];
+			for (int i = 0; i < size; i++) {
+				solution[i] = i % 7 - 3;
+			}
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					b[i] += matrix[i * size + j] * solution[j];
+				}
+			}
+			cholesky.solve(factor, b);
+			assertArrayEquals(solution, b, 1e-9);
+
+			// The tasks compute every entry the same way whatever the executor
+			double[] sequential = matrix.clone();
+			new BlockedCholesky(size, JavaKernels.preferred(), ValueAtRiskExecutors.newCallerThreadExecutor())
+					.factor(sequential);
+			assertArrayEquals(sequential, factor, 0);
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	/**
+	 * The test data repeats the instruments of the seed, the covariance matrix
+	 * has their rank
+	 */
+	@Test
+	void testSemiDefinite() {
+		int instruments = 200;
+		int observations = 64;
+		double[] history = new double[instruments * observations];
+		double[] weight = new double[instruments];
+		ValueAtRiskData.initTest(history, weight, instruments, observations);
+		ValueAtRiskJava var = new ValueAtRiskJava(history, weight, 1_000_000f, instruments, observations, false);
+		var.setVerbose(false);
+		var.execute();
+		double[] matrix = new double[instruments * instruments];
+		for (int i = 0; i < instruments; i++) {
+			for (int j = 0; j < instruments; j++) {
+				matrix[i * instruments + j] = var.getVarianceCovarianceMatrix(j, i);
+			}
+		}
+
+		double[] factor = matrix.clone();
+		BlockedCholesky cholesky = new BlockedCholesky(instruments);
+		assertEquals(ValueAtRiskData.NUMBER_OF_INSTRUMENTS_IN_SEED, cholesky.factor(factor));
+		assertEquals(ValueAtRiskData.NUMBER_OF_INSTRUMENTS_IN_SEED, cholesky.getRank());
+		assertFactor(matrix, factor, instruments, 1e-15);
+		assertFalse(cholesky.isPivoted());
+		assertThrows(IllegalStateException.class, () -> cholesky.solve(factor, new double[instruments]));
+	}
+
+	@Test
+	void testIndefinite() {
+		int size = 130;
+		double[] matrix = randomPositiveDefinite(size, 9);
+		matrix[129 * size + 129] = -1;
+		assertThrows(IllegalArgumentException.class, () -> new BlockedCholesky(size).factor(matrix));
+	}
+
+	/**
+	 * The instruments are nearly collinear combinations of a few factors, and
+	 * the rounding of the matrix is perturbed by a few ulps. The unpivoted pass
+	 * divides by the tiny pivots of the first instruments and ends on negative
+	 * pivots, the pivoted fallback finds the rank.
+	 */
+	@Test
+	void testPerturbedRankDeficient() {
+		int size = 150;
+		int rank = 6;
+		double[] matrix = nearlyCollinear(size, rank, 0, 3);
+		double[] factor = matrix.clone();
+		BlockedCholesky cholesky = new BlockedCholesky(size, JavaKernels.preferred(),
+				ValueAtRiskExecutors.newCallerThreadExecutor());
+		assertEquals(rank, cholesky.factor(factor));
+		assertTrue(cholesky.isPivoted());
+		assertPivotedFactor(matrix, factor, cholesky.getPivots(), size, 1e-12);
+		assertThrows(IllegalStateException.class, () -> cholesky.solve(factor, new double[size]));
+	}
+
+	/**
+	 * A small ridge makes the same matrix full rank but still fails the
+	 * unpivoted pass, the solution is returned in the order of the matrix
+	 */
+	@Test
+	void testPivotedSolve() {
+		int size = 150;
+		double[] matrix = nearlyCollinear(size, 6, 1e-10, 3);
+		double[] factor = matrix.clone();
+		BlockedCholesky cholesky = new BlockedCholesky(size);
+		assertEquals(size, cholesky.factor(factor));
+		assertTrue(cholesky.isPivoted());
+		assertPivotedFactor(matrix, factor, cholesky.getPivots(), size, 1e-12);
+
+		double[] b = new double[size];
+		for (int i = 0; i < size; i++) {
+			b[i] = i % 7 - 3;
+		}
+		double[] x = b.clone();
+		cholesky.solve(factor, x);
+		// The matrix is ill conditioned, the backward error of each row is
+		// checked instead of x: a wrong permutation would not be backward stable
+		for (int i = 0; i < size; i++) {
+			double value = 0;
+			double scale = Math.abs(b[i]);
+			for (int j = 0; j < size; j++) {
+				value += matrix[i * size + j] * x[j];
+				scale += Math.abs(matrix[i * size + j] * x[j]);
+			}
+			assertEquals(b[i], value, 1e-12 * scale);
+		}
+	}
+
+	private static double[] randomPositiveDefinite(int size, long seed) {
+		Random random = new Random(seed);
+		double[] vectors = new double[size * size];
+		for (int k = 0; k < vectors.length; k++) {
+			vectors[k] = random.nextGaussian();
+		}
+		double[] matrix = new double[size * size];
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				double value = 0;
+				for (int k = 0; k < size; k++) {
+					value += vectors[i * size + k] * vectors[j * size + k];
+				}
+				matrix[i * size + j] = value / size + (i == j ? 1 : 0);
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * Symmetric matrix of the instruments c<sub>i</sub> (v + 1e-5 g<sub>i</sub>)
+	 * in a space of the rank, with a few ulps added to the rounding of each
+	 * entry and the ridge to the diagonal
+	 */
+	private static double[] nearlyCollinear(int size, int rank, double ridge, long seed) {
+		Random random = new Random(seed);
+		double[] common = new double[rank];
+		for (int r = 0; r < rank; r++) {
+			common[r] = random.nextGaussian();
+		}
+		double[] factors = new double[size * rank];
+		for (int i = 0; i < size; i++) {
+			double scale = 0.5 + random.nextDouble();
+			for (int r = 0; r < rank; r++) {
+				factors[i * rank + r] = scale * (common[r] + 1e-5 * random.nextGaussian());
+			}
+		}
+		double[] matrix = new double[size * size];
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j <= i; j++) {
+				double value = 0;
+				for (int r = 0; r < rank; r++) {
+					value += factors[i * rank + r] * factors[j * rank + r];
+				}
+				value += (random.nextInt(7) - 3) * Math.ulp(value) + (i == j ? ridge : 0);
+				matrix[i * size + j] = value;
+				matrix[j * size + i] = value;
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * LL' is the matrix with its rows and columns permuted by the pivots, and
+	 * the strict upper triangle is untouched
+	 */
+	private static void assertPivotedFactor(double[] matrix, double[] factor, int[] pivots, int size,
+			double delta) {
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j <= i; j++) {
+				double value = 0;
+				for (int k = 0; k <= j; k++) {
+					value += factor[i * size + k] * factor[j * size + k];
+				}
+				assertEquals(matrix[pivots[i] * size + pivots[j]], value, delta);
+			}
+			for (int j = i + 1; j < size; j++) {
+				assertEquals(matrix[i * size + j], factor[i * size + j], 0);
+			}
+		}
+	}
+
+	/**
+	 * LL' is the matrix and the strict upper triangle is untouched
+	 */
+	private static void assertFactor(double[] matrix, double[] factor, int size, double delta) {
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j <= i; j++) {
+				double value = 0;
+				for (int k = 0; k <= j; k++) {
+					value += factor[i * size + k] * factor[j * size + k];
+				}
+				assertEquals(matrix[i * size + j], value, delta);
+			}
+			for (int j = i + 1; j < size; j++) {
+				assertEquals(matrix[i * size + j], factor[i * size + j], 0);
+			}
+		}
+	}
+}
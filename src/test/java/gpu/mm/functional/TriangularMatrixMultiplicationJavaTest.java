@@ -0,0 +1,60 @@
+package gpu.mm.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.kernels.JavaKernels;
+import gpu.mm.TriangularMatrixMultiplicationJava;
+
+class TriangularMatrixMultiplicationJavaTest {
+
+	/**
+	 * Sizes which are not multiples of the tiles nor of the depth blocks, the
+	 * strict upper triangle of L is never read
+	 */
+	@Test
+	void testMultiplication() {
+		int rows = 70;
+		int size = 301;
+		Random random = new Random(5);
+		double[] lower = new double[size * size];
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				lower[i * size + j] = j <= i ? random.nextGaussian() : Double.NaN;
+			}
+		}
+		TriangularMatrixMultiplicationJava product = new TriangularMatrixMultiplicationJava(JavaKernels.scalar());
+		for (int depth : new int[] { size, 130, 3 }) {
+			double[] matrixA = new double[rows * depth];
+			for (int k = 0; k < matrixA.length; k++) {
+				matrixA[k] = random.nextGaussian();
+			}
+			double[] result = new double[rows * size];
+			// Stale values are overwritten
+			result[7] = Double.NaN;
+			product.multiply(matrixA, rows, depth, lower, size, result);
+			for (int s = 0; s < rows; s++) {
+				for (int i = 0; i < size; i++) {
+					double value = 0;
+					for (int k = 0; k <= Math.min(i, depth - 1); k++) {
+						value += matrixA[s * depth + k] * lower[i * size + k];
+					}
+					assertEquals(value, result[s * size + i], 1e-12, String.format("R[%d][%d], depth %d", s, i, depth));
+				}
+			}
+		}
+	}
+
+	@Test
+	void testInvalidArguments() {
+		TriangularMatrixMultiplicationJava product = new TriangularMatrixMultiplicationJava();
+		assertThrows(IllegalArgumentException.class,
+				() -> product.multiply(new double[20], 2, 10, new double[9 * 9], 9, new double[18]));
+		assertThrows(IllegalArgumentException.class,
+				() -> product.multiply(new double[18], 2, 9, new double[9 * 9], 9, new double[17]));
+	}
+}
@@ -0,0 +1,190 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.CovarianceCache;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+
+class CovarianceCacheTest {
+
+	static final int INSTRUMENT_NUMBERS = 64;
+	static final int OBSERVATIONS_HISTORY = 128;
+
+	@Test
+	void testCachedMatrixGivesSameResults() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(history, weight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		CovarianceCache cache = new CovarianceCache(1 << 20);
+
+		ValueAtRiskJava reference = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		reference.execute();
+
+		ValueAtRiskJava first = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		first.setCovarianceCache(cache);
+		first.execute();
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// Same history and weights, the matrix and Σw are reused
+		for (int run = 0; run < 2; run++) {
+			ValueAtRiskJava second = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+					OBSERVATIONS_HISTORY, false);
+			second.setCovarianceCache(cache);
+			second.execute();
+			assertResults(reference, second);
+		}
+		first.execute();
+		assertResults(reference, first);
+		assertEquals(3, cache.getHits());
+
+		// Same history, other weights: only the matrix is reused
+		double[] otherWeight = new double[INSTRUMENT_NUMBERS];
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			otherWeight[i] = 2.0 * (i % 2) / INSTRUMENT_NUMBERS;
+		}
+		ValueAtRiskJava otherReference = new ValueAtRiskJava(history, otherWeight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		otherReference.execute();
+		ValueAtRiskJava other = new ValueAtRiskJava(history, otherWeight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		other.setCovarianceCache(cache);
+		other.execute();
+		assertResults(otherReference, other);
+		assertEquals(4, cache.getHits());
+
+		// Another history misses
+		history[history.length - 1] *= 1.01;
+		first.execute();
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+		assertNotEquals(reference.getPortfolioStandardDeviation(), first.getPortfolioStandardDeviation());
+	}
+
+	@Test
+	void testLeastRecentlyUsedEviction() {
+		double[] matrix = new double[16];
+		double[] averages = new double[4];
+		// Room for two entries of 20 doubles
+		CovarianceCache cache = new CovarianceCache(2 * 20 * Double.BYTES);
+
+		CovarianceCache.Key first = CovarianceCache.key(new double[] { 1, 2, 3, 4 }, 4, 1);
+		CovarianceCache.Key second = CovarianceCache.key(new double[] { 1, 2, 3, 5 }, 4, 1);
+		CovarianceCache.Key third = CovarianceCache.key(new double[] { 1, 2, 3, 6 }, 4, 1);
+		cache.put(first, matrix, averages);
+		cache.put(second, matrix, averages);
+		assertNotNull(cache.get(first));
+		cache.put(third, matrix, averages);
+
+		assertEquals(2, cache.size());
+		assertEquals(2 * 20 * Double.BYTES, cache.getSizeInBytes());
+		assertNotNull(cache.get(first));
+		assertNull(cache.get(second));
+		assertNotNull(cache.get(third));
+
+		// The products Σw count in the size of their entry
+		cache.putCovarianceTimesWeights(third, 42, new double[4]);
+		assertEquals(1, cache.size());
+		assertArrayEquals(new double[4], cache.getCovarianceTimesWeights(third, 42));
+		assertNull(cache.getCovarianceTimesWeights(third, 43));
+
+		// Too large to be cached
+		cache.put(first, new double[100], averages);
+		assertNull(cache.get(first));
+	}
+
+	/**
+	 * The threads missing a history while its matrix is built wait for it
+	 * instead of building it again
+	 */
+	@Test
+	void testConcurrentMissesBuildOnce() throws Exception {
+		CovarianceCache cache = new CovarianceCache(1 << 20);
+		CovarianceCache.Key key = CovarianceCache.key(new double[] { 1, 2, 3, 4 }, 2, 2);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch waiting = new CountDownLatch(1);
+		CovarianceCache.Loader loader = averages -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			try {
+				waiting.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			averages[1] = 0.5;
+			return new double[4];
+		};
+
+		ExecutorService callers = ValueAtRiskExecutors.newExecutor(4);
+		try {
+			List<Future<CovarianceCache.Entry>> futures = new ArrayList<>();
+			futures.add(callers.submit(() -> cache.computeIfAbsent(key, loader)));
+			loading.await(10, TimeUnit.SECONDS);
+			for (int call = 1; call < 4; call++) {
+				futures.add(callers.submit(() -> cache.computeIfAbsent(key, loader)));
+			}
+			// Let the other callers reach the cache before the matrix is built
+			Thread.sleep(100);
+			waiting.countDown();
+			for (Future<CovarianceCache.Entry> future : futures) {
+				assertSame(futures.get(0).get(), future.get());
+			}
+		} finally {
+			callers.shutdown();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMisses());
+		assertEquals(3, cache.getHits());
+		assertEquals(0.5, cache.get(key).getInstrumentsAverageReturns()[1]);
+	}
+
+	@Test
+	void testFailedLoadIsNotCached() {
+		CovarianceCache cache = new CovarianceCache(1 << 20);
+		CovarianceCache.Key key = CovarianceCache.key(new double[] { 1, 2, 3, 4 }, 2, 2);
+		assertThrows(IllegalStateException.class, () -> cache.computeIfAbsent(key, averages -> {
+			throw new IllegalStateException();
+		}));
+		assertEquals(0, cache.size());
+		assertNotNull(cache.computeIfAbsent(key, averages -> new double[4]));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	void testFingerprint() {
+		double[] values = new double[] { 1, 2, 3, 4 };
+		long fingerprint = CovarianceCache.fingerprint(values, 4);
+		assertEquals(fingerprint, CovarianceCache.fingerprint(values.clone(), 4));
+		assertNotEquals(fingerprint, CovarianceCache.fingerprint(new double[] { 2, 1, 3, 4 }, 4));
+		assertNotEquals(fingerprint, CovarianceCache.fingerprint(values, 3));
+		assertNotEquals(CovarianceCache.key(values, 2, 2), CovarianceCache.key(values, 4, 1));
+	}
+
+	private static void assertResults(ValueAtRiskJava expected, ValueAtRiskJava actual) {
+		assertEquals(expected.getPortfolioStandardDeviation(), actual.getPortfolioStandardDeviation(), 1e-15);
+		assertEquals(expected.getWeightedAverageReturns(), actual.getWeightedAverageReturns(), 1e-15);
+		assertArrayEquals(expected.getWeightedCovariance(), actual.getWeightedCovariance(), 1e-15);
+		assertArrayEquals(expected.getVaRValue(), actual.getVaRValue(), 1e-8);
+	}
+}
@@ -0,0 +1,167 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.concurrent.ExecutorService;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.CovarianceCache;
+import gpu.var.CovarianceStorage;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskIncrementalJava;
+import gpu.var.ValueAtRiskJava;
+
+class CovarianceStorageTest {
+
+	// Not a multiple of the tile size nor of the grain size
+	static final int INSTRUMENT_NUMBERS = 150;
+	static final int OBSERVATIONS_HISTORY = 100;
+	static final int GRAIN_SIZE = 40;
+
+	private final ExecutorService executor = ValueAtRiskExecutors.getSharedExecutor();
+
+	@Test
+	void testPackedIndex() {
+		int n = 7;
+		assertEquals(n * (n + 1) / 2, CovarianceStorage.PACKED.size(n));
+		assertEquals(n * n, CovarianceStorage.DENSE.size(n));
+		boolean[] used = new boolean[n * (n + 1) / 2];
+		for (int row = 0; row < n; row++) {
+			for (int column = row; column < n; column++) {
+				int index = CovarianceStorage.PACKED.index(n, row, column);
+				assertEquals(false, used[index]);
+				used[index] = true;
+				assertEquals(index, CovarianceStorage.PACKED.index(n, column, row));
+			}
+		}
+	}
+
+	@Test
+	void testPackedJavaMatchesDense() {
+		double[] history = newHistory();
+		double[] weight = newUnevenWeights();
+
+		ValueAtRiskJava dense = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, executor, CovarianceStorage.DENSE);
+		dense.setGrainSize(GRAIN_SIZE);
+		dense.execute();
+		ValueAtRiskJava packed = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, executor, CovarianceStorage.PACKED);
+		packed.setGrainSize(GRAIN_SIZE);
+		packed.execute();
+
+		assertMatrices(dense, packed);
+		assertEquals(dense.getPortfolioStandardDeviation(), packed.getPortfolioStandardDeviation(), 1e-14);
+		assertEquals(dense.getWeightedAverageReturns(), packed.getWeightedAverageReturns(), 1e-15);
+		assertArrayEquals(dense.getWeightedCovariance(), packed.getWeightedCovariance(), 1e-14);
+		assertArrayEquals(dense.getVaRValue(), packed.getVaRValue(), 1e-6);
+	}
+
+	/**
+	 * The packed product runs one task per worker on pairs of rows, its scatter
+	 * buffers do not depend on the grain size
+	 */
+	@Test
+	void testPackedJavaMatchesDenseOnWorkers() {
+		double[] history = newHistory();
+		double[] weight = newUnevenWeights();
+		ExecutorService workers = ValueAtRiskExecutors.newExecutor(3);
+		try {
+			ValueAtRiskJava dense = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+					OBSERVATIONS_HISTORY, false, workers, CovarianceStorage.DENSE);
+			dense.setGrainSize(GRAIN_SIZE);
+			dense.execute();
+			for (int grainSize : new int[] { 1, GRAIN_SIZE, INSTRUMENT_NUMBERS }) {
+				ValueAtRiskJava packed = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+						OBSERVATIONS_HISTORY, false, workers, CovarianceStorage.PACKED);
+				packed.setGrainSize(grainSize);
+				packed.execute();
+				assertArrayEquals(dense.getCovarianceTimesWeights(), packed.getCovarianceTimesWeights(), 1e-14);
+				assertEquals(dense.getPortfolioStandardDeviation(), packed.getPortfolioStandardDeviation(), 1e-14);
+			}
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	@Test
+	void testPackedIncrementalMatchesDense() {
+		double[] history = newHistory();
+		double[] weight = newUnevenWeights();
+
+		ValueAtRiskIncrementalJava dense = new ValueAtRiskIncrementalJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, executor, CovarianceStorage.DENSE);
+		ValueAtRiskIncrementalJava packed = new ValueAtRiskIncrementalJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, executor, CovarianceStorage.PACKED);
+		dense.setGrainSize(GRAIN_SIZE);
+		packed.setGrainSize(GRAIN_SIZE);
+		dense.execute();
+		packed.execute();
+
+		double[] observation = new double[INSTRUMENT_NUMBERS];
+		for (int k = 0; k < 5; k++) {
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				observation[i] = history[(OBSERVATIONS_HISTORY - 1) * INSTRUMENT_NUMBERS + i]
+						* (1 + 0.001 * ((i * (k + 3)) % 7 - 3));
+			}
+			dense.addObservation(observation);
+			packed.addObservation(observation);
+		}
+		dense.execute();
+		packed.execute();
+
+		assertMatrices(dense, packed);
+		assertEquals(dense.getPortfolioStandardDeviation(), packed.getPortfolioStandardDeviation(), 1e-14);
+		assertEquals(dense.getWeightedAverageReturns(), packed.getWeightedAverageReturns(), 1e-15);
+	}
+
+	@Test
+	void testCacheKeysDependOnStorage() {
+		double[] history = newHistory();
+		assertNotEquals(
+				CovarianceCache.key(history, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, CovarianceStorage.DENSE),
+				CovarianceCache.key(history, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, CovarianceStorage.PACKED));
+	}
+
+	private static void assertMatrices(ValueAtRiskJava expected, ValueAtRiskJava actual) {
+		for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+			for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+				assertEquals(expected.getVarianceCovarianceMatrix(x, y), actual.getVarianceCovarianceMatrix(x, y),
+						1e-15);
+			}
+		}
+	}
+
+	private static void assertMatrices(ValueAtRiskIncrementalJava expected, ValueAtRiskIncrementalJava actual) {
+		for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+			for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+				assertEquals(expected.getVarianceCovarianceMatrix(x, y), actual.getVarianceCovarianceMatrix(x, y),
+						1e-15);
+				assertEquals(actual.getVarianceCovarianceMatrix(x, y), actual.getVarianceCovarianceMatrix(y, x));
+			}
+		}
+	}
+
+	private static double[] newHistory() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		ValueAtRiskData.initTest(history, new double[INSTRUMENT_NUMBERS], INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		return history;
+	}
+
+	private static double[] newUnevenWeights() {
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		double total = 0;
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			weight[i] = 1 + (i * 7) % 11;
+			total += weight[i];
+		}
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			weight[i] /= total;
+		}
+		return weight;
+	}
+}
@@ -0,0 +1,54 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import gpu.kernels.JavaKernels;
+import gpu.var.ValueAtRisk;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskJava;
+
+class JavaKernelsTest {
+
+	static final int INSTRUMENT_NUMBERS = 301;
+	static final int OBSERVATIONS_HISTORY = 512;
+
+	protected static final double instrumentsValueHistory[] = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	protected static final double instrumentWeight[] = new double[INSTRUMENT_NUMBERS];
+
+	@Test
+	void testScalarKernels() {
+		assertFalse(JavaKernels.scalar().isVectorized());
+	}
+
+	@Test
+	void testVectorKernelsParity() {
+		Assumptions.assumeTrue(JavaKernels.preferred().isVectorized(), "Vector API kernels not available");
+
+		// Odd sizes exercise the tails of the vector loops and the padded micro panels
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY - 1);
+		ValueAtRiskJava scalar = new ValueAtRiskJava(instrumentsValueHistory, instrumentWeight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY - 1, false);
+		scalar.setKernels(JavaKernels.scalar());
+		ValueAtRiskJava vector = new ValueAtRiskJava(instrumentsValueHistory, instrumentWeight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY - 1, false);
+		vector.setKernels(JavaKernels.preferred());
+
+		scalar.execute();
+		vector.execute();
+
+		assertEquals(scalar.getWeightedAverageReturns(), vector.getWeightedAverageReturns(), 1e-15);
+		assertEquals(scalar.getPortfolioStandardDeviation(), vector.getPortfolioStandardDeviation(), 1e-14);
+		for (int i = 0; i < ValueAtRisk.PERCENTILES.values().length; i++) {
+			assertEquals(scalar.getVaRValue()[i], vector.getVaRValue()[i], 1e-8);
+		}
+		for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+			for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+				assertEquals(scalar.getVarianceCovarianceMatrix(x, y), vector.getVarianceCovarianceMatrix(x, y), 1e-15);
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import gpu.kernels.ParallelRange;
+import gpu.var.ValueAtRiskExecutors;
+
+class ParallelRangeTest {
+
+	private static final ExecutorService pool = ValueAtRiskExecutors.newExecutor(4);
+
+	@AfterAll
+	static void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * The callables of a task are reused by the next runs and rebuilt when the
+	 * chunking changes
+	 */
+	@Test
+	void testRepeatedRuns() {
+		AtomicIntegerArray counts = new AtomicIntegerArray(1000);
+		int[] chunks = new int[1000];
+		ParallelRange.RangeTask task = (chunk, start, end) -> {
+			for (int i = start; i < end; i++) {
+				counts.incrementAndGet(i);
+				chunks[i] = chunk;
+			}
+		};
+		int[] grainSizes = { 100, 100, 37, 1000, 37 };
+		for (int run = 0; run < grainSizes.length; run++) {
+			int grainSize = grainSizes[run];
+			ParallelRange.execute(pool, 1000, grainSize, task);
+			for (int i = 0; i < 1000; i++) {
+				assertArrayEquals(new int[] { run + 1, i / grainSize },
+						new int[] { counts.get(i), chunks[i] }, String.format("Element %d of run %d", i, run));
+			}
+		}
+	}
+
+	/**
+	 * The same task run concurrently on distinct ranges does not share its
+	 * callables
+	 */
+	@Test
+	void testConcurrentRuns() throws Exception {
+		AtomicIntegerArray counts = new AtomicIntegerArray(4000);
+		ParallelRange.RangeTask task = (chunk, start, end) -> {
+			for (int i = start; i < end; i++) {
+				counts.incrementAndGet(i);
+			}
+		};
+		ExecutorService callers = ValueAtRiskExecutors.newExecutor(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int call = 0; call < 40; call++) {
+				int size = 1000 * (call % 4 + 1);
+				futures.add(callers.submit(() -> ParallelRange.execute(pool, size, 64, task)));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			callers.shutdown();
+		}
+		int[] expected = new int[4000];
+		for (int i = 0; i < 4000; i++) {
+			expected[i] = 10 * (4 - i / 1000);
+		}
+		int[] actual = new int[4000];
+		Arrays.setAll(actual, counts::get);
+		assertArrayEquals(expected, actual);
+	}
+
+	/**
+	 * One chunk per task the executor runs at once
+	 */
+	@Test
+	void testGrainSizePerTask() {
+		assertEquals(4, ParallelRange.parallelism(pool));
+		assertEquals(25, ParallelRange.grainSizePerTask(pool, 100));
+		assertEquals(26, ParallelRange.grainSizePerTask(pool, 101));
+		assertEquals(1, ParallelRange.grainSizePerTask(pool, 3));
+		ExecutorService callerThreadExecutor = ValueAtRiskExecutors.newCallerThreadExecutor();
+		assertEquals(1, ParallelRange.parallelism(callerThreadExecutor));
+		assertEquals(100, ParallelRange.grainSizePerTask(callerThreadExecutor, 100));
+		ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+		try {
+			assertEquals(2, ParallelRange.parallelism(forkJoinPool));
+		} finally {
+			forkJoinPool.shutdown();
+		}
+	}
+
+	@Test
+	void testFailingTask() {
+		assertThrows(IllegalStateException.class, () -> ParallelRange.execute(pool, 100, 10, (chunk, start, end) -> {
+			throw new ArithmeticException();
+		}));
+		assertThrows(IllegalArgumentException.class, () -> ParallelRange.execute(pool, 100, 0, (chunk, start, end) -> {
+		}));
+	}
+}
@@ -43,7 +43,7 @@ class VaRTest {
 		ValueAtRisk var = testVar(numberOfInstruments, numberOfObservations);
 		
 		assertEquals(1_000_000f, var.getPortfolioValue());
-		assertEquals(0.0116131, var.getPortfolioStandardDeviation(), 0.0000001);
+		assertEquals(0.0116205, var.getPortfolioStandardDeviation(), 0.0000001);
 		assertEquals(-0.0001628, var.getWeightedAverageReturns(), 0.00001);
 	
 	}
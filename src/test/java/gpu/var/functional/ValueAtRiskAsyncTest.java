@@ -0,0 +1,110 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.AbstractValueAtRisk;
+import gpu.var.ValueAtRisk.PERCENTILES;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskResult;
+
+class ValueAtRiskAsyncTest {
+
+	static final int INSTRUMENT_NUMBERS = 64;
+	static final int OBSERVATIONS_HISTORY = 90;
+	static final int BOOKS = 6;
+
+	/**
+	 * Several books and engines run concurrently on the shared executors and
+	 * give the results of their synchronous runs
+	 */
+	@Test
+	void testConcurrentBooks() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(history, weight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+
+		List<AbstractValueAtRisk> engines = new ArrayList<>();
+		for (int b = 0; b < BOOKS; b++) {
+			double[] bookWeight = new double[INSTRUMENT_NUMBERS];
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				bookWeight[i] = (i * (b + 1)) % 7 / 20.0;
+			}
+			AbstractValueAtRisk engine = b % 2 == 0
+					? new ValueAtRiskJava(history, bookWeight, 1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY,
+							false)
+					: new ValueAtRiskMatrixFreeJava(history, bookWeight, 1_000_000f, INSTRUMENT_NUMBERS,
+							OBSERVATIONS_HISTORY, false);
+			engine.setVerbose(false);
+			engines.add(engine);
+		}
+		List<CompletableFuture<ValueAtRiskResult>> futures = new ArrayList<>();
+		for (AbstractValueAtRisk engine : engines) {
+			futures.add(engine.executeAsync());
+		}
+		CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).join();
+
+		for (int b = 0; b < BOOKS; b++) {
+			ValueAtRiskResult result = futures.get(b).join();
+			AbstractValueAtRisk engine = engines.get(b);
+			engine.execute();
+			assertEquals(engine.getPortfolioStandardDeviation(), result.getPortfolioStandardDeviation(), 0);
+			assertEquals(engine.getWeightedAverageReturns(), result.getWeightedAverageReturns(), 0);
+			assertArrayEquals(engine.getVaRPercent(), result.getVaRPercent(), 0);
+			assertArrayEquals(engine.getVaRValue(), result.getVaRValue(), 0);
+			assertEquals(engine.getVaRPercent()[PERCENTILES._99P.ordinal()], result.getVaRPercent(PERCENTILES._99P),
+					0);
+		}
+	}
+
+	/**
+	 * The snapshot does not follow the next runs of the engine
+	 */
+	@Test
+	void testResultIsImmutable() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(history, weight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		ExecutorService executor = ValueAtRiskExecutors.newExecutor(1);
+		try {
+			ValueAtRiskJava var = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+					OBSERVATIONS_HISTORY, false);
+			var.setVerbose(false);
+			ValueAtRiskResult result = var.executeAsync(executor).join();
+			double[] VaRPercent = result.getVaRPercent();
+			VaRPercent[0] = 0;
+			assertTrue(result.getVaRPercent()[0] != 0);
+
+			var.setPortfolioValue(2_000_000f);
+			ValueAtRiskResult doubled = var.executeAsync(executor).join();
+			assertEquals(1_000_000f, result.getPortfolioValue(), 0);
+			assertEquals(2 * result.getVaRValue(PERCENTILES._95P), doubled.getVaRValue(PERCENTILES._95P), 1e-6);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testFailedRun() {
+		// Fewer values than instruments x observations
+		ValueAtRiskMatrixFreeJava var = new ValueAtRiskMatrixFreeJava(new double[10], new double[5], 1_000_000f, 5,
+				4, false);
+		var.setVerbose(false);
+		CompletableFuture<ValueAtRiskResult> future = var.executeAsync();
+		assertThrows(CompletionException.class, future::join);
+		assertTrue(future.isCompletedExceptionally());
+	}
+}
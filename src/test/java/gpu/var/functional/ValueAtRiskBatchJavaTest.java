@@ -0,0 +1,75 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRiskBatchJava;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+
+class ValueAtRiskBatchJavaTest {
+
+	static final int INSTRUMENT_NUMBERS = 300;
+	static final int OBSERVATIONS_HISTORY = 256;
+	// Not a multiple of the micro kernel size
+	static final int BOOKS = 7;
+
+	protected static final double instrumentsValueHistory[] = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	protected static final double instrumentWeight[] = new double[INSTRUMENT_NUMBERS];
+
+	@Test
+	void testCompareWithSingleBookEngine() {
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		double[] booksWeight = new double[BOOKS * INSTRUMENT_NUMBERS];
+		double[] portfolioValues = new double[BOOKS];
+		for (int b = 0; b < BOOKS; b++) {
+			double totalWeight = 0;
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				// Book 0 holds equal weights, the other books concentrate on a subset
+				booksWeight[b * INSTRUMENT_NUMBERS + i] = b == 0 ? 1 : ((i * (b + 3)) % (b + 2));
+				totalWeight += booksWeight[b * INSTRUMENT_NUMBERS + i];
+			}
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				booksWeight[b * INSTRUMENT_NUMBERS + i] /= totalWeight;
+			}
+			portfolioValues[b] = 1_000_000 * (b + 1);
+		}
+
+		ValueAtRiskBatchJava batch = new ValueAtRiskBatchJava(instrumentsValueHistory, booksWeight, portfolioValues,
+				BOOKS, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		batch.setGrainSize(70);
+		batch.execute();
+
+		for (int b = 0; b < BOOKS; b++) {
+			double[] weight = new double[INSTRUMENT_NUMBERS];
+			System.arraycopy(booksWeight, b * INSTRUMENT_NUMBERS, weight, 0, INSTRUMENT_NUMBERS);
+			ValueAtRiskMatrixFreeJava var = new ValueAtRiskMatrixFreeJava(instrumentsValueHistory, weight,
+					portfolioValues[b], INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+			var.execute();
+
+			assertEquals(var.getPortfolioStandardDeviation(), batch.getPortfolioStandardDeviation(b), 1e-12);
+			assertEquals(var.getWeightedAverageReturns(), batch.getWeightedAverageReturns(b), 1e-12);
+			assertArrayEquals(var.getVaRPercent(), batch.getVaRPercent(b), 1e-10);
+			assertArrayEquals(var.getVaRValue(), batch.getVaRValue(b), 1e-4);
+		}
+
+		// A smaller batch runs in the buffers of the larger one
+		double[] expectedVaRPercent = batch.getVaRPercent(BOOKS - 1);
+		batch.setBooks(Arrays.copyOfRange(booksWeight, (BOOKS - 1) * INSTRUMENT_NUMBERS, BOOKS * INSTRUMENT_NUMBERS),
+				new double[] { portfolioValues[BOOKS - 1] }, 1);
+		batch.executeBooks();
+		assertEquals(1, batch.getNumberOfBooks());
+		assertArrayEquals(expectedVaRPercent, batch.getVaRPercent(0), 1e-15);
+	}
+
+	@Test
+	void testInvalidWeights() {
+		assertThrows(IllegalArgumentException.class, () -> new ValueAtRiskBatchJava(instrumentsValueHistory,
+				new double[INSTRUMENT_NUMBERS], new double[2], 2, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false));
+	}
+}
@@ -0,0 +1,121 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRiskBatchingService;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskResult;
+
+class ValueAtRiskBatchingServiceTest {
+
+	static final int INSTRUMENT_NUMBERS = 200;
+	static final int OBSERVATIONS_HISTORY = 80;
+	static final int REQUESTS = 48;
+
+	double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	double[][] booksWeight = new double[REQUESTS][INSTRUMENT_NUMBERS];
+
+	ValueAtRiskBatchingServiceTest() {
+		ValueAtRiskData.initTest(history, booksWeight[0], INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		for (int b = 1; b < REQUESTS; b++) {
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				booksWeight[b][i] = ((i + 1) * b) % 13 / 1000.0;
+			}
+		}
+	}
+
+	/**
+	 * Requests submitted within the time window are coalesced and get the
+	 * results of their own engine
+	 */
+	@Test
+	void testCoalescedRequests() {
+		try (ValueAtRiskBatchingService service = new ValueAtRiskBatchingService(history, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, 16, TimeUnit.MILLISECONDS.toNanos(50),
+				ValueAtRiskExecutors.getSharedExecutor())) {
+			List<CompletableFuture<ValueAtRiskResult>> futures = new ArrayList<>();
+			for (int b = 0; b < REQUESTS; b++) {
+				futures.add(service.submit(booksWeight[b], 1_000_000f * (b + 1)));
+			}
+			for (int b = 0; b < REQUESTS; b++) {
+				ValueAtRiskResult result = futures.get(b).join();
+				ValueAtRiskJava engine = new ValueAtRiskJava(history, booksWeight[b], 1_000_000f * (b + 1),
+						INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+				engine.setVerbose(false);
+				engine.execute();
+				assertEquals(engine.getWeightedAverageReturns(), result.getWeightedAverageReturns(), 1e-15);
+				assertEquals(engine.getPortfolioStandardDeviation(), result.getPortfolioStandardDeviation(), 1e-14);
+				assertArrayEquals(engine.getVaRPercent(), result.getVaRPercent(), 1e-13);
+				assertArrayEquals(engine.getVaRValue(), result.getVaRValue(), 1e-6);
+			}
+			assertEquals(REQUESTS, service.getNumberOfRequests());
+			// The batches are bounded by their size, and far fewer than the requests
+			assertTrue(service.getNumberOfBatches() >= REQUESTS / 16);
+			assertTrue(service.getNumberOfBatches() < REQUESTS / 2);
+		}
+	}
+
+	@Test
+	void testSingleRequestBatches() {
+		try (ValueAtRiskBatchingService service = new ValueAtRiskBatchingService(history, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, 1, 0, ValueAtRiskExecutors.getSharedExecutor())) {
+			List<CompletableFuture<ValueAtRiskResult>> futures = new ArrayList<>();
+			for (int b = 0; b < 5; b++) {
+				futures.add(service.submit(booksWeight[b], 1_000_000f));
+			}
+			CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).join();
+			assertEquals(5, service.getNumberOfBatches());
+		}
+	}
+
+	/**
+	 * Closing the service wakes up the dispatcher waiting for more requests, the
+	 * batch already collected is computed and not interrupted
+	 */
+	@Test
+	void testCloseComputesCollectedBatch() throws Exception {
+		ValueAtRiskBatchingService service = new ValueAtRiskBatchingService(history, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, 16, TimeUnit.SECONDS.toNanos(30), ValueAtRiskExecutors.getSharedExecutor());
+		CompletableFuture<ValueAtRiskResult> future = service.submit(booksWeight[0], 1_000_000f);
+		// Let the dispatcher take the request and wait for the next ones
+		Thread.sleep(200);
+		long start = System.nanoTime();
+		service.close();
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		ValueAtRiskResult result = future.get(10, TimeUnit.SECONDS);
+		assertTrue(result.getPortfolioStandardDeviation() > 0);
+		assertEquals(1, service.getNumberOfBatches());
+	}
+
+	@Test
+	void testClosedService() {
+		ValueAtRiskBatchingService service = new ValueAtRiskBatchingService(history, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY);
+		assertThrows(IllegalArgumentException.class, () -> service.submit(new double[1], 1_000_000f));
+		service.close();
+		assertThrows(IllegalStateException.class, () -> service.submit(booksWeight[0], 1_000_000f));
+	}
+
+	@Test
+	void testInvalidConfiguration() {
+		assertThrows(IllegalArgumentException.class, () -> new ValueAtRiskBatchingService(history,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, 0, 0, ValueAtRiskExecutors.getSharedExecutor()));
+		assertThrows(IllegalArgumentException.class, () -> new ValueAtRiskBatchingService(history,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, 8, -1, ValueAtRiskExecutors.getSharedExecutor()));
+		assertThrows(IllegalArgumentException.class, () -> new ValueAtRiskBatchingService(history,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, Integer.MAX_VALUE, 0,
+				ValueAtRiskExecutors.getSharedExecutor()));
+	}
+}
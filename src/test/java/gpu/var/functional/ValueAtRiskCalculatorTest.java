@@ -0,0 +1,113 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.CovarianceCache;
+import gpu.var.CovarianceStorage;
+import gpu.var.ValueAtRiskCalculator;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskResult;
+
+class ValueAtRiskCalculatorTest {
+
+	static final int INSTRUMENT_NUMBERS = 300;
+	static final int OBSERVATIONS_HISTORY = 70;
+	static final int BOOKS = 8;
+
+	double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	double[][] booksWeight = new double[BOOKS][INSTRUMENT_NUMBERS];
+
+	ValueAtRiskCalculatorTest() {
+		ValueAtRiskData.initTest(history, booksWeight[0], INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		for (int b = 1; b < BOOKS; b++) {
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				booksWeight[b][i] = ((i + 3) * b) % 11 / 1000.0;
+			}
+		}
+	}
+
+	@Test
+	void testDense() {
+		testAgainstEngine(CovarianceStorage.DENSE);
+	}
+
+	@Test
+	void testPacked() {
+		testAgainstEngine(CovarianceStorage.PACKED);
+	}
+
+	/**
+	 * The books share one calculator and one cache from many threads
+	 */
+	@Test
+	void testConcurrentCallers() throws Exception {
+		ValueAtRiskResult[] expected = new ValueAtRiskResult[BOOKS];
+		for (int b = 0; b < BOOKS; b++) {
+			expected[b] = engine(booksWeight[b], CovarianceStorage.DENSE).getResult();
+		}
+
+		ExecutorService callers = ValueAtRiskExecutors.newExecutor(4);
+		try {
+			ValueAtRiskCalculator calculator = new ValueAtRiskCalculator(INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY,
+					ValueAtRiskExecutors.getSharedExecutor(), CovarianceStorage.DENSE, new CovarianceCache(1L << 30));
+			List<Future<ValueAtRiskResult>> futures = new ArrayList<>();
+			for (int call = 0; call < 10 * BOOKS; call++) {
+				double[] weight = booksWeight[call % BOOKS];
+				futures.add(callers.submit(() -> calculator.calculate(history, weight, 1_000_000f)));
+			}
+			for (int call = 0; call < futures.size(); call++) {
+				ValueAtRiskResult result = futures.get(call).get();
+				assertEquals(expected[call % BOOKS].getPortfolioStandardDeviation(),
+						result.getPortfolioStandardDeviation(), 1e-15);
+				assertArrayEquals(expected[call % BOOKS].getVaRPercent(), result.getVaRPercent(), 1e-14);
+			}
+			assertEquals(1, calculator.getCovarianceCache().size());
+			// The callers missing the history waited for a single build
+			assertEquals(1, calculator.getCovarianceCache().getMisses());
+		} finally {
+			callers.shutdown();
+		}
+	}
+
+	@Test
+	void testInvalidInputs() {
+		ValueAtRiskCalculator calculator = new ValueAtRiskCalculator(INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		assertThrows(IllegalArgumentException.class,
+				() -> calculator.calculate(new double[INSTRUMENT_NUMBERS], booksWeight[0], 1_000_000f));
+		assertThrows(IllegalArgumentException.class, () -> calculator.calculate(history, new double[1], 1_000_000f));
+		assertThrows(IllegalArgumentException.class, () -> new ValueAtRiskCalculator(INSTRUMENT_NUMBERS, 1));
+	}
+
+	private void testAgainstEngine(CovarianceStorage covarianceStorage) {
+		ValueAtRiskCalculator calculator = new ValueAtRiskCalculator(INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY,
+				ValueAtRiskExecutors.getSharedExecutor(), covarianceStorage, null);
+		for (int b = 0; b < BOOKS; b++) {
+			ValueAtRiskJava engine = engine(booksWeight[b], covarianceStorage);
+			ValueAtRiskResult result = calculator.calculate(history, booksWeight[b], 1_000_000f);
+			assertEquals(engine.getWeightedAverageReturns(), result.getWeightedAverageReturns(), 1e-17);
+			assertEquals(engine.getPortfolioStandardDeviation(), result.getPortfolioStandardDeviation(), 1e-15);
+			assertArrayEquals(engine.getWeightedCovariance(), result.getWeightedCovariance(), 1e-17);
+			assertArrayEquals(engine.getVaRPercent(), result.getVaRPercent(), 1e-14);
+			assertArrayEquals(engine.getVaRValue(), result.getVaRValue(), 1e-8);
+		}
+	}
+
+	private ValueAtRiskJava engine(double[] weight, CovarianceStorage covarianceStorage) {
+		ValueAtRiskJava engine = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, ValueAtRiskExecutors.getSharedExecutor(), covarianceStorage);
+		engine.setVerbose(false);
+		engine.execute();
+		return engine;
+	}
+}
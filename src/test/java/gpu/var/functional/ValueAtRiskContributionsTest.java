@@ -0,0 +1,191 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.AbstractValueAtRisk;
+import gpu.var.CovarianceStorage;
+import gpu.var.ValueAtRisk.PERCENTILES;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskGPU;
+import gpu.var.ValueAtRiskHistoricalJava;
+import gpu.var.ValueAtRiskIncrementalJava;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskMonteCarloJava;
+
+class ValueAtRiskContributionsTest {
+
+	static final int INSTRUMENT_NUMBERS = 37;
+	static final int OBSERVATIONS_HISTORY = 120;
+
+	double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	double[] weight = new double[INSTRUMENT_NUMBERS];
+
+	ValueAtRiskContributionsTest() {
+		// Uneven weights, including a short and a zero position
+		Random random = new Random(17);
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			history[i] = 10 + i;
+			weight[i] = random.nextDouble();
+		}
+		weight[3] = -0.5;
+		weight[4] = 0;
+		for (int j = 1; j < OBSERVATIONS_HISTORY; j++) {
+			double market = 0.01 * random.nextGaussian();
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				double returnValue = market * (i % 3) + 0.01 * random.nextGaussian();
+				history[j * INSTRUMENT_NUMBERS + i] = history[(j - 1) * INSTRUMENT_NUMBERS + i] * (1 + returnValue);
+			}
+		}
+	}
+
+	@Test
+	void testDense() {
+		testAgainstDefinition(new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, ValueAtRiskExecutors.getSharedExecutor(), CovarianceStorage.DENSE));
+	}
+
+	@Test
+	void testPacked() {
+		testAgainstDefinition(new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, ValueAtRiskExecutors.getSharedExecutor(), CovarianceStorage.PACKED));
+	}
+
+	@Test
+	void testMatrixFree() {
+		testAgainstDefinition(new ValueAtRiskMatrixFreeJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false));
+	}
+
+	@Test
+	void testIncremental() {
+		testAgainstDefinition(new ValueAtRiskIncrementalJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false));
+	}
+
+	/**
+	 * A portfolio without positions has a zero VaR and no shares of it
+	 */
+	@Test
+	void testZeroVar() {
+		ValueAtRiskJava var = new ValueAtRiskJava(history, new double[INSTRUMENT_NUMBERS], 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		var.setVerbose(false);
+		var.execute();
+		assertEquals(0, var.getVaRPercent()[PERCENTILES._99P.ordinal()], 0);
+		assertArrayEquals(new double[INSTRUMENT_NUMBERS], var.getComponentVaR(PERCENTILES._99P), 0);
+		assertArrayEquals(new double[INSTRUMENT_NUMBERS], var.getPercentageContribution(PERCENTILES._99P), 0);
+	}
+
+	/**
+	 * The VaR of the simulation engines is a quantile of simulated returns, which
+	 * the normal decomposition does not sum to
+	 */
+	@Test
+	void testSimulationEngines() {
+		ValueAtRiskMonteCarloJava monteCarlo = new ValueAtRiskMonteCarloJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		monteCarlo.setNumberOfScenarios(10_000);
+		for (AbstractValueAtRisk var : new AbstractValueAtRisk[] { new ValueAtRiskHistoricalJava(history, weight,
+				1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false), monteCarlo }) {
+			var.setVerbose(false);
+			var.execute();
+			assertThrows(UnsupportedOperationException.class, () -> var.getMarginalVaR(PERCENTILES._99P));
+			assertThrows(UnsupportedOperationException.class, () -> var.getComponentVaR(PERCENTILES._99P));
+			assertThrows(UnsupportedOperationException.class,
+					() -> var.getPercentageContribution(PERCENTILES._99P));
+		}
+	}
+
+	@Test
+	void testNotComputed() {
+		ValueAtRiskJava var = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		assertThrows(IllegalStateException.class, () -> var.getComponentVaR(PERCENTILES._99P));
+	}
+
+	/**
+	 * The GPU engine leaves Σw on the device
+	 */
+	@Test
+	void testDeviceReduction() {
+		ValueAtRiskGPU var = new ValueAtRiskGPU(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		assertThrows(UnsupportedOperationException.class, () -> var.getComponentVaR(PERCENTILES._99P));
+	}
+
+	/**
+	 * Compare with the sums of the definition, the components sum to the VaR and
+	 * the marginal VaR is the derivative of the VaR
+	 */
+	private void testAgainstDefinition(AbstractValueAtRisk var) {
+		var.setVerbose(false);
+		var.execute();
+
+		int returns = OBSERVATIONS_HISTORY - 1;
+		double[] returnValues = new double[returns * INSTRUMENT_NUMBERS];
+		double[] averages = new double[INSTRUMENT_NUMBERS];
+		for (int k = 0; k < returns; k++) {
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				returnValues[k * INSTRUMENT_NUMBERS + i] = history[(k + 1) * INSTRUMENT_NUMBERS + i]
+						/ history[k * INSTRUMENT_NUMBERS + i] - 1;
+				averages[i] += returnValues[k * INSTRUMENT_NUMBERS + i] / returns;
+			}
+		}
+		double[] covarianceTimesWeights = new double[INSTRUMENT_NUMBERS];
+		double variance = 0;
+		for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+			for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+				double covariance = 0;
+				for (int k = 0; k < returns; k++) {
+					covariance += (returnValues[k * INSTRUMENT_NUMBERS + x] - averages[x])
+							* (returnValues[k * INSTRUMENT_NUMBERS + y] - averages[y]);
+				}
+				covarianceTimesWeights[x] += covariance / returns * weight[y];
+			}
+			variance += weight[x] * covarianceTimesWeights[x];
+		}
+		assertArrayEquals(covarianceTimesWeights, var.getCovarianceTimesWeights(), 1e-15);
+		assertEquals(Math.sqrt(variance), var.getPortfolioStandardDeviation(), 1e-14);
+
+		for (int p = 0; p < PERCENTILES.values().length; p++) {
+			PERCENTILES percentile = PERCENTILES.values()[p];
+			double[] marginal = var.getMarginalVaR(percentile);
+			double[] component = var.getComponentVaR(percentile);
+			double[] percentage = var.getPercentageContribution(percentile);
+			double totalComponent = 0;
+			double totalPercentage = 0;
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				assertEquals(weight[i] * marginal[i], component[i], 1e-15);
+				totalComponent += component[i];
+				totalPercentage += percentage[i];
+			}
+			assertEquals(var.getVaRPercent()[p], totalComponent, 1e-14);
+			assertEquals(1, totalPercentage, 1e-12);
+
+			// Central difference of the VaR in the weight of an instrument
+			int instrument = 7;
+			double step = 1e-6;
+			assertEquals(marginal[instrument],
+					(parametricVaR(var, instrument, step, p) - parametricVaR(var, instrument, -step, p)) / (2 * step),
+					1e-7);
+		}
+	}
+
+	private double parametricVaR(AbstractValueAtRisk var, int instrument, double step, int percentile) {
+		double[] shifted = weight.clone();
+		shifted[instrument] += step;
+		var.setInstrumentsWeight(shifted);
+		var.execute();
+		double value = var.getVaRPercent()[percentile];
+		var.setInstrumentsWeight(weight);
+		var.execute();
+		return value;
+	}
+}
@@ -0,0 +1,102 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.CovarianceStorage;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskEwmaJava;
+import gpu.var.ValueAtRiskExecutors;
+
+class ValueAtRiskEwmaJavaTest {
+
+	static final int INSTRUMENT_NUMBERS = 100;
+	static final int OBSERVATIONS_HISTORY = 64;
+	static final int UPDATES = 10;
+	static final double DECAY = 0.94;
+
+	@Test
+	void testDense() {
+		testAgainstRecursion(CovarianceStorage.DENSE);
+	}
+
+	@Test
+	void testPacked() {
+		testAgainstRecursion(CovarianceStorage.PACKED);
+	}
+
+	@Test
+	void testInvalidDecay() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new ValueAtRiskEwmaJava(new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY],
+						new double[INSTRUMENT_NUMBERS], 1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false,
+						1.0, ValueAtRiskExecutors.getSharedExecutor()));
+	}
+
+	/**
+	 * Compare with the weighted sums of the definition, after the build from the
+	 * history and after daily updates
+	 */
+	private void testAgainstRecursion(CovarianceStorage covarianceStorage) {
+		int observations = OBSERVATIONS_HISTORY + UPDATES;
+		double[] prices = new double[INSTRUMENT_NUMBERS * observations];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(prices, weight, INSTRUMENT_NUMBERS, observations);
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		System.arraycopy(prices, 0, history, 0, history.length);
+
+		ValueAtRiskEwmaJava var = new ValueAtRiskEwmaJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, DECAY, ValueAtRiskExecutors.getSharedExecutor(), covarianceStorage);
+		var.setGrainSize(30);
+		var.execute();
+		assertDefinition(var, prices, weight, OBSERVATIONS_HISTORY);
+
+		double[] observation = new double[INSTRUMENT_NUMBERS];
+		for (int j = OBSERVATIONS_HISTORY; j < observations; j++) {
+			System.arraycopy(prices, j * INSTRUMENT_NUMBERS, observation, 0, INSTRUMENT_NUMBERS);
+			var.addObservation(observation);
+		}
+		var.execute();
+		assertDefinition(var, prices, weight, observations);
+	}
+
+	private void assertDefinition(ValueAtRiskEwmaJava var, double[] prices, double[] weight, int observations) {
+		int returns = observations - 1;
+		// The weights of the history returns are normalised, the updates are not
+		double normalisation = (1 - DECAY) / (1 - Math.pow(DECAY, OBSERVATIONS_HISTORY - 1));
+		double[] returnWeights = new double[returns];
+		for (int k = 0; k < returns; k++) {
+			int age = returns - 1 - k;
+			returnWeights[k] = k < OBSERVATIONS_HISTORY - 1
+					? normalisation * Math.pow(DECAY, age)
+					: (1 - DECAY) * Math.pow(DECAY, age);
+		}
+
+		double[] returnValues = new double[returns * INSTRUMENT_NUMBERS];
+		double weightedAverage = 0;
+		for (int k = 0; k < returns; k++) {
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				returnValues[k * INSTRUMENT_NUMBERS + i] = prices[(k + 1) * INSTRUMENT_NUMBERS + i]
+						/ prices[k * INSTRUMENT_NUMBERS + i] - 1;
+				weightedAverage += weight[i] * returnWeights[k] * returnValues[k * INSTRUMENT_NUMBERS + i];
+			}
+		}
+
+		double variance = 0;
+		for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+			for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+				double covariance = 0;
+				for (int k = 0; k < returns; k++) {
+					covariance += returnWeights[k] * returnValues[k * INSTRUMENT_NUMBERS + x]
+							* returnValues[k * INSTRUMENT_NUMBERS + y];
+				}
+				assertEquals(covariance, var.getVarianceCovarianceMatrix(x, y), 1e-15);
+				variance += weight[x] * covariance * weight[y];
+			}
+		}
+		assertEquals(Math.sqrt(variance), var.getPortfolioStandardDeviation(), 1e-13);
+		assertEquals(weightedAverage, var.getWeightedAverageReturns(), 1e-15);
+	}
+}
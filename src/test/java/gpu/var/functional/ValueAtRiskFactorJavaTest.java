@@ -0,0 +1,97 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskFactorJava;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+
+class ValueAtRiskFactorJavaTest {
+
+	@Test
+	void testFullRankIsExact() {
+		int instruments = 60;
+		int observations = 41;
+		double[] history = new double[instruments * observations];
+		double[] weight = new double[instruments];
+		ValueAtRiskData.initTest(history, weight, instruments, observations);
+
+		ValueAtRiskFactorJava factor = new ValueAtRiskFactorJava(history, weight, 1_000_000f, instruments,
+				observations, false, observations - 1);
+		factor.setGrainSize(16);
+		factor.execute();
+		ValueAtRiskJava dense = new ValueAtRiskJava(history, weight, 1_000_000f, instruments, observations, false);
+		dense.execute();
+		ValueAtRiskMatrixFreeJava matrixFree = new ValueAtRiskMatrixFreeJava(history, weight, 1_000_000f,
+				instruments, observations, false);
+		matrixFree.execute();
+
+		for (int y = 0; y < instruments; y++) {
+			for (int x = 0; x < instruments; x++) {
+				assertEquals(dense.getVarianceCovarianceMatrix(x, y), factor.getVarianceCovarianceMatrix(x, y), 1e-12);
+			}
+		}
+		assertEquals(matrixFree.getPortfolioStandardDeviation(), factor.getPortfolioStandardDeviation(), 1e-10);
+		assertEquals(matrixFree.getWeightedAverageReturns(), factor.getWeightedAverageReturns(), 1e-15);
+		assertArrayEquals(matrixFree.getWeightedCovariance(), factor.getWeightedCovariance(), 1e-12);
+	}
+
+	@Test
+	void testFactorStructureIsRecovered() {
+		int instruments = 400;
+		int observations = 251;
+		int factors = 3;
+		// Returns driven by three factors with a small idiosyncratic noise
+		Random random = new Random(7);
+		double[] loadings = new double[instruments * factors];
+		for (int k = 0; k < loadings.length; k++) {
+			loadings[k] = random.nextGaussian();
+		}
+		double[] history = new double[instruments * observations];
+		double[] weight = new double[instruments];
+		for (int i = 0; i < instruments; i++) {
+			history[i] = 100;
+			weight[i] = 1.0 / instruments;
+		}
+		double[] factorReturns = new double[factors];
+		for (int j = 1; j < observations; j++) {
+			for (int f = 0; f < factors; f++) {
+				factorReturns[f] = 0.01 / (f + 1) * random.nextGaussian();
+			}
+			for (int i = 0; i < instruments; i++) {
+				double returnValue = 0.001 * random.nextGaussian();
+				for (int f = 0; f < factors; f++) {
+					returnValue += loadings[i * factors + f] * factorReturns[f];
+				}
+				history[j * instruments + i] = history[(j - 1) * instruments + i] * (1 + returnValue);
+			}
+		}
+
+		ValueAtRiskFactorJava factor = new ValueAtRiskFactorJava(history, weight, 1_000_000f, instruments,
+				observations, false, factors);
+		factor.execute();
+		ValueAtRiskMatrixFreeJava matrixFree = new ValueAtRiskMatrixFreeJava(history, weight, 1_000_000f,
+				instruments, observations, false);
+		matrixFree.execute();
+
+		assertEquals(factors, factor.getFactorVariances().length);
+		assertEquals(instruments * factors, factor.getFactorLoadings().length);
+		assertEquals(1, factor.getPortfolioStandardDeviation() / matrixFree.getPortfolioStandardDeviation(), 0.01);
+		for (int f = 1; f < factors; f++) {
+			assertEquals(true, factor.getFactorVariances()[f] <= factor.getFactorVariances()[f - 1]);
+		}
+	}
+
+	@Test
+	void testInvalidNumberOfFactors() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new ValueAtRiskFactorJava(new double[10 * 5], new double[10], 1_000_000f, 10, 5, false, 5));
+	}
+}
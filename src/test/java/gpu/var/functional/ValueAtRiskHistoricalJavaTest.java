@@ -0,0 +1,90 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskHistoricalJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+
+class ValueAtRiskHistoricalJavaTest {
+
+	static final double[] PERCENTILES = { 90, 95, 97.5, 99 };
+
+	@Test
+	void testTestData() {
+		int instruments = 97;
+		int observations = 203;
+		double[] history = new double[instruments * observations];
+		double[] weight = new double[instruments];
+		ValueAtRiskData.initTest(history, weight, instruments, observations);
+		testAgainstSort(history, weight, instruments, observations);
+	}
+
+	@Test
+	void testUnevenWeightsAndTies() {
+		int instruments = 31;
+		int observations = 1001;
+		Random random = new Random(11);
+		double[] history = new double[instruments * observations];
+		double[] weight = new double[instruments];
+		for (int i = 0; i < instruments; i++) {
+			history[i] = 10 + i;
+			weight[i] = random.nextDouble();
+		}
+		for (int j = 1; j < observations; j++) {
+			// Every fourth day repeats the previous move to create tied scenarios
+			for (int i = 0; i < instruments; i++) {
+				double returnValue = j % 4 == 0 && j > 1
+						? history[(j - 1) * instruments + i] / history[(j - 2) * instruments + i] - 1
+						: 0.02 * random.nextGaussian();
+				history[j * instruments + i] = history[(j - 1) * instruments + i] * (1 + returnValue);
+			}
+		}
+		testAgainstSort(history, weight, instruments, observations);
+	}
+
+	/**
+	 * Compare with the quantiles of the sorted portfolio returns
+	 */
+	private void testAgainstSort(double[] history, double[] weight, int instruments, int observations) {
+		ValueAtRiskHistoricalJava var = new ValueAtRiskHistoricalJava(history, weight, 1_000_000f, instruments,
+				observations, false);
+		var.setGrainSize(10);
+		var.execute();
+
+		int returns = observations - 1;
+		double[] portfolioReturns = new double[returns];
+		for (int k = 0; k < returns; k++) {
+			for (int i = 0; i < instruments; i++) {
+				portfolioReturns[k] += weight[i]
+						* (history[(k + 1) * instruments + i] / history[k * instruments + i] - 1);
+			}
+		}
+		assertArrayEquals(portfolioReturns, var.getScenarioReturns(), 1e-15);
+		// Σw is not computed for the quantiles
+		assertArrayEquals(new double[instruments], var.getWeightedCovariance(), 0);
+
+		double[] sorted = portfolioReturns.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			double position = (returns - 1) * (1 - PERCENTILES[i] / 100);
+			int lower = (int) Math.floor(position);
+			double quantile = sorted[lower] + (position - lower) * (sorted[Math.min(lower + 1, returns - 1)] - sorted[lower]);
+			assertEquals(-quantile, var.getVaRPercent()[i], 1e-15);
+			assertEquals(-quantile * 1_000_000f, var.getVaRValue()[i], 1e-8);
+		}
+
+		// The moments are those of the variance covariance engine
+		ValueAtRiskMatrixFreeJava matrixFree = new ValueAtRiskMatrixFreeJava(history, weight, 1_000_000f,
+				instruments, observations, false);
+		matrixFree.execute();
+		assertEquals(matrixFree.getPortfolioStandardDeviation(), var.getPortfolioStandardDeviation(), 1e-15);
+		assertEquals(matrixFree.getWeightedAverageReturns(), var.getWeightedAverageReturns(), 1e-15);
+	}
+}
@@ -0,0 +1,67 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRisk;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskIncrementalJava;
+import gpu.var.ValueAtRiskJava;
+
+class ValueAtRiskIncrementalJavaTest {
+
+	static final int INSTRUMENT_NUMBERS = 67;
+	static final int OBSERVATIONS_HISTORY = 512;
+	static final int WINDOW = 100;
+
+	protected static final double instrumentsValueHistory[] = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	protected static final double instrumentWeight[] = new double[INSTRUMENT_NUMBERS];
+
+	@Test
+	void testRollingWindow() {
+		testRollingWindow(1_000);
+	}
+
+	@Test
+	void testRollingWindowWithRebuild() {
+		testRollingWindow(7);
+	}
+
+	private void testRollingWindow(int recomputeInterval) {
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		ValueAtRiskIncrementalJava var = new ValueAtRiskIncrementalJava(instrumentsValueHistory, instrumentWeight,
+				1_000_000f, INSTRUMENT_NUMBERS, WINDOW, false);
+		var.setRecomputeInterval(recomputeInterval);
+		var.setGrainSize(10);
+		var.execute();
+		assertWindow(var, 0);
+
+		double[] instrumentsValue = new double[INSTRUMENT_NUMBERS];
+		for (int day = 1; day <= 150; day++) {
+			System.arraycopy(instrumentsValueHistory, (WINDOW - 1 + day) * INSTRUMENT_NUMBERS, instrumentsValue, 0,
+					INSTRUMENT_NUMBERS);
+			var.addObservation(instrumentsValue);
+			if (day % 50 == 0) {
+				var.execute();
+				assertWindow(var, day);
+			}
+		}
+	}
+
+	private void assertWindow(ValueAtRisk var, int firstObservation) {
+		double[] window = new double[INSTRUMENT_NUMBERS * WINDOW];
+		System.arraycopy(instrumentsValueHistory, firstObservation * INSTRUMENT_NUMBERS, window, 0, window.length);
+		ValueAtRisk expected = new ValueAtRiskJava(window, instrumentWeight, 1_000_000f, INSTRUMENT_NUMBERS, WINDOW,
+				false);
+		expected.execute();
+
+		assertEquals(expected.getWeightedAverageReturns(), var.getWeightedAverageReturns(), 1e-12);
+		assertEquals(expected.getPortfolioStandardDeviation(), var.getPortfolioStandardDeviation(), 1e-12);
+		for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+			for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+				assertEquals(expected.getVarianceCovarianceMatrix(x, y), var.getVarianceCovarianceMatrix(x, y), 1e-12);
+			}
+		}
+	}
+}
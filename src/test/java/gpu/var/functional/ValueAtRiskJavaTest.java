@@ -0,0 +1,31 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskJava;
+
+class ValueAtRiskJavaTest {
+
+	static final int INSTRUMENT_NUMBERS = 512;
+	static final int OBSERVATIONS_HISTORY = 512;
+
+	protected static final double instrumentsValueHistory[] = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	protected static final double instrumentWeight[] = new double[INSTRUMENT_NUMBERS];
+
+	@Test
+	void testGrainSizes() {
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		for (int grainSize : new int[] { 1, 7, 250, 511, 512, 4096 }) {
+			ValueAtRiskJava var = new ValueAtRiskJava(instrumentsValueHistory, instrumentWeight, 1_000_000f,
+					INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+			var.setGrainSize(grainSize);
+			var.execute();
+
+			assertEquals(0.0116205, var.getPortfolioStandardDeviation(), 0.0000001);
+			assertEquals(-0.0001628, var.getWeightedAverageReturns(), 0.0000001);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.ValueAtRisk;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+
+class ValueAtRiskMatrixFreeJavaTest {
+
+	static final int INSTRUMENT_NUMBERS = 512;
+	static final int OBSERVATIONS_HISTORY = 512;
+
+	protected static final double instrumentsValueHistory[] = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	protected static final double instrumentWeight[] = new double[INSTRUMENT_NUMBERS];
+
+	@Test
+	void testCompare16x8() {
+		ValueAtRisk var = testVar(16, 8);
+		assertEquals(0.0094845, var.getPortfolioStandardDeviation(), 0.0000001);
+		assertEquals(0.0049068, var.getWeightedAverageReturns(), 0.00001);
+	}
+
+	@Test
+	void testCompare512x512() {
+		ValueAtRisk var = testVar(512, 512);
+		assertEquals(0.0116205, var.getPortfolioStandardDeviation(), 0.0000001);
+		assertEquals(-0.0001628, var.getWeightedAverageReturns(), 0.00001);
+	}
+
+	@Test
+	void testUnevenWeights() {
+		int numberOfInstruments = 100;
+		int numberOfObservations = 256;
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, numberOfInstruments, numberOfObservations);
+		double totalWeight = 0;
+		for (int i = 0; i < numberOfInstruments; i++) {
+			instrumentWeight[i] = (i % 7) + 1;
+			totalWeight += instrumentWeight[i];
+		}
+		for (int i = 0; i < numberOfInstruments; i++) {
+			instrumentWeight[i] /= totalWeight;
+		}
+
+		ValueAtRisk varJava = new ValueAtRiskJava(instrumentsValueHistory, instrumentWeight, 1_000_000f,
+				numberOfInstruments, numberOfObservations, false);
+		varJava.execute();
+		double variance = 0;
+		for (int x = 0; x < numberOfInstruments; x++) {
+			for (int y = 0; y < numberOfInstruments; y++) {
+				variance += instrumentWeight[x] * varJava.getVarianceCovarianceMatrix(x, y) * instrumentWeight[y];
+			}
+		}
+
+		ValueAtRiskMatrixFreeJava var = new ValueAtRiskMatrixFreeJava(instrumentsValueHistory, instrumentWeight,
+				1_000_000f, numberOfInstruments, numberOfObservations, false);
+		var.setGrainSize(16);
+		var.execute();
+		assertEquals(Math.sqrt(variance), var.getPortfolioStandardDeviation(), 1e-12);
+		assertEquals(varJava.getWeightedAverageReturns(), var.getWeightedAverageReturns(), 1e-12);
+
+		double weightedCovariance = 0;
+		for (int x = 0; x < numberOfInstruments; x++) {
+			weightedCovariance += var.getWeightedCovariance()[x];
+		}
+		assertEquals(variance, weightedCovariance, 1e-12);
+		assertThrows(UnsupportedOperationException.class, () -> var.getVarianceCovarianceMatrix(0, 0));
+	}
+
+	protected ValueAtRisk testVar(int numberOfInstruments, int numberOfObservations) {
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, numberOfInstruments, numberOfObservations);
+		ValueAtRisk varJava = new ValueAtRiskJava(instrumentsValueHistory, instrumentWeight, 1_000_000f,
+				numberOfInstruments, numberOfObservations, false);
+		ValueAtRiskMatrixFreeJava varMatrixFree = new ValueAtRiskMatrixFreeJava(instrumentsValueHistory,
+				instrumentWeight, 1_000_000f, numberOfInstruments, numberOfObservations, false);
+		varMatrixFree.setGrainSize(100);
+
+		varJava.execute();
+		varMatrixFree.execute();
+		assertEquals(varJava.getWeightedAverageReturns(), varMatrixFree.getWeightedAverageReturns(), 1e-12);
+		assertEquals(varJava.getPortfolioStandardDeviation(), varMatrixFree.getPortfolioStandardDeviation(), 1e-12);
+		for (int i = 0; i < ValueAtRisk.PERCENTILES.values().length; i++) {
+			assertEquals(varJava.getVaRValue()[i], varMatrixFree.getVaRValue()[i], 1e-6);
+		}
+
+		return varMatrixFree;
+	}
+
+}
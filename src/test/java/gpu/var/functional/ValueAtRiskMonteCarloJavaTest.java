@@ -0,0 +1,184 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.CovarianceCache;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskMonteCarloJava;
+
+class ValueAtRiskMonteCarloJavaTest {
+
+	static final int INSTRUMENT_NUMBERS = 40;
+	static final int OBSERVATIONS_HISTORY = 128;
+	static final double[] Z_STATS = { -1.2815515655446004, -1.6448536269514722, -1.959963984540054,
+			-2.3263478740408408 };
+
+	@Test
+	void testReproducibleAcrossExecutors() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(history, weight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+
+		ValueAtRiskMonteCarloJava sequential = new ValueAtRiskMonteCarloJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, 50_000, ValueAtRiskExecutors.newCallerThreadExecutor());
+		sequential.setSeed(3);
+		sequential.execute();
+
+		ExecutorService executorService = ValueAtRiskExecutors.newExecutor(4);
+		try {
+			ValueAtRiskMonteCarloJava parallel = new ValueAtRiskMonteCarloJava(history, weight, 1_000_000f,
+					INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, 50_000, executorService);
+			parallel.setSeed(3);
+			parallel.execute();
+			assertArrayEquals(sequential.getVaRPercent(), parallel.getVaRPercent(), 0);
+
+			parallel.setSeed(4);
+			parallel.execute();
+			assertEquals(false, sequential.getVaRPercent()[0] == parallel.getVaRPercent()[0]);
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	/**
+	 * The duplicated instruments of the test data give a matrix of rank 5, the
+	 * simulated quantiles converge to the normal ones
+	 */
+	@Test
+	void testSemiDefiniteConvergesToNormal() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(history, weight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+
+		ValueAtRiskMonteCarloJava var = new ValueAtRiskMonteCarloJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, 400_000, ValueAtRiskExecutors.getSharedExecutor());
+		var.execute();
+		assertEquals(ValueAtRiskData.NUMBER_OF_INSTRUMENTS_IN_SEED, var.getRank());
+
+		ValueAtRiskMatrixFreeJava matrixFree = new ValueAtRiskMatrixFreeJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		matrixFree.execute();
+		double mean = matrixFree.getWeightedAverageReturns();
+		double standardDeviation = matrixFree.getPortfolioStandardDeviation();
+		for (int i = 0; i < Z_STATS.length; i++) {
+			assertEquals(-(mean + Z_STATS[i] * standardDeviation), var.getVaRPercent()[i], 0.02 * standardDeviation);
+		}
+	}
+
+	/**
+	 * The scenarios are drawn per instrument and the books revalued on them: the
+	 * simulated returns of single instruments and of their sum have the moments
+	 * of the historical ones. The matrix factored in place is restored.
+	 */
+	@Test
+	void testInstrumentScenarios() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		ValueAtRiskData.initTest(history, new double[INSTRUMENT_NUMBERS], INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		int scenarios = 100_000;
+		double[][] books = new double[3][INSTRUMENT_NUMBERS];
+		books[0][0] = 1;
+		books[1][1] = 1;
+		books[2][0] = 1;
+		books[2][1] = 1;
+		for (double[] book : books) {
+			ValueAtRiskJava parametric = new ValueAtRiskJava(history, book, 1_000_000f, INSTRUMENT_NUMBERS,
+					OBSERVATIONS_HISTORY, false);
+			parametric.setVerbose(false);
+			parametric.execute();
+			ValueAtRiskMonteCarloJava var = new ValueAtRiskMonteCarloJava(history, book, 1_000_000f,
+					INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, scenarios, ValueAtRiskExecutors.getSharedExecutor());
+			var.setVerbose(false);
+			var.execute();
+
+			double mean = 0;
+			for (double value : var.getScenarioReturns()) {
+				mean += value;
+			}
+			mean /= scenarios;
+			double variance = 0;
+			for (double value : var.getScenarioReturns()) {
+				variance += (value - mean) * (value - mean);
+			}
+			double standardDeviation = Math.sqrt(variance / (scenarios - 1));
+			double expected = parametric.getPortfolioStandardDeviation();
+			assertEquals(parametric.getWeightedAverageReturns(), mean, 5 * expected / Math.sqrt(scenarios));
+			assertEquals(expected, standardDeviation, 0.02 * expected);
+
+			for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+				for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+					assertEquals(parametric.getVarianceCovarianceMatrix(x, y), var.getVarianceCovarianceMatrix(x, y), 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Instruments repeating six price series up to a noise of 1e-7 give a
+	 * nearly collinear matrix, factored with pivots: the weights and averages
+	 * follow the rows of L
+	 */
+	@Test
+	void testNearlyCollinearInstruments() {
+		int observations = 128;
+		Random random = new Random(1);
+		double[] series = new double[6 * observations];
+		for (int f = 0; f < 6; f++) {
+			double value = 100;
+			for (int j = 0; j < observations; j++) {
+				value *= 1 + 0.01 * random.nextGaussian();
+				series[f * observations + j] = value;
+			}
+		}
+		double[] history = new double[INSTRUMENT_NUMBERS * observations];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			weight[i] = i % 5 / 10.0;
+			for (int j = 0; j < observations; j++) {
+				history[j * INSTRUMENT_NUMBERS + i] = series[i % 6 * observations + j] * (1 + 1e-7 * random.nextGaussian())
+						* (1 + i);
+			}
+		}
+		ValueAtRiskJava parametric = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				observations, false);
+		parametric.setVerbose(false);
+		parametric.execute();
+		int scenarios = 100_000;
+		ValueAtRiskMonteCarloJava var = new ValueAtRiskMonteCarloJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, observations, false, scenarios, ValueAtRiskExecutors.getSharedExecutor());
+		var.setVerbose(false);
+		var.execute();
+		double mean = parametric.getWeightedAverageReturns();
+		double standardDeviation = parametric.getPortfolioStandardDeviation();
+		for (int i = 0; i < Z_STATS.length; i++) {
+			assertEquals(-(mean + Z_STATS[i] * standardDeviation), var.getVaRPercent()[i], 0.03 * standardDeviation);
+		}
+	}
+
+	/**
+	 * The matrix is factored in place and cannot be shared with a cache
+	 */
+	@Test
+	void testCovarianceCache() {
+		ValueAtRiskMonteCarloJava var = new ValueAtRiskMonteCarloJava(new double[10 * 5], new double[10], 1_000_000f,
+				10, 5, false, 100, ValueAtRiskExecutors.getSharedExecutor());
+		assertThrows(UnsupportedOperationException.class, () -> var.setCovarianceCache(new CovarianceCache(1)));
+		var.setCovarianceCache(null);
+	}
+
+	@Test
+	void testInvalidNumberOfScenarios() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new ValueAtRiskMonteCarloJava(new double[10 * 5], new double[10], 1_000_000f, 10, 5, false, 0,
+						ValueAtRiskExecutors.getSharedExecutor()));
+	}
+}
@@ -0,0 +1,81 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.OffHeapDoubleArray;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskOffHeapJava;
+
+class ValueAtRiskOffHeapJavaTest {
+
+	// Not a multiple of the tile size nor of the grain size
+	static final int INSTRUMENT_NUMBERS = 300;
+	static final int OBSERVATIONS_HISTORY = 300;
+	static final int GRAIN_SIZE = 70;
+
+	@Test
+	void testCompareWithHeapEngines() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		double[] weight = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(history, weight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		double total = 0;
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			weight[i] = 1 + (i * 7) % 11;
+			total += weight[i];
+		}
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			weight[i] /= total;
+		}
+
+		ValueAtRiskOffHeapJava offHeap = new ValueAtRiskOffHeapJava(OffHeapDoubleArray.copyOf(history), weight,
+				1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		offHeap.setGrainSize(GRAIN_SIZE);
+		offHeap.execute();
+
+		ValueAtRiskJava heap = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		heap.execute();
+		for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+			for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+				assertEquals(heap.getVarianceCovarianceMatrix(x, y), offHeap.getVarianceCovarianceMatrix(x, y), 1e-15);
+			}
+		}
+
+		// Same w'Σw semantics as the matrix free engine
+		ValueAtRiskMatrixFreeJava matrixFree = new ValueAtRiskMatrixFreeJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		matrixFree.execute();
+		assertEquals(matrixFree.getPortfolioStandardDeviation(), offHeap.getPortfolioStandardDeviation(), 1e-12);
+		assertEquals(matrixFree.getWeightedAverageReturns(), offHeap.getWeightedAverageReturns(), 1e-15);
+		assertArrayEquals(matrixFree.getWeightedCovariance(), offHeap.getWeightedCovariance(), 1e-15);
+		assertArrayEquals(matrixFree.getVaRValue(), offHeap.getVaRValue(), 1e-4);
+	}
+
+	@Test
+	void testSegmentBoundaries() {
+		// Segments of 8 doubles
+		OffHeapDoubleArray array = new OffHeapDoubleArray(50, 3);
+		double[] values = new double[50];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+		}
+		array.set(0, values, 0, values.length);
+		array.add(8, 0.5);
+		assertEquals(8.5, array.get(8));
+		assertEquals(49, array.get(49));
+
+		double[] range = new double[20];
+		array.get(5, range, 0, 20);
+		for (int k = 0; k < 20; k++) {
+			assertEquals(k == 3 ? 8.5 : 5 + k, range[k]);
+		}
+		assertThrows(IndexOutOfBoundsException.class, () -> array.get(40, range, 0, 20));
+		assertThrows(IllegalArgumentException.class, () -> new OffHeapDoubleArray(-1));
+	}
+}
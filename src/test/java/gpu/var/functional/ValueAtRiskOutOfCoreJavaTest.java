@@ -0,0 +1,82 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskOutOfCoreJava;
+
+class ValueAtRiskOutOfCoreJavaTest {
+
+	// Not a multiple of the tile size
+	static final int INSTRUMENT_NUMBERS = 300;
+	static final int OBSERVATIONS_HISTORY = 300;
+	static final long TASK_BYTES = (INSTRUMENT_NUMBERS + 37_120L) * Double.BYTES;
+
+	protected static final double instrumentsValueHistory[] = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	protected static final double instrumentWeight[] = new double[INSTRUMENT_NUMBERS];
+
+	@Test
+	void testBudgetBoundsTheTasks() {
+		ValueAtRiskMatrixFreeJava reference = newReference();
+		for (long tasks : new long[] { 1, 3, 1000 }) {
+			ValueAtRiskOutOfCoreJava var = new ValueAtRiskOutOfCoreJava(instrumentsValueHistory, instrumentWeight,
+					1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, tasks * TASK_BYTES);
+			var.setGrainSize(20);
+			assertTrue(var.getNumberOfTileTasks() <= tasks);
+			var.execute();
+			assertEquals(reference.getPortfolioStandardDeviation(), var.getPortfolioStandardDeviation(), 1e-12);
+			assertEquals(reference.getWeightedAverageReturns(), var.getWeightedAverageReturns(), 1e-15);
+			assertArrayEquals(reference.getWeightedCovariance(), var.getWeightedCovariance(), 1e-15);
+			assertArrayEquals(reference.getVaRValue(), var.getVaRValue(), 1e-4);
+		}
+		assertThrows(IllegalArgumentException.class, () -> new ValueAtRiskOutOfCoreJava(instrumentsValueHistory,
+				instrumentWeight, 1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, TASK_BYTES - 1));
+	}
+
+	@Test
+	void testCovarianceFile(@TempDir Path directory) throws IOException {
+		newReference();
+		ValueAtRiskOutOfCoreJava var = new ValueAtRiskOutOfCoreJava(instrumentsValueHistory, instrumentWeight,
+				1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, 4 * TASK_BYTES);
+		assertThrows(UnsupportedOperationException.class, () -> var.getVarianceCovarianceMatrix(0, 0));
+		var.setCovarianceFile(directory.resolve("covariance.bin"));
+		var.execute();
+
+		ValueAtRiskJava heap = new ValueAtRiskJava(instrumentsValueHistory, instrumentWeight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		heap.execute();
+		for (int y = 0; y < INSTRUMENT_NUMBERS; y++) {
+			for (int x = 0; x < INSTRUMENT_NUMBERS; x++) {
+				assertEquals(heap.getVarianceCovarianceMatrix(x, y), var.getVarianceCovarianceMatrix(x, y), 1e-15);
+			}
+		}
+	}
+
+	private static ValueAtRiskMatrixFreeJava newReference() {
+		ValueAtRiskData.initTest(instrumentsValueHistory, instrumentWeight, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		// Uneven weights
+		double total = 0;
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			instrumentWeight[i] = 1 + (i * 7) % 11;
+			total += instrumentWeight[i];
+		}
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			instrumentWeight[i] /= total;
+		}
+		ValueAtRiskMatrixFreeJava reference = new ValueAtRiskMatrixFreeJava(instrumentsValueHistory,
+				instrumentWeight, 1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		reference.execute();
+		return reference;
+	}
+}
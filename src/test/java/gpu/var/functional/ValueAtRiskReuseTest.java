@@ -0,0 +1,192 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import gpu.var.AbstractValueAtRisk;
+import gpu.var.ValueAtRiskData;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskFactorJava;
+import gpu.var.ValueAtRiskIncrementalJava;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskOutOfCoreJava;
+
+class ValueAtRiskReuseTest {
+
+	static final int INSTRUMENT_NUMBERS = 100;
+	static final int OBSERVATIONS_HISTORY = 128;
+	static final int WARM_UP_RUNS = 300;
+	static final int MEASURED_RUNS = 20;
+	static final int MAX_MEASURED_ROUNDS = 50;
+
+	private static final ExecutorService callerThreadExecutor = ValueAtRiskExecutors.newCallerThreadExecutor();
+
+	@AfterAll
+	static void shutdown() {
+		callerThreadExecutor.shutdown();
+	}
+
+	@Test
+	void testJavaReuse() {
+		testReuse(history -> {
+			ValueAtRiskJava var = new ValueAtRiskJava(history, newWeights(), 1_000_000f, INSTRUMENT_NUMBERS,
+					OBSERVATIONS_HISTORY, false, callerThreadExecutor);
+			var.setGrainSize(16);
+			return var;
+		});
+	}
+
+	@Test
+	void testMatrixFreeJavaReuse() {
+		testReuse(history -> {
+			ValueAtRiskMatrixFreeJava var = new ValueAtRiskMatrixFreeJava(history, newWeights(), 1_000_000f,
+					INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, callerThreadExecutor);
+			var.setGrainSize(16);
+			return var;
+		});
+	}
+
+	@Test
+	void testIncrementalJavaReuse() {
+		testReuse(history -> {
+			ValueAtRiskIncrementalJava var = new ValueAtRiskIncrementalJava(history, newWeights(), 1_000_000f,
+					INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, callerThreadExecutor);
+			var.setGrainSize(16);
+			return var;
+		});
+	}
+
+	/**
+	 * The engines which are not allocation free also compute the returns of the
+	 * history set in place
+	 */
+	@Test
+	void testNewHistory() {
+		testNewHistory(history -> new ValueAtRiskFactorJava(history, newWeights(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, 3, callerThreadExecutor));
+		testNewHistory(history -> new ValueAtRiskOutOfCoreJava(history, newWeights(), 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false, 1L << 20, callerThreadExecutor));
+	}
+
+	@Test
+	void testInvalidInputs() {
+		ValueAtRiskJava var = new ValueAtRiskJava(newHistory(), newWeights(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, callerThreadExecutor);
+		assertThrows(IllegalArgumentException.class, () -> var.setInstrumentsWeight(new double[1]));
+		assertThrows(IllegalArgumentException.class, () -> var.setInstrumentsValueHistory(new double[1]));
+	}
+
+	/**
+	 * Run the same engine again, with new weights in place and with a new
+	 * history, compare with fresh engines and check that the runs on the caller
+	 * thread executor do not allocate once warm
+	 */
+	private void testReuse(Function<double[], AbstractValueAtRisk> factory) {
+		AbstractValueAtRisk var = factory.apply(newHistory());
+		var.setVerbose(false);
+		var.execute();
+		double standardDeviation = var.getPortfolioStandardDeviation();
+		double weightedAverageReturns = var.getWeightedAverageReturns();
+		double[] VaRValue = var.getVaRValue().clone();
+		var.execute();
+		assertEquals(standardDeviation, var.getPortfolioStandardDeviation(), 1e-15);
+		assertEquals(weightedAverageReturns, var.getWeightedAverageReturns(), 1e-15);
+		assertArrayEquals(VaRValue, var.getVaRValue(), 1e-8);
+
+		double[] otherWeights = newWeights();
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			otherWeights[i] = 2.0 * (i % 2) / INSTRUMENT_NUMBERS;
+		}
+		AbstractValueAtRisk expected = factory.apply(newHistory());
+		expected.setVerbose(false);
+		expected.setInstrumentsWeight(otherWeights);
+		expected.execute();
+		var.setInstrumentsWeight(otherWeights);
+		var.execute();
+		assertEquals(expected.getPortfolioStandardDeviation(), var.getPortfolioStandardDeviation(), 1e-15);
+
+		var.setInstrumentsWeight(newWeights());
+		var.execute();
+		assertNewHistory(factory, var);
+
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		long threadId = Thread.currentThread().getId();
+
+		for (int run = 0; run < WARM_UP_RUNS; run++) {
+			var.execute();
+		}
+		// Cost of the measurement itself
+		long allocated = threadBean.getThreadAllocatedBytes(threadId);
+		long overhead = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+
+		// The vector kernels allocate until they are compiled by C2, which can lag
+		// behind on a loaded machine: the steady state is reached within a bounded
+		// number of rounds
+		for (int round = 0; round < MAX_MEASURED_ROUNDS; round++) {
+			allocated = threadBean.getThreadAllocatedBytes(threadId);
+			for (int run = 0; run < MEASURED_RUNS; run++) {
+				var.execute();
+			}
+			allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated - overhead;
+			if (allocated == 0) {
+				break;
+			}
+		}
+		assertEquals(0, allocated, String.format("%s allocated %d bytes in %d runs", var.getClass().getSimpleName(),
+				allocated, MEASURED_RUNS));
+	}
+
+	private void testNewHistory(Function<double[], AbstractValueAtRisk> factory) {
+		AbstractValueAtRisk var = factory.apply(newHistory());
+		var.setVerbose(false);
+		var.execute();
+		assertNewHistory(factory, var);
+	}
+
+	/**
+	 * Set another history in place and compare with a fresh engine built on it
+	 */
+	private static void assertNewHistory(Function<double[], AbstractValueAtRisk> factory, AbstractValueAtRisk var) {
+		double[] otherHistory = newHistory();
+		for (int i = 0; i < otherHistory.length; i += 3) {
+			otherHistory[i] *= 1.01;
+		}
+		AbstractValueAtRisk expected = factory.apply(otherHistory);
+		expected.setVerbose(false);
+		expected.execute();
+		double previous = var.getPortfolioStandardDeviation();
+		var.setInstrumentsValueHistory(otherHistory);
+		var.execute();
+		assertEquals(expected.getPortfolioStandardDeviation(), var.getPortfolioStandardDeviation(), 1e-15);
+		assertEquals(expected.getWeightedAverageReturns(), var.getWeightedAverageReturns(), 1e-15);
+		// The new history changes the result
+		assertTrue(Math.abs(previous - var.getPortfolioStandardDeviation()) > 1e-6);
+	}
+
+	private static double[] newHistory() {
+		double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+		ValueAtRiskData.initTest(history, new double[INSTRUMENT_NUMBERS], INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY);
+		return history;
+	}
+
+	private static double[] newWeights() {
+		double[] weights = new double[INSTRUMENT_NUMBERS];
+		ValueAtRiskData.initTest(new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY], weights, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY);
+		return weights;
+	}
+}
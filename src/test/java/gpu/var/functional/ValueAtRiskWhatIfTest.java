@@ -0,0 +1,156 @@
+package gpu.var.functional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import gpu.var.AbstractValueAtRisk;
+import gpu.var.CovarianceStorage;
+import gpu.var.ValueAtRiskExecutors;
+import gpu.var.ValueAtRiskFactorJava;
+import gpu.var.ValueAtRiskGPU;
+import gpu.var.ValueAtRiskHistoricalJava;
+import gpu.var.ValueAtRiskJava;
+import gpu.var.ValueAtRiskMatrixFreeJava;
+import gpu.var.ValueAtRiskMonteCarloJava;
+import gpu.var.ValueAtRiskOutOfCoreJava;
+import gpu.var.ValueAtRiskResult;
+
+class ValueAtRiskWhatIfTest {
+
+	static final int INSTRUMENT_NUMBERS = 45;
+	static final int OBSERVATIONS_HISTORY = 100;
+	// A new position, a partial sale, a repeated instrument and a closed position
+	static final int[] TRADE_INSTRUMENTS = { 2, 10, 10, 31, 44 };
+
+	double[] history = new double[INSTRUMENT_NUMBERS * OBSERVATIONS_HISTORY];
+	double[] weight = new double[INSTRUMENT_NUMBERS];
+	double[] tradeDeltas;
+
+	ValueAtRiskWhatIfTest() {
+		Random random = new Random(5);
+		for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+			history[i] = 50 + i;
+			weight[i] = random.nextDouble();
+		}
+		weight[2] = 0;
+		for (int j = 1; j < OBSERVATIONS_HISTORY; j++) {
+			double market = 0.01 * random.nextGaussian();
+			for (int i = 0; i < INSTRUMENT_NUMBERS; i++) {
+				double returnValue = market * (i % 4) + 0.01 * random.nextGaussian();
+				history[j * INSTRUMENT_NUMBERS + i] = history[(j - 1) * INSTRUMENT_NUMBERS + i] * (1 + returnValue);
+			}
+		}
+		tradeDeltas = new double[] { 0.4, -0.2, 0.05, -weight[31] / 2, -weight[44] };
+	}
+
+	@Test
+	void testDense() {
+		testAgainstExecution(new ValueAtRiskJava(history, weight.clone(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, ValueAtRiskExecutors.getSharedExecutor(), CovarianceStorage.DENSE));
+	}
+
+	@Test
+	void testPacked() {
+		testAgainstExecution(new ValueAtRiskJava(history, weight.clone(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, ValueAtRiskExecutors.getSharedExecutor(), CovarianceStorage.PACKED));
+	}
+
+	@Test
+	void testMatrixFree() {
+		testAgainstExecution(new ValueAtRiskMatrixFreeJava(history, weight.clone(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false));
+	}
+
+	@Test
+	void testFactor() {
+		testAgainstExecution(new ValueAtRiskFactorJava(history, weight.clone(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, 6));
+	}
+
+	/**
+	 * Without a covariance file, Δ'ΣΔ comes from the excess returns
+	 */
+	@Test
+	void testOutOfCore() {
+		testAgainstExecution(new ValueAtRiskOutOfCoreJava(history, weight.clone(), 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false, 1L << 20));
+	}
+
+	/**
+	 * The normal VaR of the what-if is not the quantile VaR of the simulation
+	 * engines
+	 */
+	@Test
+	void testSimulationEngines() {
+		ValueAtRiskMonteCarloJava monteCarlo = new ValueAtRiskMonteCarloJava(history, weight, 1_000_000f,
+				INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false);
+		monteCarlo.setNumberOfScenarios(10_000);
+		for (AbstractValueAtRisk var : new AbstractValueAtRisk[] { new ValueAtRiskHistoricalJava(history, weight,
+				1_000_000f, INSTRUMENT_NUMBERS, OBSERVATIONS_HISTORY, false), monteCarlo }) {
+			var.setVerbose(false);
+			var.execute();
+			assertThrows(UnsupportedOperationException.class, () -> var.whatIf(new int[0], new double[0]));
+		}
+	}
+
+	@Test
+	void testInvalidTrades() {
+		ValueAtRiskJava var = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		var.setVerbose(false);
+		var.execute();
+		assertThrows(IllegalArgumentException.class, () -> var.whatIf(new int[] { 1, 2 }, new double[] { 0.1 }));
+		assertThrows(IllegalArgumentException.class,
+				() -> var.whatIf(new int[] { INSTRUMENT_NUMBERS }, new double[] { 0.1 }));
+		assertThrows(IllegalArgumentException.class, () -> var.whatIf(new int[] { -1 }, new double[] { 0.1 }));
+
+		// Without a trade the what-if is the VaR of the execution
+		ValueAtRiskResult unchanged = var.whatIf(new int[0], new double[0]);
+		assertArrayEquals(var.getVaRPercent(), unchanged.getVaRPercent(), 1e-15);
+	}
+
+	@Test
+	void testNotComputed() {
+		ValueAtRiskJava var = new ValueAtRiskJava(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		assertThrows(IllegalStateException.class, () -> var.whatIf(new int[] { 1 }, new double[] { 0.1 }));
+	}
+
+	/**
+	 * The GPU engine leaves Σw on the device
+	 */
+	@Test
+	void testDeviceReduction() {
+		ValueAtRiskGPU var = new ValueAtRiskGPU(history, weight, 1_000_000f, INSTRUMENT_NUMBERS,
+				OBSERVATIONS_HISTORY, false);
+		assertThrows(UnsupportedOperationException.class, () -> var.whatIf(new int[] { 1 }, new double[] { 0.1 }));
+	}
+
+	/**
+	 * The what-if gives the VaR of an execution with the traded weights, and
+	 * leaves the engine unchanged
+	 */
+	private void testAgainstExecution(AbstractValueAtRisk var) {
+		var.setVerbose(false);
+		var.execute();
+		double[] VaRPercent = var.getVaRPercent().clone();
+		ValueAtRiskResult whatIf = var.whatIf(TRADE_INSTRUMENTS, tradeDeltas);
+		assertArrayEquals(VaRPercent, var.getVaRPercent(), 0);
+
+		double[] traded = weight.clone();
+		for (int k = 0; k < TRADE_INSTRUMENTS.length; k++) {
+			traded[TRADE_INSTRUMENTS[k]] += tradeDeltas[k];
+		}
+		var.setInstrumentsWeight(traded);
+		var.execute();
+		assertEquals(var.getWeightedAverageReturns(), whatIf.getWeightedAverageReturns(), 1e-15);
+		assertEquals(var.getPortfolioStandardDeviation(), whatIf.getPortfolioStandardDeviation(), 1e-13);
+		assertArrayEquals(var.getVaRPercent(), whatIf.getVaRPercent(), 1e-13);
+		assertArrayEquals(var.getVaRValue(), whatIf.getVaRValue(), 1e-7);
+	}
+}